@@ -0,0 +1,374 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * immutable compressed sparse row adjacency of a DAG whose vertices are dense int ids.
+ * outgoing and incoming edges are both kept so that descendants and ascendants are traversed the same way.
+ * an edge is encoded as a long: start vertex in the high 32 bits, end vertex in the low 32 bits.
+ * the rows changed after the build are kept aside, so that a small change doesn't copy and sort all the edges.
+ *
+ * @author csieflyman
+ */
+final class CsrGraph {
+
+    static final CsrGraph EMPTY = build(0, new long[0], 0);
+
+    private static final int PARALLEL_THRESHOLD = 1024;
+    // the changed rows are compacted into new arrays when they are more than max(COMPACT_MIN_ROWS, vertexCount / COMPACT_RATIO)
+    private static final int COMPACT_MIN_ROWS = 64;
+    private static final int COMPACT_RATIO = 4;
+
+    private final int vertexCount;
+    private final int edgeCount;
+    private final Rows outRows;
+    private final Rows inRows;
+
+    private CsrGraph(int vertexCount, int edgeCount, Rows outRows, Rows inRows) {
+        this.vertexCount = vertexCount;
+        this.edgeCount = edgeCount;
+        this.outRows = outRows;
+        this.inRows = inRows;
+    }
+
+    static long edge(int startVertex, int endVertex) {
+        return ((long) startVertex << 32) | (endVertex & 0xffffffffL);
+    }
+
+    static int startVertex(long edge) {
+        return (int) (edge >>> 32);
+    }
+
+    static int endVertex(long edge) {
+        return (int) edge;
+    }
+
+    static CsrGraph build(int vertexCount, long[] edges, int edgeCount) {
+        long[] sorted = Arrays.copyOf(edges, edgeCount);
+        Arrays.parallelSort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+
+        int[] outOffsets = new int[vertexCount + 1];
+        int[] outTargets = new int[size];
+        int[] inOffsets = new int[vertexCount + 1];
+        int[] inSources = new int[size];
+        for (int i = 0; i < size; i++) {
+            outOffsets[startVertex(sorted[i]) + 1]++;
+            inOffsets[endVertex(sorted[i]) + 1]++;
+        }
+        for (int v = 0; v < vertexCount; v++) {
+            outOffsets[v + 1] += outOffsets[v];
+            inOffsets[v + 1] += inOffsets[v];
+        }
+        int[] inCursors = Arrays.copyOf(inOffsets, vertexCount);
+        for (int i = 0; i < size; i++) {
+            // edges are sorted by start vertex, so position i is already the slot in the outgoing rows
+            outTargets[i] = endVertex(sorted[i]);
+            inSources[inCursors[endVertex(sorted[i])]++] = startVertex(sorted[i]);
+        }
+        return new CsrGraph(vertexCount, size, new Rows(outOffsets, outTargets), new Rows(inOffsets, inSources));
+    }
+
+    /**
+     * copy-on-write: a new graph sharing the arrays of this one, only the rows of the vertices touched by the changes are copied.
+     * edges touching a removed vertex are dropped first, then the changed edges are applied (true = added, false = removed).
+     * once the changed rows outgrow a part of the graph, all rows are compacted into new arrays.
+     */
+    CsrGraph apply(int newVertexCount, Map<Long, Boolean> edgeChanges, BitSet removedVertices) {
+        Map<Integer, Set<Integer>> changedOutRows = new HashMap<>();
+        Map<Integer, Set<Integer>> changedInRows = new HashMap<>();
+        for (int v = removedVertices.nextSetBit(0); v >= 0 && v < vertexCount; v = removedVertices.nextSetBit(v + 1)) {
+            Set<Integer> outgoingVertices = changedRow(outRows, changedOutRows, v);
+            Set<Integer> incomingVertices = changedRow(inRows, changedInRows, v);
+            for (int w : outgoingVertices) {
+                changedRow(inRows, changedInRows, w).remove(v);
+            }
+            for (int u : incomingVertices) {
+                changedRow(outRows, changedOutRows, u).remove(v);
+            }
+            outgoingVertices.clear();
+            incomingVertices.clear();
+        }
+        for (Map.Entry<Long, Boolean> entry : edgeChanges.entrySet()) {
+            int start = startVertex(entry.getKey());
+            int end = endVertex(entry.getKey());
+            if (entry.getValue()) {
+                changedRow(outRows, changedOutRows, start).add(end);
+                changedRow(inRows, changedInRows, end).add(start);
+            } else {
+                changedRow(outRows, changedOutRows, start).remove(end);
+                changedRow(inRows, changedInRows, end).remove(start);
+            }
+        }
+
+        int n = Math.max(newVertexCount, vertexCount);
+        int newEdgeCount = edgeCount;
+        for (Map.Entry<Integer, Set<Integer>> entry : changedOutRows.entrySet()) {
+            newEdgeCount += entry.getValue().size() - outRows.degree(entry.getKey());
+        }
+        CsrGraph graph = new CsrGraph(n, newEdgeCount, outRows.patch(changedOutRows), inRows.patch(changedInRows));
+        return graph.outRows.patchCount() + graph.inRows.patchCount() > Math.max(COMPACT_MIN_ROWS, n / COMPACT_RATIO) ? graph.compact() : graph;
+    }
+
+    private CsrGraph compact() {
+        long[] edges = new long[edgeCount];
+        int size = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            for (int i = 0; i < outRows.degree(v); i++) {
+                edges[size++] = edge(v, outRows.vertex(v, i));
+            }
+        }
+        return build(vertexCount, edges, size);
+    }
+
+    private static Set<Integer> changedRow(Rows rows, Map<Integer, Set<Integer>> changedRows, int vertex) {
+        return changedRows.computeIfAbsent(vertex, v -> {
+            Set<Integer> row = new HashSet<>();
+            for (int i = 0; i < rows.degree(v); i++) {
+                row.add(rows.vertex(v, i));
+            }
+            return row;
+        });
+    }
+
+    int vertexCount() {
+        return vertexCount;
+    }
+
+    int edgeCount() {
+        return edgeCount;
+    }
+
+    int outDegree(int vertex) {
+        return outRows.degree(vertex);
+    }
+
+    int inDegree(int vertex) {
+        return inRows.degree(vertex);
+    }
+
+    int outgoingVertex(int vertex, int i) {
+        return outRows.vertex(vertex, i);
+    }
+
+    int incomingVertex(int vertex, int i) {
+        return inRows.vertex(vertex, i);
+    }
+
+    int[] findOutgoingVertices(int vertex) {
+        return traverse(vertex, outRows, Integer.MAX_VALUE);
+    }
+
+    int[] findIncomingVertices(int vertex) {
+        return traverse(vertex, inRows, Integer.MAX_VALUE);
+    }
+
+    /**
+     * vertices reachable by at most maxDepth edges
+     */
+    int[] findOutgoingVertices(int vertex, int maxDepth) {
+        return traverse(vertex, outRows, maxDepth);
+    }
+
+    int[] findIncomingVertices(int vertex, int maxDepth) {
+        return traverse(vertex, inRows, maxDepth);
+    }
+
+    /**
+     * number of edges of the shortest path, -1 if unreachable
+     */
+    int distance(int from, int to) {
+        if (from < 0 || from >= vertexCount || to < 0 || to >= vertexCount || from == to)
+            return -1;
+
+        BitSet visited = new BitSet(vertexCount);
+        visited.set(from);
+        int[] frontier = {from};
+        int[] next = new int[16];
+        for (int depth = 1; frontier.length > 0; depth++) {
+            int size = 0;
+            for (int v : frontier) {
+                for (int i = 0, degree = outRows.degree(v); i < degree; i++) {
+                    int w = outRows.vertex(v, i);
+                    if (w == to)
+                        return depth;
+                    if (!visited.get(w)) {
+                        visited.set(w);
+                        if (size == next.length) {
+                            next = Arrays.copyOf(next, size * 2);
+                        }
+                        next[size++] = w;
+                    }
+                }
+            }
+            frontier = Arrays.copyOf(next, size);
+        }
+        return -1;
+    }
+
+    /**
+     * level-synchronous BFS, large frontiers are expanded in parallel by the common fork-join pool
+     */
+    private int[] traverse(int source, Rows rows, int maxDepth) {
+        if (source < 0 || source >= vertexCount)
+            return new int[0];
+
+        AtomicLongArray visited = new AtomicLongArray((vertexCount + 63) >>> 6);
+        markVisited(visited, source);
+        List<int[]> levels = new ArrayList<>();
+        int total = 0;
+        int[] frontier = {source};
+        for (int depth = 0; depth < maxDepth; depth++) {
+            frontier = frontier.length < PARALLEL_THRESHOLD ? expand(frontier, 0, frontier.length, rows, visited)
+                    : ForkJoinPool.commonPool().invoke(new ExpandTask(frontier, 0, frontier.length, rows, visited));
+            if (frontier.length == 0)
+                break;
+            levels.add(frontier);
+            total += frontier.length;
+        }
+        return concat(levels, total);
+    }
+
+    private static int[] expand(int[] frontier, int from, int to, Rows rows, AtomicLongArray visited) {
+        int[] next = new int[16];
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            int v = frontier[i];
+            for (int j = 0, degree = rows.degree(v); j < degree; j++) {
+                int w = rows.vertex(v, j);
+                if (markVisited(visited, w)) {
+                    if (size == next.length) {
+                        next = Arrays.copyOf(next, size * 2);
+                    }
+                    next[size++] = w;
+                }
+            }
+        }
+        return Arrays.copyOf(next, size);
+    }
+
+    private static boolean markVisited(AtomicLongArray visited, int vertex) {
+        int index = vertex >>> 6;
+        long mask = 1L << (vertex & 63);
+        while (true) {
+            long bits = visited.get(index);
+            if ((bits & mask) != 0)
+                return false;
+            if (visited.compareAndSet(index, bits, bits | mask))
+                return true;
+        }
+    }
+
+    private static int[] concat(Collection<int[]> arrays, int total) {
+        int[] result = new int[total];
+        int pos = 0;
+        for (int[] array : arrays) {
+            System.arraycopy(array, 0, result, pos, array.length);
+            pos += array.length;
+        }
+        return result;
+    }
+
+    private static class ExpandTask extends RecursiveTask<int[]> {
+
+        private final int[] frontier;
+        private final int from;
+        private final int to;
+        private final Rows rows;
+        private final AtomicLongArray visited;
+
+        ExpandTask(int[] frontier, int from, int to, Rows rows, AtomicLongArray visited) {
+            this.frontier = frontier;
+            this.from = from;
+            this.to = to;
+            this.rows = rows;
+            this.visited = visited;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return expand(frontier, from, to, rows, visited);
+            }
+            int middle = (from + to) >>> 1;
+            ExpandTask left = new ExpandTask(frontier, from, middle, rows, visited);
+            left.fork();
+            int[] right = new ExpandTask(frontier, middle, to, rows, visited).compute();
+            int[] leftResult = left.join();
+            return concat(Arrays.asList(leftResult, right), leftResult.length + right.length);
+        }
+    }
+
+    /**
+     * the rows of one direction: the compressed rows of the last build, overlaid by the rows changed since then
+     */
+    private static final class Rows {
+
+        private final int[] offsets;
+        private final int[] vertices;
+        private final Map<Integer, int[]> changedRows;
+        private final BitSet changed;
+
+        Rows(int[] offsets, int[] vertices) {
+            this(offsets, vertices, Collections.emptyMap(), new BitSet());
+        }
+
+        private Rows(int[] offsets, int[] vertices, Map<Integer, int[]> changedRows, BitSet changed) {
+            this.offsets = offsets;
+            this.vertices = vertices;
+            this.changedRows = changedRows;
+            this.changed = changed;
+        }
+
+        int degree(int vertex) {
+            if (changed.get(vertex))
+                return changedRows.get(vertex).length;
+            return vertex + 1 < offsets.length ? offsets[vertex + 1] - offsets[vertex] : 0;
+        }
+
+        int vertex(int vertex, int i) {
+            if (changed.get(vertex))
+                return changedRows.get(vertex)[i];
+            return vertices[offsets[vertex] + i];
+        }
+
+        int patchCount() {
+            return changedRows.size();
+        }
+
+        /**
+         * the compressed rows are shared, only the map of the changed rows is copied
+         */
+        Rows patch(Map<Integer, Set<Integer>> rows) {
+            if (rows.isEmpty())
+                return this;
+
+            Map<Integer, int[]> newChangedRows = new HashMap<>(changedRows);
+            BitSet newChanged = (BitSet) changed.clone();
+            rows.forEach((vertex, row) -> {
+                int[] array = row.stream().mapToInt(Integer::intValue).toArray();
+                Arrays.sort(array);
+                newChangedRows.put(vertex, array);
+                newChanged.set(vertex);
+            });
+            return new Rows(offsets, vertices, newChangedRows, newChanged);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package graph;
+
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * the closure table maintained for each dag, in the table dag_closure (dag_id, closure_table).
+ * only the table of the active party.dag.closure-mode is maintained, so the other one is stale once the dag is changed
+ *
+ * @author csieflyman
+ */
+final class DagClosureTables {
+
+    private DagClosureTables() {
+    }
+
+    /**
+     * @return whether the closure table was not the last one rebuilt for the dag, or no closure table was rebuilt yet
+     */
+    static boolean isStale(EntityManager em, String dagId, String closureTable) {
+        List<?> closureTables = em.createNativeQuery("select closure_table from dag_closure where dag_id = :dagId")
+                .setParameter("dagId", dagId).getResultList();
+        return closureTables.isEmpty() || !closureTable.equals(closureTables.get(0));
+    }
+
+    /**
+     * record the closure table as the one maintained for the dag, in the transaction of the rebuild
+     */
+    static void record(Connection connection, String dagId, String closureTable) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("delete from dag_closure where dag_id = ?")) {
+            statement.setString(1, dagId);
+            statement.executeUpdate();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("insert into dag_closure (dag_id, closure_table) values (?, ?)")) {
+            statement.setString(1, dagId);
+            statement.setString(2, closureTable);
+            statement.executeUpdate();
+        }
+    }
+}
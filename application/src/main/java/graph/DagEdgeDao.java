@@ -1,6 +1,9 @@
 package graph;
 
+import org.apache.commons.lang3.tuple.Pair;
+
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Set;
 
 /**
@@ -10,11 +13,61 @@ public interface DagEdgeDao<VertexID extends Serializable> {
 
     void addEdges(VertexID startVertexId, VertexID endVertexId);
 
+    void addEdges(Collection<Pair<VertexID, VertexID>> edges);
+
     void removeEdges(VertexID startVertexId, VertexID endVertexId);
 
-    void removeEdgesOfVertex(VertexID vertexId);
+    int removeEdgesOfVertex(VertexID vertexId);
+
+    /**
+     * lock the start vertices with their ancestors and the end vertices with their descendants until the transaction completes.
+     * the changes of edges lock them by themselves, a caller changing other tables of the vertices first locks them up front
+     */
+    void lockEdges(Collection<Pair<VertexID, VertexID>> edges);
+
+    /**
+     * lock the whole dag until the transaction completes, the other changes of edges wait until then
+     */
+    void lockAll();
+
+    /**
+     * replace the whole closure of the dag with the one computed from the given direct edges, the rows of the other dags are not changed.
+     * must be called within a transaction holding lockAll, the rows are deleted and inserted in that transaction,
+     * the closure table is recorded as the one maintained for the dag in that transaction too
+     *
+     * @return number of closure rows of the dag
+     */
+    int rebuild(Collection<Pair<VertexID, VertexID>> edges);
+
+    /**
+     * @return whether the closure of the dag has no rows, e.g. the closure table was never filled
+     */
+    boolean isEmpty();
+
+    /**
+     * @return whether the closure table is not the last one rebuilt for the dag, e.g. it was filled before switching party.dag.closure-mode
+     * and the dag was changed in the other closure table since then
+     */
+    boolean isStale();
 
     Set<VertexID> findIncomingVertices(VertexID vertexId);
 
     Set<VertexID> findOutgoingVertices(VertexID vertexId);
+
+    /**
+     * @param maxHops max number of edges of the path, same as distance, 1 means the direct incoming vertices only
+     */
+    Set<VertexID> findIncomingVertices(VertexID vertexId, int maxHops);
+
+    Set<VertexID> findOutgoingVertices(VertexID vertexId, int maxHops);
+
+    /**
+     * @return number of edges of the shortest path, null if the end vertex is unreachable
+     */
+    Integer distance(VertexID startVertexId, VertexID endVertexId);
+
+    /**
+     * @return table of the closure rows (dag_id, start_vertex_id, end_vertex_id), for statements of the vertex table joined on the closure
+     */
+    String getClosureTableName();
 }
@@ -4,14 +4,20 @@ import base.dao.AbstractJPADaoImpl;
 import base.util.query.Junction;
 import base.util.query.Query;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Value;
 
 import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import java.io.Serializable;
-import java.util.List;
-import java.util.Set;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -20,80 +26,224 @@ import java.util.stream.Collectors;
 @Slf4j
 public abstract class DagEdgeDaoImpl<DagEdgeType extends DagEdge<VertexID>, VertexID extends Serializable> extends AbstractJPADaoImpl<DagEdgeType, Long> implements DagEdgeDao<VertexID> {
 
+    private static final int BATCH_SIZE = 1000;
+
     abstract protected String getDagId();
 
     @PersistenceContext
     protected EntityManager em;
 
+    @Value("${party.dag.lock.database:false}")
+    private boolean databaseLock;
+    @Value("${party.dag.lock.timeout-ms:10000}")
+    private long lockTimeoutMillis;
+    private DagVertexLocks<VertexID> vertexLocks;
+
     @PostConstruct
     public void init() {
         setEntityManager(em);
+        vertexLocks = new DagVertexLocks<>(this::findAllIncomingVertices, this::findAllOutgoingVertices, getDagId(),
+                databaseLock ? StripedLocks.databaseLock(em, "dag_lock", "dag_id", getDagId()) : null, lockTimeoutMillis);
+    }
+
+    @Override
+    public void lockEdges(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "Argument [edges] can not be null.");
+        vertexLocks.lock(edges);
+    }
+
+    @Override
+    public void lockAll() {
+        vertexLocks.lockAll();
     }
 
     @Override
     public void addEdges(VertexID startVertexId, VertexID endVertexId) {
-        Preconditions.checkArgument(startVertexId != null, "Argument [startVertexId] can not be null.");
-        Preconditions.checkArgument(endVertexId != null, "Argument [endVertexId] can not be null.");
-        log.debug(String.format("add edge: from %s to %s ", startVertexId, endVertexId));
+        addEdges(Collections.singletonList(Pair.of(startVertexId, endVertexId)));
+    }
+
+    @Override
+    public void addEdges(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "Argument [edges] can not be null.");
+        edges.forEach(edge -> {
+            Preconditions.checkArgument(edge.getLeft() != null, "Argument [startVertexId] can not be null.");
+            Preconditions.checkArgument(edge.getRight() != null, "Argument [endVertexId] can not be null.");
+        });
+        if (edges.isEmpty())
+            return;
+        log.debug("add {} edges", edges.size());
+        vertexLocks.lock(edges);
+
+        Set<VertexID> startVertexIds = edges.stream().map(Pair::getLeft).collect(Collectors.toSet());
+        Set<VertexID> endVertexIds = edges.stream().map(Pair::getRight).collect(Collectors.toSet());
+        checkDirectEdgesNotExist(edges, startVertexIds, endVertexIds);
+
+        // the closure delta of an edge A->B only depends on the rows ending at A and the rows starting from B,
+        // load them once and apply the edges one by one in memory, so later edges see the rows of earlier ones
+        EdgeRows<VertexID> rows = loadEdgeRows(startVertexIds, endVertexIds);
+        List<EdgeRow<VertexID>> newRows = new ArrayList<>();
+        Set<Pair<VertexID, VertexID>> addedEdges = new HashSet<>();
+        long provisionalId = 0;
+        for (Pair<VertexID, VertexID> edge : edges) {
+            VertexID startVertexId = edge.getLeft();
+            VertexID endVertexId = edge.getRight();
+            if (!addedEdges.add(edge)) {
+                throw new IllegalArgumentException(String.format("edge from %s to %s has been exist", startVertexId, endVertexId));
+            }
+            List<EdgeRow<VertexID>> incomingRows = new ArrayList<>(rows.endAt(startVertexId));
+            if (startVertexId.equals(endVertexId) || incomingRows.stream().anyMatch(row -> row.startVertexId.equals(endVertexId))) {
+                throw new IllegalArgumentException(String.format("add edge from %s to %s will cause cycle", startVertexId, endVertexId));
+            }
+            List<EdgeRow<VertexID>> outgoingRows = new ArrayList<>(rows.startFrom(endVertexId));
+
+            // direct edge
+            EdgeRow<VertexID> direct = new EdgeRow<>(--provisionalId, startVertexId, endVertexId, 0, 0);
+            direct.entryEdge = direct;
+            direct.directEdge = direct;
+            direct.exitEdge = direct;
+            newRows.add(rows.add(direct));
+
+            //step 1: A's incoming edges to B
+            for (EdgeRow<VertexID> incomingRow : incomingRows) {
+                newRows.add(rows.add(new EdgeRow<>(--provisionalId, incomingRow, direct, direct, incomingRow.startVertexId, endVertexId,
+                        incomingRow.hops + 1)));
+            }
+            //step 2: A to B's outgoing edges
+            for (EdgeRow<VertexID> outgoingRow : outgoingRows) {
+                newRows.add(rows.add(new EdgeRow<>(--provisionalId, direct, direct, outgoingRow, startVertexId, outgoingRow.endVertexId,
+                        outgoingRow.hops + 1)));
+            }
+            // step 3: A’s incoming edges to end vertex of B's outgoing edges
+            for (EdgeRow<VertexID> incomingRow : incomingRows) {
+                for (EdgeRow<VertexID> outgoingRow : outgoingRows) {
+                    newRows.add(rows.add(new EdgeRow<>(--provisionalId, incomingRow, direct, outgoingRow, incomingRow.startVertexId,
+                            outgoingRow.endVertexId, incomingRow.hops + outgoingRow.hops + 2)));
+                }
+            }
+        }
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> insertEdgeRows(connection, newRows));
+    }
+
+    @Override
+    public int rebuild(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "Argument [edges] can not be null.");
+        log.info("rebuild dag {} from {} edges", getDagId(), edges.size());
 
-        long size = findSize(Query.create().where().eq("startVertexId", startVertexId).eq("endVertexId", endVertexId)
-                .eq("hops", 0).end());
-        if (size > 0) {
-            throw new IllegalArgumentException(String.format("edge from %s to %s has been exist", startVertexId, endVertexId));
+        // when the edges are added from the sinks up, a vertex has no incoming rows yet while its edges are added,
+        // so its rows are its direct edges plus each direct edge followed by a row of the successor (step 2 only).
+        // the successors are on lower levels, the vertices of a level are computed in parallel.
+        Map<VertexID, List<VertexID>> successors = DagLevels.successors(edges);
+        Map<VertexID, List<EdgeRow<VertexID>>> vertexRows = new ConcurrentHashMap<>();
+        for (List<VertexID> level : DagLevels.fromSinks(successors)) {
+            level.parallelStream().forEach(vertexId -> {
+                List<EdgeRow<VertexID>> rows = new ArrayList<>();
+                for (VertexID successorId : successors.getOrDefault(vertexId, Collections.emptyList())) {
+                    EdgeRow<VertexID> direct = new EdgeRow<>(null, vertexId, successorId, 0, 0);
+                    direct.entryEdge = direct;
+                    direct.directEdge = direct;
+                    direct.exitEdge = direct;
+                    rows.add(direct);
+                    for (EdgeRow<VertexID> outgoingRow : vertexRows.getOrDefault(successorId, Collections.emptyList())) {
+                        rows.add(new EdgeRow<>(null, direct, direct, outgoingRow, vertexId, outgoingRow.endVertexId, outgoingRow.hops + 1));
+                    }
+                }
+                vertexRows.put(vertexId, rows);
+            });
         }
+        List<EdgeRow<VertexID>> newRows = vertexRows.values().stream().flatMap(List::stream).collect(Collectors.toList());
+        log.info("closure of dag {} has {} rows", getDagId(), newRows.size());
 
-        Set incomingVertices = findIncomingVertices(startVertexId);
-        boolean hasCycle = incomingVertices.contains(endVertexId);
-        if (hasCycle) {
-            throw new IllegalArgumentException(String.format("add edge from %s to %s will cause cycle", startVertexId, endVertexId));
+        // the other dags sharing the table are not touched, readers see the old closure until the transaction commits
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("delete from " + getTableName() + " where dag_id = ?")) {
+                statement.setString(1, getDagId());
+                log.info("delete {} rows of dag {}", statement.executeUpdate(), getDagId());
+            }
+            insertEdgeRows(connection, newRows);
+            DagClosureTables.record(connection, getDagId(), getTableName());
+        });
+        return newRows.size();
+    }
+
+    private void checkDirectEdgesNotExist(Collection<Pair<VertexID, VertexID>> edges, Set<VertexID> startVertexIds, Set<VertexID> endVertexIds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select startVertexId, endVertexId from ").append(getEntityName())
+                .append(" where hops = 0 and dagId = :dagId and startVertexId in :startVertexIds and endVertexId in :endVertexIds");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setParameter("startVertexIds", startVertexIds).setParameter("endVertexIds", endVertexIds);
+        List<Object[]> existingEdges = query.getResultList();
+        Set<Pair<VertexID, VertexID>> edgeSet = new HashSet<>(edges);
+        for (Object[] existingEdge : existingEdges) {
+            if (edgeSet.contains(Pair.of(existingEdge[0], existingEdge[1]))) {
+                throw new IllegalArgumentException(String.format("edge from %s to %s has been exist", existingEdge[0], existingEdge[1]));
+            }
         }
+    }
+
+    private EdgeRows<VertexID> loadEdgeRows(Set<VertexID> startVertexIds, Set<VertexID> endVertexIds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select id, startVertexId, endVertexId, hops from ").append(getEntityName())
+                .append(" where dagId = :dagId and (endVertexId in :startVertexIds or startVertexId in :endVertexIds)");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setParameter("startVertexIds", startVertexIds).setParameter("endVertexIds", endVertexIds);
+        List<Object[]> resultList = query.getResultList();
+        EdgeRows<VertexID> rows = new EdgeRows<>();
+        for (Object[] result : resultList) {
+            rows.add(new EdgeRow<>((Long) result[0], (VertexID) result[1], (VertexID) result[2], (Integer) result[3], -1));
+        }
+        return rows;
+    }
+
+    /**
+     * insert level by level, a row is inserted after the new rows it refers to so that their generated ids are known.
+     * direct edges refer to themselves and are patched after insertion.
+     */
+    private void insertEdgeRows(Connection connection, List<EdgeRow<VertexID>> newRows) throws SQLException {
+        if (newRows.isEmpty())
+            return;
 
-        // insert direct edge
-        DagEdgeType edge = newDagEdge();
-        edge.setStartVertexId(startVertexId);
-        edge.setEndVertexId(endVertexId);
-        em.persist(edge);
-        Long id = edge.getId();
-        log.debug("edge id : " + edge.getId());
-
-        edge.setEntryEdgeId(id);
-        edge.setDirectEdgeId(id);
-        edge.setExitEdgeId(id);
-        em.merge(edge);
-
-        //step 1: A's incoming edges to B
-        StringBuilder insertSQL1 = new StringBuilder();
-        insertSQL1.append("insert into ").append(getEntityName()).append("(entryEdgeId, directEdgeId, exitEdgeId, startVertexId, endVertexId, hops, dagId) ")
-                .append("select id, ").append(id).append("L, ").append(id).append("L, startVertexId, ")
-                .append(":endVertexId, (hops + 1), :dagId ")
-                .append("from ").append(getEntityName()).append(" and endVertexId = :startVertexId");
-        log.debug(insertSQL1.toString());
-        javax.persistence.Query query = em.createQuery(insertSQL1.toString());
-        query.setParameter("startVertexId", startVertexId).setParameter("endVertexId", endVertexId).setParameter("dagId", edge.getDagId());
-        query.executeUpdate();
-
-        //step 2: A to B's outgoing edges
-        StringBuilder insertSQL2 = new StringBuilder();
-        insertSQL2.append("insert into ").append(getEntityName()).append("(entryEdgeId, directEdgeId, exitEdgeId, startVertexId, endVertexId, hops, dagId) ")
-                .append("select ").append(id).append("L, ").append(id).append("L, id, :startVertexId, ")
-                .append("endVertexId, (hops + 1), :dagId ")
-                .append("from ").append(getEntityName()).append(" and startVertexId = :endVertexId");
-        log.debug(insertSQL2.toString());
-        query = em.createQuery(insertSQL2.toString());
-        query.setParameter("startVertexId", startVertexId).setParameter("endVertexId", endVertexId).setParameter("dagId", edge.getDagId());
-        query.executeUpdate();
-
-        // step 3: A’s incoming edges to end vertex of B's outgoing edges
-        StringBuilder insertSQL3 = new StringBuilder();
-        insertSQL3.append("insert into ").append(getEntityName()).append("(entryEdgeId, directEdgeId, exitEdgeId, startVertexId, endVertexId, hops, dagId) ")
-                .append("select edgeA.id, ").append(id).append("L, edgeB.id, edgeA.startVertexId, edgeB.endVertexId, (edgeA.hops + edgeB.hops + 1), :dagId ")
-                .append("from ").append(getEntityName()).append(" edgeA, ").append(getEntityName()).append(" edgeB ")
-                .append("and edgeA.endVertexId = :startVertexId ")
-                .append("and edgeB.startVertexId = :endVertexId");
-        log.debug(insertSQL3.toString());
-        query = em.createQuery(insertSQL3.toString());
-        query.setParameter("startVertexId", startVertexId).setParameter("endVertexId", endVertexId).setParameter("dagId", edge.getDagId());
-        query.executeUpdate();
+        Map<Integer, List<EdgeRow<VertexID>>> levelRows = newRows.stream().collect(Collectors.groupingBy(row -> row.level, TreeMap::new, Collectors.toList()));
+        String insertSQL = "insert into " + getTableName() + " (entry_edge_id, direct_edge_id, exit_edge_id, start_vertex_id, end_vertex_id, hops, dag_id) " +
+                "values (?, ?, ?, ?, ?, ?, ?)";
+        log.debug(insertSQL);
+        for (List<EdgeRow<VertexID>> rows : levelRows.values()) {
+            for (List<EdgeRow<VertexID>> batch : Lists.partition(rows, BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(insertSQL, Statement.RETURN_GENERATED_KEYS)) {
+                    for (EdgeRow<VertexID> row : batch) {
+                        boolean direct = row.hops == 0;
+                        statement.setObject(1, direct ? null : row.entryEdge.id, Types.BIGINT);
+                        statement.setObject(2, direct ? null : row.directEdge.id, Types.BIGINT);
+                        statement.setObject(3, direct ? null : row.exitEdge.id, Types.BIGINT);
+                        statement.setString(4, row.startVertexId.toString());
+                        statement.setString(5, row.endVertexId.toString());
+                        statement.setInt(6, row.hops);
+                        statement.setString(7, getDagId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                        for (EdgeRow<VertexID> row : batch) {
+                            if (!generatedKeys.next()) {
+                                throw new IllegalStateException("generated keys of dag edges are less than inserted rows");
+                            }
+                            row.id = generatedKeys.getLong(1);
+                        }
+                    }
+                }
+            }
+            if (rows.get(0).level == 0) {
+                String updateSQL = "update " + getTableName() + " set entry_edge_id = id, direct_edge_id = id, exit_edge_id = id where dag_id = ? and id in (";
+                for (List<EdgeRow<VertexID>> batch : Lists.partition(rows, BATCH_SIZE)) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            batch.stream().map(row -> String.valueOf(row.id)).collect(Collectors.joining(",", updateSQL, ")")))) {
+                        statement.setString(1, getDagId());
+                        statement.executeUpdate();
+                    }
+                }
+            }
+        }
     }
 
     @Override
@@ -101,76 +251,207 @@ public abstract class DagEdgeDaoImpl<DagEdgeType extends DagEdge<VertexID>, Vert
         Preconditions.checkArgument(startVertexId != null, "Argument [startVertexId] can not be null.");
         Preconditions.checkArgument(endVertexId != null, "Argument [endVertexId] can not be null.");
         log.debug(String.format("remove edge: from %s to %s ", startVertexId, endVertexId));
+        vertexLocks.lock(Collections.singletonList(Pair.of(startVertexId, endVertexId)));
 
-        List<DagEdgeType> edges = find(Query.create().where().eq("startVertexId", startVertexId).eq("endVertexId", endVertexId)
+        Set<Long> edgeIds = findIds(Query.create().where().eq("startVertexId", startVertexId).eq("endVertexId", endVertexId)
                 .eq("hops", 0).eq("dagId", getDagId()).end());
-        if (edges.isEmpty()) {
+        if (edgeIds.isEmpty()) {
             throw new IllegalArgumentException(String.format("edge from %s to %s does not exist", startVertexId, endVertexId));
         } else {
-            DagEdgeType edge = edges.get(0);
-            removeEdges(edge.getId());
+            removeEdges(edgeIds.iterator().next(), startVertexId, endVertexId);
         }
     }
 
     @Override
-    public void removeEdgesOfVertex(VertexID vertexId) {
+    public int removeEdgesOfVertex(VertexID vertexId) {
         Preconditions.checkArgument(vertexId != null, "Argument [vertex] can not be null.");
+        log.debug("remove edges of vertex : " + vertexId);
+        vertexLocks.lock(Collections.singletonList(Pair.of(vertexId, vertexId)));
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("select id from ").append(getEntityName())
-                .append(" and (startVertexId = :startVertexId or endVertexId = :endVertexId) ")
-                .append("and dagId = :dagId ");
-        javax.persistence.Query query = em.createQuery(sb.toString());
-        query.setParameter("startVertexId", vertexId).setParameter("endVertexId", vertexId).setParameter("dagId", getDagId());
-        List<Long> edgeIds = query.getResultList();
-        edgeIds.forEach(edgeId -> removeEdges(edgeId));
+        // rows starting or ending at the vertex, and the rows built on them, which are the paths passing through the vertex
+        Set<Long> removeEdgeIds = findDependentEdgeIds(vertexId, vertexId, row -> vertexId.equals(row[4]) || vertexId.equals(row[5]));
+        log.debug("removeEdgeIds = " + removeEdgeIds);
+        return deleteByIds(removeEdgeIds);
     }
 
     @Override
     public Set<VertexID> findIncomingVertices(VertexID vertexId) {
-        List<DagEdgeType> edges = find(Query.create().where().eq("endVertexId", vertexId).eq("dagId", getDagId()).end());
-        Set<VertexID> incomingVertexIds = edges.stream().map(DagEdge::getStartVertexId).collect(Collectors.toSet());
+        Set<VertexID> incomingVertexIds = findPropertyValues(Query.create().where().eq("endVertexId", vertexId).eq("dagId", getDagId()).end(), "startVertexId");
         log.debug(String.format("incoming vertices of %s: %s", vertexId, incomingVertexIds));
         return incomingVertexIds;
     }
 
     @Override
     public Set<VertexID> findOutgoingVertices(VertexID vertexId) {
-        List<DagEdgeType> edges = find(Query.create().where().eq("startVertexId", vertexId).eq("dagId", getDagId()).end());
-        Set<VertexID> outgoingVertices = edges.stream().map(DagEdge::getEndVertexId).collect(Collectors.toSet());
+        Set<VertexID> outgoingVertices = findPropertyValues(Query.create().where().eq("startVertexId", vertexId).eq("dagId", getDagId()).end(), "endVertexId");
         log.debug(String.format("outgoing vertices of %s: %s", vertexId, outgoingVertices));
         return outgoingVertices;
     }
 
+    @Override
+    public Set<VertexID> findIncomingVertices(VertexID vertexId, int maxHops) {
+        Preconditions.checkArgument(vertexId != null, "Argument [vertexId] can not be null.");
+        Preconditions.checkArgument(maxHops > 0, "Argument [maxHops] must be positive.");
+
+        Set<VertexID> incomingVertexIds = findPropertyValues(Query.create().where().eq("endVertexId", vertexId).eq("dagId", getDagId())
+                .le("hops", maxHops - 1).end(), "startVertexId");
+        log.debug(String.format("incoming vertices of %s within %d hops: %s", vertexId, maxHops, incomingVertexIds));
+        return incomingVertexIds;
+    }
+
+    @Override
+    public Set<VertexID> findOutgoingVertices(VertexID vertexId, int maxHops) {
+        Preconditions.checkArgument(vertexId != null, "Argument [vertexId] can not be null.");
+        Preconditions.checkArgument(maxHops > 0, "Argument [maxHops] must be positive.");
+
+        Set<VertexID> outgoingVertices = findPropertyValues(Query.create().where().eq("startVertexId", vertexId).eq("dagId", getDagId())
+                .le("hops", maxHops - 1).end(), "endVertexId");
+        log.debug(String.format("outgoing vertices of %s within %d hops: %s", vertexId, maxHops, outgoingVertices));
+        return outgoingVertices;
+    }
+
+    private Set<VertexID> findAllIncomingVertices(Collection<VertexID> vertexIds) {
+        Set<VertexID> incomingVertexIds = new HashSet<>();
+        for (List<VertexID> batch : Lists.partition(new ArrayList<>(vertexIds), BATCH_SIZE)) {
+            incomingVertexIds.addAll(findPropertyValues(Query.create().where().in("endVertexId", new HashSet<>(batch)).eq("dagId", getDagId()).end(), "startVertexId"));
+        }
+        return incomingVertexIds;
+    }
+
+    private Set<VertexID> findAllOutgoingVertices(Collection<VertexID> vertexIds) {
+        Set<VertexID> outgoingVertexIds = new HashSet<>();
+        for (List<VertexID> batch : Lists.partition(new ArrayList<>(vertexIds), BATCH_SIZE)) {
+            outgoingVertexIds.addAll(findPropertyValues(Query.create().where().in("startVertexId", new HashSet<>(batch)).eq("dagId", getDagId()).end(), "endVertexId"));
+        }
+        return outgoingVertexIds;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select id from ").append(getEntityName()).append(" where dagId = :dagId");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setMaxResults(1);
+        return query.getResultList().isEmpty();
+    }
+
+    @Override
+    public boolean isStale() {
+        return DagClosureTables.isStale(em, getDagId(), getTableName());
+    }
+
+    @Override
+    public Integer distance(VertexID startVertexId, VertexID endVertexId) {
+        Preconditions.checkArgument(startVertexId != null, "Argument [startVertexId] can not be null.");
+        Preconditions.checkArgument(endVertexId != null, "Argument [endVertexId] can not be null.");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("select min(hops) from ").append(getEntityName())
+                .append(" where dagId = :dagId and startVertexId = :startVertexId and endVertexId = :endVertexId");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setParameter("startVertexId", startVertexId).setParameter("endVertexId", endVertexId);
+        Integer minHops = (Integer) query.getSingleResult();
+        return minHops == null ? null : minHops + 1;
+    }
+
+    @Override
+    public String getClosureTableName() {
+        return getTableName();
+    }
+
     protected DagEdgeType newDagEdge() {
         DagEdgeType edge = super.newInstance();
         edge.setDagId(getDagId());
         return edge;
     }
 
-    private void removeEdges(Long edgeId) {
+    private void removeEdges(Long edgeId, VertexID startVertexId, VertexID endVertexId) {
         log.debug("remove edge : " + edgeId);
-        //step 1: rows that were originally inserted with the first AddEdge call for this direct edge
-        Set<Long> removeEdgeIds = findIds(Query.create().where().eq("directEdgeId", edgeId).end());
-        removeEdgeIds.add(edgeId);
+        Set<Long> removeEdgeIds = findDependentEdgeIds(startVertexId, endVertexId, row -> edgeId.equals(row[0]));
         log.debug("removeEdgeIds = " + removeEdgeIds);
+        deleteByIds(removeEdgeIds);
+    }
 
-        //step 2: scan and find all dependent rows that are inserted afterwards
+    private Set<Long> findDependentEdgeIds(VertexID startVertexId, VertexID endVertexId, Predicate<Object[]> removed) {
+        //step 1: every row depending on the path from A to B starts from A or A's ascendants and ends at B or B's descendants
         StringBuilder sb = new StringBuilder();
-        sb.append("select id from ").append(getEntityName()).append(" and hops > 0 ")
-                .append("and (entryEdgeId in :ids or exitEdgeId in :ids) ")
-                .append("and id not in :ids");
-        while (true) {
-            javax.persistence.Query query = em.createQuery(sb.toString());
-            query.setParameter("ids", removeEdgeIds);
-            List<Long> ids = query.getResultList();
-            log.debug("ids = {}", ids);
-            if (ids.isEmpty()) {
-                break;
+        sb.append("select e.id, e.entryEdgeId, e.directEdgeId, e.exitEdgeId, e.startVertexId, e.endVertexId from ").append(getEntityName()).append(" e ")
+                .append("where e.dagId = :dagId ")
+                .append("and (e.startVertexId = :startVertexId or e.startVertexId in (select a.startVertexId from ").append(getEntityName())
+                .append(" a where a.endVertexId = :startVertexId and a.dagId = :dagId)) ")
+                .append("and (e.endVertexId = :endVertexId or e.endVertexId in (select d.endVertexId from ").append(getEntityName())
+                .append(" d where d.startVertexId = :endVertexId and d.dagId = :dagId)) ")
+                .append("order by e.hops");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setParameter("startVertexId", startVertexId).setParameter("endVertexId", endVertexId);
+        List<Object[]> candidates = query.getResultList();
+
+        //step 2: entry, direct and exit edges of a row have less hops than the row itself,
+        // so one pass in hops order finds all dependent rows that are inserted afterwards
+        Set<Long> removeEdgeIds = new HashSet<>();
+        for (Object[] candidate : candidates) {
+            if (removed.test(candidate) || removeEdgeIds.contains(candidate[1]) || removeEdgeIds.contains(candidate[2])
+                    || removeEdgeIds.contains(candidate[3])) {
+                removeEdgeIds.add((Long) candidate[0]);
             }
-            removeEdgeIds.addAll(ids);
         }
-        log.debug("removeEdgeIds = " + removeEdgeIds);
-        executeDelete(Junction.and().in("id", removeEdgeIds));
+        return removeEdgeIds;
+    }
+
+    private int deleteByIds(Collection<Long> ids) {
+        int count = 0;
+        for (List<Long> chunk : Lists.partition(new ArrayList<>(ids), BATCH_SIZE)) {
+            count += executeDelete(Junction.and().eq("dagId", getDagId()).in("id", new HashSet<>(chunk)));
+        }
+        return count;
+    }
+
+    private static class EdgeRow<VertexID> {
+
+        private Long id;
+        private EdgeRow<VertexID> entryEdge;
+        private EdgeRow<VertexID> directEdge;
+        private EdgeRow<VertexID> exitEdge;
+        private final VertexID startVertexId;
+        private final VertexID endVertexId;
+        private final int hops;
+        // -1: existing row, 0: new direct edge, n: new implied edge which must be inserted after its entry and exit edges
+        private final int level;
+
+        EdgeRow(Long id, VertexID startVertexId, VertexID endVertexId, int hops, int level) {
+            this.id = id;
+            this.startVertexId = startVertexId;
+            this.endVertexId = endVertexId;
+            this.hops = hops;
+            this.level = level;
+        }
+
+        EdgeRow(Long id, EdgeRow<VertexID> entryEdge, EdgeRow<VertexID> directEdge, EdgeRow<VertexID> exitEdge,
+                VertexID startVertexId, VertexID endVertexId, int hops) {
+            this(id, startVertexId, endVertexId, hops, 1 + Math.max(entryEdge.level, exitEdge.level));
+            this.entryEdge = entryEdge;
+            this.directEdge = directEdge;
+            this.exitEdge = exitEdge;
+        }
+    }
+
+    private static class EdgeRows<VertexID> {
+
+        private final Map<VertexID, List<EdgeRow<VertexID>>> startVertexRows = new HashMap<>();
+        private final Map<VertexID, List<EdgeRow<VertexID>>> endVertexRows = new HashMap<>();
+
+        EdgeRow<VertexID> add(EdgeRow<VertexID> row) {
+            startVertexRows.computeIfAbsent(row.startVertexId, key -> new ArrayList<>()).add(row);
+            endVertexRows.computeIfAbsent(row.endVertexId, key -> new ArrayList<>()).add(row);
+            return row;
+        }
+
+        List<EdgeRow<VertexID>> startFrom(VertexID vertexId) {
+            return startVertexRows.getOrDefault(vertexId, Collections.emptyList());
+        }
+
+        List<EdgeRow<VertexID>> endAt(VertexID vertexId) {
+            return endVertexRows.getOrDefault(vertexId, Collections.emptyList());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package graph;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * in-memory adjacency of a DAG, kept consistent with the database after each commit
+ *
+ * @author csieflyman
+ */
+public interface DagIndex<VertexID extends Serializable> {
+
+    boolean isReady();
+
+    void reload();
+
+    void addEdge(VertexID startVertexId, VertexID endVertexId);
+
+    void addEdges(Collection<Pair<VertexID, VertexID>> edges);
+
+    void removeEdge(VertexID startVertexId, VertexID endVertexId);
+
+    void removeEdges(Collection<Pair<VertexID, VertexID>> edges);
+
+    void removeVertex(VertexID vertexId);
+
+    Set<VertexID> findIncomingVertices(VertexID vertexId);
+
+    Set<VertexID> findOutgoingVertices(VertexID vertexId);
+
+    /**
+     * @param maxHops max number of edges of the path, same as distance, 1 means the direct incoming vertices only
+     */
+    Set<VertexID> findIncomingVertices(VertexID vertexId, int maxHops);
+
+    Set<VertexID> findOutgoingVertices(VertexID vertexId, int maxHops);
+
+    /**
+     * @return number of edges of the shortest path, null if the end vertex is unreachable
+     */
+    Integer distance(VertexID startVertexId, VertexID endVertexId);
+
+    boolean isAncestor(VertexID ancestorId, VertexID descendantId);
+
+    Map<Pair<VertexID, VertexID>, Boolean> isAncestor(Collection<Pair<VertexID, VertexID>> pairs);
+}
@@ -0,0 +1,289 @@
+package graph;
+
+import base.util.TransactionUtils;
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * DagIndex backed by an immutable CsrGraph snapshot and its ReachabilityLabels.
+ * vertex ids are interned to dense ints (append-only, never reused), readers never lock.
+ * changes made in a transaction are buffered and applied after commit to a copy-on-write graph, which only copies the changed rows.
+ *
+ * @author csieflyman
+ */
+@Slf4j
+public abstract class DagIndexImpl<VertexID extends Serializable> implements DagIndex<VertexID> {
+
+    abstract protected List<Pair<VertexID, VertexID>> loadEdges();
+
+    private final Map<VertexID, Integer> vertexIndexes = new ConcurrentHashMap<>();
+    private volatile Object[] vertices = new Object[1024];
+    private int vertexCount = 0;
+
+    private volatile ReachabilityLabels labels = ReachabilityLabels.build(CsrGraph.EMPTY);
+    private volatile boolean ready = false;
+
+    private final Object writeLock = new Object();
+    private boolean loading = true;
+    private final List<Delta<VertexID>> pendingDeltas = new ArrayList<>();
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void reload() {
+        synchronized (writeLock) {
+            loading = true;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            List<Pair<VertexID, VertexID>> edgeList = loadEdges();
+            synchronized (writeLock) {
+                long[] edges = new long[edgeList.size()];
+                for (int i = 0; i < edges.length; i++) {
+                    Pair<VertexID, VertexID> edge = edgeList.get(i);
+                    edges[i] = CsrGraph.edge(intern(edge.getLeft()), intern(edge.getRight()));
+                }
+                labels = ReachabilityLabels.build(CsrGraph.build(vertexCount, edges, edges.length));
+                // changes committed during loading may or may not be seen by the query, apply them again (idempotent)
+                pendingDeltas.forEach(this::applyDelta);
+                pendingDeltas.clear();
+                loading = false;
+                ready = true;
+            }
+            CsrGraph graph = labels.graph();
+            log.info("{} loaded: {} vertices, {} edges in {} ms", getClass().getSimpleName(), graph.vertexCount(), graph.edgeCount(),
+                    System.currentTimeMillis() - startTime);
+        } catch (RuntimeException e) {
+            synchronized (writeLock) {
+                loading = false;
+                ready = false;
+                pendingDeltas.clear();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void addEdge(VertexID startVertexId, VertexID endVertexId) {
+        addEdges(Collections.singletonList(Pair.of(startVertexId, endVertexId)));
+    }
+
+    @Override
+    public void addEdges(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "edges must not be null");
+
+        edges.forEach(edge -> checkEdge(edge.getLeft(), edge.getRight()));
+        afterCommit(delta -> edges.forEach(edge -> delta.addEdge(edge.getLeft(), edge.getRight())));
+    }
+
+    @Override
+    public void removeEdge(VertexID startVertexId, VertexID endVertexId) {
+        removeEdges(Collections.singletonList(Pair.of(startVertexId, endVertexId)));
+    }
+
+    @Override
+    public void removeEdges(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "edges must not be null");
+
+        edges.forEach(edge -> checkEdge(edge.getLeft(), edge.getRight()));
+        afterCommit(delta -> edges.forEach(edge -> delta.removeEdge(edge.getLeft(), edge.getRight())));
+    }
+
+    @Override
+    public void removeVertex(VertexID vertexId) {
+        Preconditions.checkArgument(vertexId != null, "vertexId must not be null");
+
+        afterCommit(delta -> delta.removeVertex(vertexId));
+    }
+
+    @Override
+    public Set<VertexID> findIncomingVertices(VertexID vertexId) {
+        Preconditions.checkArgument(vertexId != null, "vertexId must not be null");
+
+        CsrGraph snapshot = labels.graph();
+        Integer vertex = vertexIndexes.get(vertexId);
+        return vertex == null ? new HashSet<>() : toVertexIds(snapshot.findIncomingVertices(vertex));
+    }
+
+    @Override
+    public Set<VertexID> findOutgoingVertices(VertexID vertexId) {
+        Preconditions.checkArgument(vertexId != null, "vertexId must not be null");
+
+        CsrGraph snapshot = labels.graph();
+        Integer vertex = vertexIndexes.get(vertexId);
+        return vertex == null ? new HashSet<>() : toVertexIds(snapshot.findOutgoingVertices(vertex));
+    }
+
+    @Override
+    public Set<VertexID> findIncomingVertices(VertexID vertexId, int maxHops) {
+        Preconditions.checkArgument(vertexId != null, "vertexId must not be null");
+        Preconditions.checkArgument(maxHops > 0, "maxHops must be positive");
+
+        CsrGraph snapshot = labels.graph();
+        Integer vertex = vertexIndexes.get(vertexId);
+        return vertex == null ? new HashSet<>() : toVertexIds(snapshot.findIncomingVertices(vertex, maxHops));
+    }
+
+    @Override
+    public Set<VertexID> findOutgoingVertices(VertexID vertexId, int maxHops) {
+        Preconditions.checkArgument(vertexId != null, "vertexId must not be null");
+        Preconditions.checkArgument(maxHops > 0, "maxHops must be positive");
+
+        CsrGraph snapshot = labels.graph();
+        Integer vertex = vertexIndexes.get(vertexId);
+        return vertex == null ? new HashSet<>() : toVertexIds(snapshot.findOutgoingVertices(vertex, maxHops));
+    }
+
+    @Override
+    public Integer distance(VertexID startVertexId, VertexID endVertexId) {
+        checkEdge(startVertexId, endVertexId);
+
+        ReachabilityLabels snapshot = labels;
+        if (!isAncestor(snapshot, startVertexId, endVertexId))
+            return null;
+        int distance = snapshot.graph().distance(vertexIndexes.get(startVertexId), vertexIndexes.get(endVertexId));
+        return distance < 0 ? null : distance;
+    }
+
+    @Override
+    public boolean isAncestor(VertexID ancestorId, VertexID descendantId) {
+        Preconditions.checkArgument(ancestorId != null, "ancestorId must not be null");
+        Preconditions.checkArgument(descendantId != null, "descendantId must not be null");
+
+        return isAncestor(labels, ancestorId, descendantId);
+    }
+
+    @Override
+    public Map<Pair<VertexID, VertexID>, Boolean> isAncestor(Collection<Pair<VertexID, VertexID>> pairs) {
+        Preconditions.checkArgument(pairs != null, "pairs must not be null");
+        pairs.forEach(pair -> checkEdge(pair.getLeft(), pair.getRight()));
+
+        ReachabilityLabels snapshot = labels;
+        return pairs.parallelStream().distinct()
+                .collect(Collectors.toMap(Function.identity(), pair -> isAncestor(snapshot, pair.getLeft(), pair.getRight())));
+    }
+
+    private boolean isAncestor(ReachabilityLabels snapshot, VertexID ancestorId, VertexID descendantId) {
+        Integer ancestor = vertexIndexes.get(ancestorId);
+        Integer descendant = vertexIndexes.get(descendantId);
+        return ancestor != null && descendant != null && snapshot.isReachable(ancestor, descendant);
+    }
+
+    private Set<VertexID> toVertexIds(int[] vertexArray) {
+        Object[] vertexIdArray = vertices;
+        Set<VertexID> vertexIds = new HashSet<>((int) (vertexArray.length / 0.75f) + 1);
+        for (int vertex : vertexArray) {
+            vertexIds.add((VertexID) vertexIdArray[vertex]);
+        }
+        return vertexIds;
+    }
+
+    private void checkEdge(VertexID startVertexId, VertexID endVertexId) {
+        Preconditions.checkArgument(startVertexId != null, "startVertexId must not be null");
+        Preconditions.checkArgument(endVertexId != null, "endVertexId must not be null");
+    }
+
+    private void afterCommit(Consumer<Delta<VertexID>> collector) {
+        TransactionUtils.afterCommit(this, Delta::new, collector, this::apply);
+    }
+
+    private void apply(Delta<VertexID> delta) {
+        synchronized (writeLock) {
+            if (loading) {
+                pendingDeltas.add(delta);
+            } else {
+                applyDelta(delta);
+            }
+        }
+    }
+
+    private void applyDelta(Delta<VertexID> delta) {
+        Map<Long, Boolean> edgeChanges = new LinkedHashMap<>();
+        BitSet removedVertices = new BitSet();
+        for (Operation<VertexID> operation : delta.operations) {
+            if (operation.endVertexId == null) {
+                Integer vertex = vertexIndexes.get(operation.startVertexId);
+                if (vertex == null)
+                    continue;
+                removedVertices.set(vertex);
+                Iterator<Long> iterator = edgeChanges.keySet().iterator();
+                while (iterator.hasNext()) {
+                    long edge = iterator.next();
+                    if (CsrGraph.startVertex(edge) == vertex || CsrGraph.endVertex(edge) == vertex) {
+                        iterator.remove();
+                    }
+                }
+            } else {
+                edgeChanges.put(CsrGraph.edge(intern(operation.startVertexId), intern(operation.endVertexId)), operation.added);
+            }
+        }
+        CsrGraph graph = labels.graph().apply(vertexCount, edgeChanges, removedVertices);
+        long[] addedEdges = edgeChanges.entrySet().stream().filter(Map.Entry::getValue).mapToLong(Map.Entry::getKey).toArray();
+        boolean removed = !removedVertices.isEmpty() || edgeChanges.containsValue(false);
+        labels = labels.update(graph, addedEdges, removed);
+    }
+
+    private int intern(VertexID vertexId) {
+        Integer vertex = vertexIndexes.get(vertexId);
+        if (vertex != null)
+            return vertex;
+
+        if (vertexCount == vertices.length) {
+            vertices = Arrays.copyOf(vertices, vertexCount * 2);
+        }
+        vertices[vertexCount] = vertexId;
+        vertexIndexes.put(vertexId, vertexCount);
+        return vertexCount++;
+    }
+
+    private static class Delta<VertexID> {
+
+        private final List<Operation<VertexID>> operations = new ArrayList<>();
+
+        void addEdge(VertexID startVertexId, VertexID endVertexId) {
+            operations.add(new Operation<>(startVertexId, endVertexId, true));
+        }
+
+        void removeEdge(VertexID startVertexId, VertexID endVertexId) {
+            operations.add(new Operation<>(startVertexId, endVertexId, false));
+        }
+
+        void removeVertex(VertexID vertexId) {
+            operations.add(new Operation<>(vertexId, null, false));
+        }
+    }
+
+    private static class Operation<VertexID> {
+
+        private final VertexID startVertexId;
+        private final VertexID endVertexId;
+        private final boolean added;
+
+        Operation(VertexID startVertexId, VertexID endVertexId, boolean added) {
+            this.startVertexId = startVertexId;
+            this.endVertexId = endVertexId;
+            this.added = added;
+        }
+    }
+}
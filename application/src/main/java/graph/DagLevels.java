@@ -0,0 +1,70 @@
+package graph;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.*;
+
+/**
+ * @author csieflyman
+ */
+final class DagLevels {
+
+    private DagLevels() {
+    }
+
+    static <VertexID> Map<VertexID, List<VertexID>> successors(Collection<Pair<VertexID, VertexID>> edges) {
+        Map<VertexID, Set<VertexID>> successorSets = new LinkedHashMap<>();
+        for (Pair<VertexID, VertexID> edge : edges) {
+            successorSets.computeIfAbsent(edge.getLeft(), key -> new LinkedHashSet<>()).add(edge.getRight());
+        }
+        Map<VertexID, List<VertexID>> successors = new HashMap<>();
+        successorSets.forEach((vertexId, successorIds) -> successors.put(vertexId, new ArrayList<>(successorIds)));
+        return successors;
+    }
+
+    /**
+     * vertices grouped by height (the longest path to a sink), sinks first.
+     * all successors of a vertex are on lower levels, so the vertices of a level can be processed in parallel.
+     */
+    static <VertexID> List<List<VertexID>> fromSinks(Map<VertexID, List<VertexID>> successors) {
+        Map<VertexID, Integer> pendingCounts = new HashMap<>();
+        Map<VertexID, List<VertexID>> predecessors = new HashMap<>();
+        successors.forEach((vertexId, successorIds) -> {
+            pendingCounts.merge(vertexId, successorIds.size(), Integer::sum);
+            for (VertexID successorId : successorIds) {
+                pendingCounts.putIfAbsent(successorId, 0);
+                predecessors.computeIfAbsent(successorId, key -> new ArrayList<>()).add(vertexId);
+            }
+        });
+
+        Map<VertexID, Integer> heights = new HashMap<>();
+        Deque<VertexID> readyIds = new ArrayDeque<>();
+        pendingCounts.forEach((vertexId, count) -> {
+            if (count == 0) {
+                readyIds.add(vertexId);
+                heights.put(vertexId, 0);
+            }
+        });
+        List<List<VertexID>> levels = new ArrayList<>();
+        int count = 0;
+        while (!readyIds.isEmpty()) {
+            VertexID vertexId = readyIds.poll();
+            int height = heights.get(vertexId);
+            while (levels.size() <= height) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(height).add(vertexId);
+            count++;
+            for (VertexID predecessorId : predecessors.getOrDefault(vertexId, Collections.emptyList())) {
+                heights.merge(predecessorId, height + 1, Math::max);
+                if (pendingCounts.merge(predecessorId, -1, Integer::sum) == 0) {
+                    readyIds.add(predecessorId);
+                }
+            }
+        }
+        if (count != pendingCounts.size()) {
+            throw new IllegalArgumentException(String.format("edges contain cycle, %d vertices are on or above a cycle", pendingCounts.size() - count));
+        }
+        return levels;
+    }
+}
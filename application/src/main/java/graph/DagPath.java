@@ -0,0 +1,31 @@
+package graph;
+
+import base.model.Identifiable;
+
+import java.io.Serializable;
+
+/**
+ * @author csieflyman
+ */
+public interface DagPath<VertexID extends Serializable> extends Identifiable<Long> {
+
+    VertexID getStartVertexId();
+
+    void setStartVertexId(VertexID startVertexId);
+
+    VertexID getEndVertexId();
+
+    void setEndVertexId(VertexID endVertexId);
+
+    Long getPathCount();
+
+    void setPathCount(Long pathCount);
+
+    Integer getMinHops();
+
+    void setMinHops(Integer minHops);
+
+    String getDagId();
+
+    void setDagId(String dagId);
+}
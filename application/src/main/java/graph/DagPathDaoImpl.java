@@ -0,0 +1,559 @@
+package graph;
+
+import base.dao.AbstractJPADaoImpl;
+import base.util.query.Junction;
+import base.util.query.Query;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+
+/**
+ * closure table storing one row per (start vertex, end vertex) pair with the number of distinct paths and the minimum hops,
+ * instead of one row per path as DagEdgeDaoImpl does.
+ * adding or removing an edge A->B changes the path count of every pair (X, Y) reaching A and reachable from B
+ * by paths(X, A) * paths(B, Y). the minimum hops of the remaining pairs are recomputed after removal.
+ *
+ * @author csieflyman
+ */
+@Slf4j
+public abstract class DagPathDaoImpl<DagPathType extends DagPath<VertexID>, VertexID extends Serializable> extends AbstractJPADaoImpl<DagPathType, Long> implements DagEdgeDao<VertexID> {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    abstract protected String getDagId();
+
+    @PersistenceContext
+    protected EntityManager em;
+
+    @Value("${party.dag.lock.database:false}")
+    private boolean databaseLock;
+    @Value("${party.dag.lock.timeout-ms:10000}")
+    private long lockTimeoutMillis;
+    private DagVertexLocks<VertexID> vertexLocks;
+
+    @PostConstruct
+    public void init() {
+        setEntityManager(em);
+        vertexLocks = new DagVertexLocks<>(this::findAllIncomingVertices, this::findAllOutgoingVertices, getDagId(),
+                databaseLock ? StripedLocks.databaseLock(em, "dag_lock", "dag_id", getDagId()) : null, lockTimeoutMillis);
+    }
+
+    @Override
+    public void lockEdges(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "Argument [edges] can not be null.");
+        vertexLocks.lock(edges);
+    }
+
+    @Override
+    public void lockAll() {
+        vertexLocks.lockAll();
+    }
+
+    @Override
+    public void addEdges(VertexID startVertexId, VertexID endVertexId) {
+        addEdges(Collections.singletonList(Pair.of(startVertexId, endVertexId)));
+    }
+
+    @Override
+    public void addEdges(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "Argument [edges] can not be null.");
+        edges.forEach(edge -> {
+            Preconditions.checkArgument(edge.getLeft() != null, "Argument [startVertexId] can not be null.");
+            Preconditions.checkArgument(edge.getRight() != null, "Argument [endVertexId] can not be null.");
+        });
+        if (edges.isEmpty())
+            return;
+        log.debug("add {} edges", edges.size());
+        vertexLocks.lock(edges);
+
+        Set<VertexID> startVertexIds = edges.stream().map(Pair::getLeft).collect(Collectors.toSet());
+        Set<VertexID> endVertexIds = edges.stream().map(Pair::getRight).collect(Collectors.toSet());
+        checkDirectEdgesNotExist(edges, startVertexIds, endVertexIds);
+
+        // the paths through an edge A->B only depend on the rows ending at A and the rows starting from B,
+        // load them once and apply the edges one by one in memory, so later edges see the paths of earlier ones
+        PathRows<VertexID> rows = new PathRows<>();
+        findPaths("endVertexId", startVertexIds).forEach(rows::load);
+        findPaths("startVertexId", endVertexIds).forEach(rows::load);
+        Set<Pair<VertexID, VertexID>> addedEdges = new HashSet<>();
+        for (Pair<VertexID, VertexID> edge : edges) {
+            VertexID startVertexId = edge.getLeft();
+            VertexID endVertexId = edge.getRight();
+            if (!addedEdges.add(edge)) {
+                throw new IllegalArgumentException(String.format("edge from %s to %s has been exist", startVertexId, endVertexId));
+            }
+            List<PathRow<VertexID>> incomingRows = new ArrayList<>(rows.endAt(startVertexId));
+            if (startVertexId.equals(endVertexId) || incomingRows.stream().anyMatch(row -> row.startVertexId.equals(endVertexId))) {
+                throw new IllegalArgumentException(String.format("add edge from %s to %s will cause cycle", startVertexId, endVertexId));
+            }
+            List<PathRow<VertexID>> outgoingRows = new ArrayList<>(rows.startFrom(endVertexId));
+
+            rows.addPaths(startVertexId, endVertexId, 1, 0);
+            for (PathRow<VertexID> incomingRow : incomingRows) {
+                rows.addPaths(incomingRow.startVertexId, endVertexId, incomingRow.pathCount, incomingRow.minHops + 1);
+            }
+            for (PathRow<VertexID> outgoingRow : outgoingRows) {
+                rows.addPaths(startVertexId, outgoingRow.endVertexId, outgoingRow.pathCount, outgoingRow.minHops + 1);
+            }
+            for (PathRow<VertexID> incomingRow : incomingRows) {
+                for (PathRow<VertexID> outgoingRow : outgoingRows) {
+                    rows.addPaths(incomingRow.startVertexId, outgoingRow.endVertexId, incomingRow.pathCount * outgoingRow.pathCount,
+                            incomingRow.minHops + outgoingRow.minHops + 2);
+                }
+            }
+        }
+        upsertPaths(rows.addedRows());
+    }
+
+    @Override
+    public int rebuild(Collection<Pair<VertexID, VertexID>> edges) {
+        Preconditions.checkArgument(edges != null, "Argument [edges] can not be null.");
+        log.info("rebuild dag {} from {} edges", getDagId(), edges.size());
+
+        // paths of a vertex = its direct edges plus its direct edges followed by the paths of the successors,
+        // the successors are on lower levels, the vertices of a level are computed in parallel
+        Map<VertexID, List<VertexID>> successors = DagLevels.successors(edges);
+        Map<VertexID, Collection<PathRow<VertexID>>> vertexPaths = new ConcurrentHashMap<>();
+        for (List<VertexID> level : DagLevels.fromSinks(successors)) {
+            level.parallelStream().forEach(vertexId -> {
+                Map<VertexID, PathRow<VertexID>> paths = new HashMap<>();
+                for (VertexID successorId : successors.getOrDefault(vertexId, Collections.emptyList())) {
+                    addPaths(paths, vertexId, successorId, 1, 0);
+                    for (PathRow<VertexID> outgoingRow : vertexPaths.getOrDefault(successorId, Collections.emptyList())) {
+                        addPaths(paths, vertexId, outgoingRow.endVertexId, outgoingRow.pathCount, outgoingRow.minHops + 1);
+                    }
+                }
+                vertexPaths.put(vertexId, paths.values());
+            });
+        }
+        List<PathRow<VertexID>> rows = vertexPaths.values().stream().flatMap(Collection::stream).collect(Collectors.toList());
+        log.info("closure of dag {} has {} rows", getDagId(), rows.size());
+
+        // the other dags sharing the table are not touched, readers see the old closure until the transaction commits
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("delete from " + getTableName() + " where dag_id = ?")) {
+                statement.setString(1, getDagId());
+                log.info("delete {} rows of dag {}", statement.executeUpdate(), getDagId());
+            }
+            String insertSQL = "insert into " + getTableName() + " (start_vertex_id, end_vertex_id, path_count, min_hops, dag_id) values (?, ?, ?, ?, ?)";
+            for (List<PathRow<VertexID>> batch : Lists.partition(rows, BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(insertSQL)) {
+                    for (PathRow<VertexID> row : batch) {
+                        statement.setString(1, row.startVertexId.toString());
+                        statement.setString(2, row.endVertexId.toString());
+                        statement.setLong(3, row.pathCount);
+                        statement.setInt(4, row.minHops);
+                        statement.setString(5, getDagId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            DagClosureTables.record(connection, getDagId(), getTableName());
+        });
+        return rows.size();
+    }
+
+    private static <VertexID> void addPaths(Map<VertexID, PathRow<VertexID>> paths, VertexID startVertexId, VertexID endVertexId, long pathCount, int hops) {
+        PathRow<VertexID> row = paths.computeIfAbsent(endVertexId, key -> new PathRow<>(null, startVertexId, endVertexId, 0, UNREACHABLE));
+        row.pathCount += pathCount;
+        row.minHops = Math.min(row.minHops, hops);
+    }
+
+    @Override
+    public void removeEdges(VertexID startVertexId, VertexID endVertexId) {
+        Preconditions.checkArgument(startVertexId != null, "Argument [startVertexId] can not be null.");
+        Preconditions.checkArgument(endVertexId != null, "Argument [endVertexId] can not be null.");
+        log.debug(String.format("remove edge: from %s to %s ", startVertexId, endVertexId));
+        vertexLocks.lock(Collections.singletonList(Pair.of(startVertexId, endVertexId)));
+
+        long size = findSize(Query.create().where().eq("startVertexId", startVertexId).eq("endVertexId", endVertexId)
+                .eq("minHops", 0).eq("dagId", getDagId()).end());
+        if (size == 0) {
+            throw new IllegalArgumentException(String.format("edge from %s to %s does not exist", startVertexId, endVertexId));
+        }
+
+        // A and its ascendants, B and its descendants, the vertex itself is 0 hops away by 1 path
+        List<PathRow<VertexID>> sources = findPaths("endVertexId", Collections.singleton(startVertexId));
+        sources.add(new PathRow<>(null, startVertexId, startVertexId, 1, -1));
+        List<PathRow<VertexID>> targets = findPaths("startVertexId", Collections.singleton(endVertexId));
+        targets.add(new PathRow<>(null, endVertexId, endVertexId, 1, -1));
+        removePaths(sources, targets, (vertexId, successorId) -> vertexId.equals(startVertexId) && successorId.equals(endVertexId));
+    }
+
+    @Override
+    public int removeEdgesOfVertex(VertexID vertexId) {
+        Preconditions.checkArgument(vertexId != null, "Argument [vertex] can not be null.");
+        log.debug("remove edges of vertex : " + vertexId);
+        vertexLocks.lock(Collections.singletonList(Pair.of(vertexId, vertexId)));
+
+        List<PathRow<VertexID>> sources = findPaths("endVertexId", Collections.singleton(vertexId));
+        List<PathRow<VertexID>> targets = findPaths("startVertexId", Collections.singleton(vertexId));
+        int count = removePaths(sources, targets, (sourceId, successorId) -> successorId.equals(vertexId));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ").append(getEntityName())
+                .append(" where dagId = :dagId and (startVertexId = :vertexId or endVertexId = :vertexId)");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setParameter("vertexId", vertexId);
+        return count + query.executeUpdate();
+    }
+
+    @Override
+    public Set<VertexID> findIncomingVertices(VertexID vertexId) {
+        Set<VertexID> incomingVertexIds = findPropertyValues(Query.create().where().eq("endVertexId", vertexId).eq("dagId", getDagId()).end(), "startVertexId");
+        log.debug(String.format("incoming vertices of %s: %s", vertexId, incomingVertexIds));
+        return incomingVertexIds;
+    }
+
+    @Override
+    public Set<VertexID> findOutgoingVertices(VertexID vertexId) {
+        Set<VertexID> outgoingVertices = findPropertyValues(Query.create().where().eq("startVertexId", vertexId).eq("dagId", getDagId()).end(), "endVertexId");
+        log.debug(String.format("outgoing vertices of %s: %s", vertexId, outgoingVertices));
+        return outgoingVertices;
+    }
+
+    @Override
+    public Set<VertexID> findIncomingVertices(VertexID vertexId, int maxHops) {
+        Preconditions.checkArgument(vertexId != null, "Argument [vertexId] can not be null.");
+        Preconditions.checkArgument(maxHops > 0, "Argument [maxHops] must be positive.");
+
+        Set<VertexID> incomingVertexIds = findPropertyValues(Query.create().where().eq("endVertexId", vertexId).eq("dagId", getDagId())
+                .le("minHops", maxHops - 1).end(), "startVertexId");
+        log.debug(String.format("incoming vertices of %s within %d hops: %s", vertexId, maxHops, incomingVertexIds));
+        return incomingVertexIds;
+    }
+
+    @Override
+    public Set<VertexID> findOutgoingVertices(VertexID vertexId, int maxHops) {
+        Preconditions.checkArgument(vertexId != null, "Argument [vertexId] can not be null.");
+        Preconditions.checkArgument(maxHops > 0, "Argument [maxHops] must be positive.");
+
+        Set<VertexID> outgoingVertices = findPropertyValues(Query.create().where().eq("startVertexId", vertexId).eq("dagId", getDagId())
+                .le("minHops", maxHops - 1).end(), "endVertexId");
+        log.debug(String.format("outgoing vertices of %s within %d hops: %s", vertexId, maxHops, outgoingVertices));
+        return outgoingVertices;
+    }
+
+    private Set<VertexID> findAllIncomingVertices(Collection<VertexID> vertexIds) {
+        Set<VertexID> incomingVertexIds = new HashSet<>();
+        for (List<VertexID> batch : Lists.partition(new ArrayList<>(vertexIds), BATCH_SIZE)) {
+            incomingVertexIds.addAll(findPropertyValues(Query.create().where().in("endVertexId", new HashSet<>(batch)).eq("dagId", getDagId()).end(), "startVertexId"));
+        }
+        return incomingVertexIds;
+    }
+
+    private Set<VertexID> findAllOutgoingVertices(Collection<VertexID> vertexIds) {
+        Set<VertexID> outgoingVertexIds = new HashSet<>();
+        for (List<VertexID> batch : Lists.partition(new ArrayList<>(vertexIds), BATCH_SIZE)) {
+            outgoingVertexIds.addAll(findPropertyValues(Query.create().where().in("startVertexId", new HashSet<>(batch)).eq("dagId", getDagId()).end(), "endVertexId"));
+        }
+        return outgoingVertexIds;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select id from ").append(getEntityName()).append(" where dagId = :dagId");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setMaxResults(1);
+        return query.getResultList().isEmpty();
+    }
+
+    @Override
+    public boolean isStale() {
+        return DagClosureTables.isStale(em, getDagId(), getTableName());
+    }
+
+    @Override
+    public Integer distance(VertexID startVertexId, VertexID endVertexId) {
+        Preconditions.checkArgument(startVertexId != null, "Argument [startVertexId] can not be null.");
+        Preconditions.checkArgument(endVertexId != null, "Argument [endVertexId] can not be null.");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("select min(minHops) from ").append(getEntityName())
+                .append(" where dagId = :dagId and startVertexId = :startVertexId and endVertexId = :endVertexId");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("dagId", getDagId()).setParameter("startVertexId", startVertexId).setParameter("endVertexId", endVertexId);
+        Integer minHops = (Integer) query.getSingleResult();
+        return minHops == null ? null : minHops + 1;
+    }
+
+    @Override
+    public String getClosureTableName() {
+        return getTableName();
+    }
+
+    private void checkDirectEdgesNotExist(Collection<Pair<VertexID, VertexID>> edges, Set<VertexID> startVertexIds, Set<VertexID> endVertexIds) {
+        Set<Pair<VertexID, VertexID>> edgeSet = new HashSet<>(edges);
+        for (PathRow<VertexID> row : findPaths(startVertexIds, endVertexIds)) {
+            if (row.minHops == 0 && edgeSet.contains(Pair.of(row.startVertexId, row.endVertexId))) {
+                throw new IllegalArgumentException(String.format("edge from %s to %s has been exist", row.startVertexId, row.endVertexId));
+            }
+        }
+    }
+
+    /**
+     * subtract the paths from each source X to each target Y passing through the removed edges: paths(X, A) * paths(B, Y)
+     */
+    private int removePaths(List<PathRow<VertexID>> sources, List<PathRow<VertexID>> targets, BiPredicate<VertexID, VertexID> removedDirectEdge) {
+        if (sources.isEmpty() || targets.isEmpty())
+            return 0;
+
+        List<VertexID> sourceIds = sources.stream().map(row -> row.startVertexId).collect(Collectors.toList());
+        List<VertexID> targetIds = targets.stream().map(row -> row.endVertexId).collect(Collectors.toList());
+        Map<Pair<VertexID, VertexID>, PathRow<VertexID>> pairRows = findPaths(sourceIds, targetIds).stream()
+                .collect(Collectors.toMap(row -> Pair.of(row.startVertexId, row.endVertexId), row -> row));
+
+        List<PathRow<VertexID>> updatedRows = new ArrayList<>();
+        List<Long> deletedIds = new ArrayList<>();
+        for (PathRow<VertexID> source : sources) {
+            for (PathRow<VertexID> target : targets) {
+                PathRow<VertexID> row = pairRows.get(Pair.of(source.startVertexId, target.endVertexId));
+                if (row == null)
+                    continue;
+                row.pathCount -= source.pathCount * target.pathCount;
+                if (row.pathCount > 0) {
+                    updatedRows.add(row);
+                } else {
+                    deletedIds.add(row.id);
+                }
+            }
+        }
+        if (!updatedRows.isEmpty()) {
+            recomputeMinHops(sourceIds, targetIds, removedDirectEdge, updatedRows);
+        }
+        log.debug("update {} paths, delete {} paths", updatedRows.size(), deletedIds.size());
+
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            String updateSQL = "update " + getTableName() + " set path_count = ?, min_hops = ? where dag_id = ? and id = ?";
+            for (List<PathRow<VertexID>> batch : Lists.partition(updatedRows, BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(updateSQL)) {
+                    for (PathRow<VertexID> row : batch) {
+                        statement.setLong(1, row.pathCount);
+                        statement.setInt(2, row.minHops);
+                        statement.setString(3, getDagId());
+                        statement.setLong(4, row.id);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+        });
+        for (List<Long> batch : Lists.partition(deletedIds, BATCH_SIZE)) {
+            executeDelete(Junction.and().eq("dagId", getDagId()).in("id", new HashSet<>(batch)));
+        }
+        return deletedIds.size();
+    }
+
+    /**
+     * shortest distances from the sources to the targets over the remaining direct edges.
+     * successors that are not sources can't reach the removed edges, so their distances are read from the table,
+     * the sources are visited in topological order (successors first).
+     */
+    private void recomputeMinHops(List<VertexID> sourceIds, List<VertexID> targetIds, BiPredicate<VertexID, VertexID> removedDirectEdge,
+                                  List<PathRow<VertexID>> updatedRows) {
+        Map<VertexID, Integer> sourceIndexes = new HashMap<>();
+        sourceIds.forEach(sourceId -> sourceIndexes.put(sourceId, sourceIndexes.size()));
+        Map<VertexID, Integer> targetIndexes = new HashMap<>();
+        targetIds.forEach(targetId -> targetIndexes.put(targetId, targetIndexes.size()));
+
+        Map<VertexID, List<VertexID>> successors = new HashMap<>();
+        for (List<VertexID> batch : Lists.partition(sourceIds, BATCH_SIZE)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("select startVertexId, endVertexId from ").append(getEntityName())
+                    .append(" where dagId = :dagId and minHops = 0 and startVertexId in :sourceIds");
+            javax.persistence.Query query = em.createQuery(sb.toString());
+            query.setParameter("dagId", getDagId()).setParameter("sourceIds", batch);
+            List<Object[]> directEdges = query.getResultList();
+            for (Object[] directEdge : directEdges) {
+                VertexID sourceId = (VertexID) directEdge[0];
+                VertexID successorId = (VertexID) directEdge[1];
+                if (!removedDirectEdge.test(sourceId, successorId)) {
+                    successors.computeIfAbsent(sourceId, key -> new ArrayList<>()).add(successorId);
+                }
+            }
+        }
+
+        Set<VertexID> otherIds = successors.values().stream().flatMap(Collection::stream)
+                .filter(successorId -> !sourceIndexes.containsKey(successorId)).collect(Collectors.toSet());
+        Map<Pair<VertexID, VertexID>, Integer> otherDistances = findPaths(otherIds, targetIds).stream()
+                .collect(Collectors.toMap(row -> Pair.of(row.startVertexId, row.endVertexId), row -> row.minHops + 1));
+
+        // Kahn's algorithm on the sources, a source is ready when all of its successors among the sources are done
+        int[] pendingCounts = new int[sourceIds.size()];
+        Map<VertexID, List<VertexID>> predecessors = new HashMap<>();
+        successors.forEach((sourceId, successorIds) -> successorIds.stream().filter(sourceIndexes::containsKey).forEach(successorId -> {
+            pendingCounts[sourceIndexes.get(sourceId)]++;
+            predecessors.computeIfAbsent(successorId, key -> new ArrayList<>()).add(sourceId);
+        }));
+        Deque<VertexID> readyIds = sourceIds.stream().filter(sourceId -> pendingCounts[sourceIndexes.get(sourceId)] == 0)
+                .collect(Collectors.toCollection(ArrayDeque::new));
+
+        int[][] distances = new int[sourceIds.size()][];
+        while (!readyIds.isEmpty()) {
+            VertexID sourceId = readyIds.poll();
+            int[] sourceDistances = new int[targetIds.size()];
+            Arrays.fill(sourceDistances, UNREACHABLE);
+            for (VertexID successorId : successors.getOrDefault(sourceId, Collections.emptyList())) {
+                Integer successorIndex = sourceIndexes.get(successorId);
+                for (int j = 0; j < targetIds.size(); j++) {
+                    int distance;
+                    if (successorId.equals(targetIds.get(j))) {
+                        distance = 0;
+                    } else if (successorIndex != null) {
+                        distance = distances[successorIndex][j];
+                    } else {
+                        distance = otherDistances.getOrDefault(Pair.of(successorId, targetIds.get(j)), UNREACHABLE);
+                    }
+                    if (distance != UNREACHABLE && distance + 1 < sourceDistances[j]) {
+                        sourceDistances[j] = distance + 1;
+                    }
+                }
+            }
+            distances[sourceIndexes.get(sourceId)] = sourceDistances;
+            for (VertexID predecessorId : predecessors.getOrDefault(sourceId, Collections.emptyList())) {
+                if (--pendingCounts[sourceIndexes.get(predecessorId)] == 0) {
+                    readyIds.add(predecessorId);
+                }
+            }
+        }
+
+        for (PathRow<VertexID> row : updatedRows) {
+            int distance = distances[sourceIndexes.get(row.startVertexId)][targetIndexes.get(row.endVertexId)];
+            Preconditions.checkState(distance != UNREACHABLE, "path from %s to %s is counted but unreachable", row.startVertexId, row.endVertexId);
+            row.minHops = distance - 1;
+        }
+    }
+
+    private List<PathRow<VertexID>> findPaths(String property, Collection<VertexID> vertexIds) {
+        List<PathRow<VertexID>> rows = new ArrayList<>();
+        for (List<VertexID> batch : Lists.partition(new ArrayList<>(vertexIds), BATCH_SIZE)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("select id, startVertexId, endVertexId, pathCount, minHops from ").append(getEntityName())
+                    .append(" where dagId = :dagId and ").append(property).append(" in :vertexIds");
+            javax.persistence.Query query = em.createQuery(sb.toString());
+            query.setParameter("dagId", getDagId()).setParameter("vertexIds", batch);
+            rows.addAll(toPathRows(query.getResultList()));
+        }
+        return rows;
+    }
+
+    private List<PathRow<VertexID>> findPaths(Collection<VertexID> startVertexIds, Collection<VertexID> endVertexIds) {
+        List<PathRow<VertexID>> rows = new ArrayList<>();
+        for (List<VertexID> startBatch : Lists.partition(new ArrayList<>(startVertexIds), BATCH_SIZE)) {
+            for (List<VertexID> endBatch : Lists.partition(new ArrayList<>(endVertexIds), BATCH_SIZE)) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("select id, startVertexId, endVertexId, pathCount, minHops from ").append(getEntityName())
+                        .append(" where dagId = :dagId and startVertexId in :startVertexIds and endVertexId in :endVertexIds");
+                javax.persistence.Query query = em.createQuery(sb.toString());
+                query.setParameter("dagId", getDagId()).setParameter("startVertexIds", startBatch).setParameter("endVertexIds", endBatch);
+                rows.addAll(toPathRows(query.getResultList()));
+            }
+        }
+        return rows;
+    }
+
+    private List<PathRow<VertexID>> toPathRows(List<Object[]> results) {
+        return results.stream().map(result -> new PathRow<>((Long) result[0], (VertexID) result[1], (VertexID) result[2], (Long) result[3],
+                (Integer) result[4])).collect(Collectors.toList());
+    }
+
+    private void upsertPaths(Collection<PathRow<VertexID>> rows) {
+        String upsertSQL = "insert into " + getTableName() + " (start_vertex_id, end_vertex_id, path_count, min_hops, dag_id) values (?, ?, ?, ?, ?) " +
+                "on duplicate key update path_count = path_count + values(path_count), min_hops = least(min_hops, values(min_hops))";
+        log.debug(upsertSQL);
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            for (List<PathRow<VertexID>> batch : Lists.partition(new ArrayList<>(rows), BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(upsertSQL)) {
+                    for (PathRow<VertexID> row : batch) {
+                        statement.setString(1, row.startVertexId.toString());
+                        statement.setString(2, row.endVertexId.toString());
+                        statement.setLong(3, row.addedCount);
+                        statement.setInt(4, row.addedMinHops);
+                        statement.setString(5, getDagId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+        });
+    }
+
+    private static class PathRow<VertexID> {
+
+        private final Long id;
+        private final VertexID startVertexId;
+        private final VertexID endVertexId;
+        private long pathCount;
+        private int minHops;
+        // paths added by this batch, written as increments because the row may exist without being loaded
+        private long addedCount = 0;
+        private int addedMinHops = UNREACHABLE;
+
+        PathRow(Long id, VertexID startVertexId, VertexID endVertexId, long pathCount, int minHops) {
+            this.id = id;
+            this.startVertexId = startVertexId;
+            this.endVertexId = endVertexId;
+            this.pathCount = pathCount;
+            this.minHops = minHops;
+        }
+    }
+
+    private static class PathRows<VertexID> {
+
+        private final Map<Pair<VertexID, VertexID>, PathRow<VertexID>> rows = new HashMap<>();
+        private final Map<VertexID, List<PathRow<VertexID>>> startVertexRows = new HashMap<>();
+        private final Map<VertexID, List<PathRow<VertexID>>> endVertexRows = new HashMap<>();
+        private final Set<PathRow<VertexID>> addedRows = new LinkedHashSet<>();
+
+        void load(PathRow<VertexID> row) {
+            if (rows.putIfAbsent(Pair.of(row.startVertexId, row.endVertexId), row) == null) {
+                startVertexRows.computeIfAbsent(row.startVertexId, key -> new ArrayList<>()).add(row);
+                endVertexRows.computeIfAbsent(row.endVertexId, key -> new ArrayList<>()).add(row);
+            }
+        }
+
+        void addPaths(VertexID startVertexId, VertexID endVertexId, long pathCount, int hops) {
+            PathRow<VertexID> row = rows.get(Pair.of(startVertexId, endVertexId));
+            if (row == null) {
+                row = new PathRow<>(null, startVertexId, endVertexId, 0, UNREACHABLE);
+                load(row);
+            }
+            row.pathCount += pathCount;
+            row.minHops = Math.min(row.minHops, hops);
+            row.addedCount += pathCount;
+            row.addedMinHops = Math.min(row.addedMinHops, hops);
+            addedRows.add(row);
+        }
+
+        List<PathRow<VertexID>> startFrom(VertexID vertexId) {
+            return startVertexRows.getOrDefault(vertexId, Collections.emptyList());
+        }
+
+        List<PathRow<VertexID>> endAt(VertexID vertexId) {
+            return endVertexRows.getOrDefault(vertexId, Collections.emptyList());
+        }
+
+        Collection<PathRow<VertexID>> addedRows() {
+            return addedRows;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package graph;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * locks the vertices whose closure rows are changed by the edges: the start vertices with their ancestors and the end vertices
+ * with their descendants. edits of disjoint parts of the dag lock disjoint stripes and run in parallel.
+ * the ancestors and descendants may change before the lock is acquired, they are read again until they are all locked.
+ *
+ * @author csieflyman
+ */
+final class DagVertexLocks<VertexID extends Serializable> {
+
+    private final Function<Collection<VertexID>, Set<VertexID>> incomingVertices;
+    private final Function<Collection<VertexID>, Set<VertexID>> outgoingVertices;
+    private final StripedLocks locks;
+
+    /**
+     * @param incomingVertices ancestors of the vertices, read in bulk
+     * @param outgoingVertices descendants of the vertices, read in bulk
+     */
+    DagVertexLocks(Function<Collection<VertexID>, Set<VertexID>> incomingVertices, Function<Collection<VertexID>, Set<VertexID>> outgoingVertices,
+                   String dagId, StripedLocks.DatabaseLock databaseLock, long timeoutMillis) {
+        this.incomingVertices = incomingVertices;
+        this.outgoingVertices = outgoingVertices;
+        this.locks = new StripedLocks("dag " + dagId, databaseLock, timeoutMillis);
+    }
+
+    void lock(Collection<Pair<VertexID, VertexID>> edges) {
+        if (edges.isEmpty())
+            return;
+
+        Set<VertexID> startVertexIds = new HashSet<>();
+        Set<VertexID> endVertexIds = new HashSet<>();
+        edges.forEach(edge -> {
+            startVertexIds.add(edge.getLeft());
+            endVertexIds.add(edge.getRight());
+        });
+        Set<VertexID> lockedVertexIds = new HashSet<>();
+        while (true) {
+            Set<VertexID> vertexIds = new HashSet<>(startVertexIds);
+            vertexIds.addAll(endVertexIds);
+            vertexIds.addAll(incomingVertices.apply(startVertexIds));
+            vertexIds.addAll(outgoingVertices.apply(endVertexIds));
+            if (lockedVertexIds.containsAll(vertexIds))
+                return;
+
+            lockedVertexIds.addAll(vertexIds);
+            locks.lock(lockedVertexIds);
+        }
+    }
+
+    void lockAll() {
+        locks.lockAll();
+    }
+}
@@ -0,0 +1,203 @@
+package graph;
+
+import base.util.query.Query;
+import com.google.common.collect.Lists;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.util.*;
+
+/**
+ * nested set numbered with gaps between the low and high values, so a child tree is moved in by shifting its own rows into a gap
+ * of the parent and moved out by shifting its own rows only, the rest of the tree is untouched.
+ * when the gap at the end of the parent is too small, the subtree of the nearest ancestor wide enough is renumbered with even gaps,
+ * the root interval can always be widened because a tree has no nodes outside of its root.
+ * <p>
+ * the root is always numbered from 1, as in the contiguous mode, so contiguous numbered trees are valid gap numbered trees.
+ *
+ * @author csieflyman
+ */
+public abstract class GapIntervalTreeDaoImpl<NodeType extends IntervalTreeNode<NodeIdType>, NodeIdType extends Serializable>
+        extends IntervalTreeDaoImpl<NodeType, NodeIdType> {
+
+    private static final Logger logger = LoggerFactory.getLogger(GapIntervalTreeDaoImpl.class);
+
+    private static final int BATCH_SIZE = 1000;
+    // distance between consecutive numbers when the root is renumbered
+    private static final long GAP = 1L << 20;
+    // an ancestor is renumbered only if it can give every number at least this distance
+    private static final long MIN_GAP = 16;
+
+    @Override
+    protected void attachChildTree(NodeType parentNode, NodeType childNode) {
+        long low = openGap(parentNode, getWidth(childNode));
+        updateChildTree(childNode, childNode.getTreeId(), parentNode.getTreeId(), true, low - childNode.getLow(),
+                parentNode.getDepth() + 1 - childNode.getDepth());
+    }
+
+    /**
+     * take the room from the gap at the end of the parent node, renumber the parent node or an ancestor if the gap is too small
+     */
+    @Override
+    protected long openGap(NodeType parentNode, long width) {
+        long lastHigh = findLastHigh(parentNode);
+        if (parentNode.getHigh() - 1 - lastHigh < width) {
+            parentNode = renumber(parentNode, width);
+            lastHigh = findLastHigh(parentNode);
+        }
+        long freeWidth = parentNode.getHigh() - 1 - lastHigh;
+        // keep at most GAP before the child trees and at least half of the free space after them for the next children
+        return lastHigh + 1 + Math.min(GAP, (freeWidth - width) / 2);
+    }
+
+    @Override
+    protected void detachChildTree(NodeType parentNode, NodeType childNode) {
+        // the hole is left as a gap
+    }
+
+    /**
+     * shift the rows of the child tree into the gap at the end of the new parent with a single statement, the hole is left as a gap
+     */
+    @Override
+    protected void moveChildTree(NodeType newParentNode, NodeType childNode) {
+        long childTreeWidth = getWidth(childNode);
+        long lastHigh = findLastHigh(newParentNode);
+        while (newParentNode.getHigh() - 1 - lastHigh < childTreeWidth) {
+            newParentNode = renumber(newParentNode, childTreeWidth);
+            // the child tree may be renumbered with the ancestor, then the gap is reserved again for its new width.
+            // a wider reservation makes the gaps of the renumbered subtree smaller, so the child tree fits in a few rounds
+            childNode = getNode(childNode.getNodeId());
+            childTreeWidth = getWidth(childNode);
+            lastHigh = findLastHigh(newParentNode);
+        }
+        long freeWidth = newParentNode.getHigh() - 1 - lastHigh;
+        long low = lastHigh + 1 + Math.min(GAP, (freeWidth - childTreeWidth) / 2);
+        em.flush();
+        moveRows(newParentNode, childNode, low - childNode.getLow(), newParentNode.getDepth() + 1 - childNode.getDepth());
+    }
+
+    /**
+     * any nested numbering from 1 is a valid gap numbered tree, including the contiguous one
+     */
+    @Override
+    public int renumberTrees() {
+        return 0;
+    }
+
+    @Override
+    protected long getNumberGap() {
+        return GAP;
+    }
+
+    @Override
+    protected boolean isRootWithoutChild(NodeType node) {
+        return isRoot(node) && isLeaf(node);
+    }
+
+    @Override
+    protected boolean isLeaf(NodeType node) {
+        return findSize(Query.create().where().eq("parentNodeId", node.getNodeId()).eq("treeType", getTreeType()).end()) == 0;
+    }
+
+    /**
+     * high of the last child, or low of the node if it is a leaf
+     */
+    private long findLastHigh(NodeType node) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select max(high) from ").append(getEntityName())
+                .append(" where low > :low and high < :high and treeId = :treeId and treeType = :treeType");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("low", node.getLow()).setParameter("high", node.getHigh())
+                .setParameter("treeId", node.getTreeId()).setParameter("treeType", getTreeType());
+        Long lastHigh = (Long) query.getSingleResult();
+        return lastHigh == null ? node.getLow() : lastHigh;
+    }
+
+    /**
+     * renumber the subtree of the parent node or its nearest ancestor wide enough, leaving the given width free at the end of the parent node
+     *
+     * @return parent node with the new numbers
+     */
+    private NodeType renumber(NodeType parentNode, long width) {
+        List<NodeType> ancestors = find(Query.create().where().lt("low", parentNode.getLow()).gt("high", parentNode.getHigh())
+                .eq("treeId", parentNode.getTreeId()).eq("treeType", getTreeType()).end().orderByDesc("low"));
+        List<NodeType> candidates = new ArrayList<>();
+        candidates.add(parentNode);
+        candidates.addAll(ancestors);
+        for (NodeType node : candidates) {
+            List<NodeType> subTreeNodes = new ArrayList<>(getSubTree(node));
+            // low and high of the node and its descendants, plus the free width
+            long numberCount = 2L * (subTreeNodes.size() + 1) + 1;
+            long gap = isRoot(node) ? GAP : (node.getHigh() - node.getLow() - width) / numberCount;
+            if (gap < MIN_GAP)
+                continue;
+
+            logger.debug("renumber {} nodes under {} with gap {}", subTreeNodes.size() + 1, node.getNodeId(), gap);
+            subTreeNodes.add(0, node);
+            Map<NodeType, long[]> numbers = renumber(subTreeNodes, parentNode, width, gap);
+            if (!isRoot(node)) {
+                // keep the high, the space between the new high and the old one stays free for the parent of the node
+                numbers.get(node)[1] = node.getHigh();
+            }
+            writeNumbers(numbers);
+            return getNode(parentNode.getNodeId());
+        }
+        throw new IllegalStateException("root of tree " + parentNode.getTreeId() + " can not be renumbered");
+    }
+
+    /**
+     * assign low and high in the nested order of the nodes (sorted by low), each number is gap after the previous one
+     */
+    private Map<NodeType, long[]> renumber(List<NodeType> nodes, NodeType parentNode, long width, long gap) {
+        Map<NodeType, long[]> numbers = new LinkedHashMap<>();
+        Deque<NodeType> openNodes = new ArrayDeque<>();
+        long number = nodes.get(0).getLow() - gap;
+        for (NodeType node : nodes) {
+            while (!openNodes.isEmpty() && openNodes.peek().getHigh() < node.getLow()) {
+                number = close(openNodes.pop(), numbers, parentNode, width, gap, number);
+            }
+            number += gap;
+            numbers.put(node, new long[]{number, 0});
+            openNodes.push(node);
+        }
+        while (!openNodes.isEmpty()) {
+            number = close(openNodes.pop(), numbers, parentNode, width, gap, number);
+        }
+        return numbers;
+    }
+
+    private long close(NodeType node, Map<NodeType, long[]> numbers, NodeType parentNode, long width, long gap, long number) {
+        if (node.getNodeId().equals(parentNode.getNodeId())) {
+            number += width + gap;
+        }
+        number += gap;
+        numbers.get(node)[1] = number;
+        return number;
+    }
+
+    private void writeNumbers(Map<NodeType, long[]> numbers) {
+        String updateSQL = "update " + getTableName() + " set low = ?, high = ? where id = ?";
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            // rows are updated in primary key order, so concurrent batches lock them in the same order
+            List<Map.Entry<NodeType, long[]>> entries = new ArrayList<>(numbers.entrySet());
+            entries.sort(Comparator.comparing(entry -> entry.getKey().getId()));
+            for (List<Map.Entry<NodeType, long[]>> batch : Lists.partition(entries, BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(updateSQL)) {
+                    for (Map.Entry<NodeType, long[]> entry : batch) {
+                        statement.setLong(1, entry.getValue()[0]);
+                        statement.setLong(2, entry.getValue()[1]);
+                        statement.setLong(3, entry.getKey().getId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+        });
+        // the loaded nodes are stale
+        numbers.keySet().forEach(em::detach);
+    }
+}
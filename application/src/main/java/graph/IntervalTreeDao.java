@@ -1,7 +1,10 @@
 package graph;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * @author csieflyman
@@ -14,7 +17,82 @@ public interface IntervalTreeDao<NodeIdType extends Serializable> {
 
     void move(NodeIdType newParentNodeId, NodeIdType childNodeId);
 
+    /**
+     * move the nodes with their subtrees under the new parent, the nodes not in any tree are added as leaves
+     */
+    void moveAll(NodeIdType newParentNodeId, Collection<NodeIdType> childNodeIds);
+
     void delete(NodeIdType nodeId);
 
+    /**
+     * create a new tree in one pass, none of the nodes may be in a tree
+     *
+     * @param childrenMap children of each node in order, every node must be reachable from the root through a single parent
+     * @return number of nodes
+     */
+    int buildTree(NodeIdType rootNodeId, Map<NodeIdType, List<NodeIdType>> childrenMap);
+
+    /**
+     * replace the tree of the root with the new one in one pass, the nodes of the new tree must not be in other trees
+     *
+     * @return number of nodes
+     */
+    int replaceTree(NodeIdType rootNodeId, Map<NodeIdType, List<NodeIdType>> childrenMap);
+
+    /**
+     * add new child trees as the last children of the parent in one pass, the room for all of them is made once.
+     * none of the new nodes may be in a tree, the parent not in any tree becomes a root
+     *
+     * @param childrenMap children of each node in order, the children of the parent are its new children
+     * @return number of new nodes
+     */
+    int addChildTrees(NodeIdType parentNodeId, Map<NodeIdType, List<NodeIdType>> childrenMap);
+
+    /**
+     * renumber the trees whose numbers are not valid in this numbering, e.g. trees numbered in the gap mode before switching back to the contiguous mode.
+     * each tree keeps its nodes and the order of the children
+     *
+     * @return number of renumbered trees
+     */
+    int renumberTrees();
+
     List<NodeIdType> getSubTree(NodeIdType nodeId);
+
+    /**
+     * descendants at most maxLevels below the node, ordered by low
+     */
+    List<NodeIdType> getSubTree(NodeIdType nodeId, int maxLevels);
+
+    /**
+     * descendants with low greater than afterLow, ordered by low
+     *
+     * @param afterLow  nextLow of the previous page, null for the first page
+     * @param maxLevels null for all levels
+     */
+    SubTreePage<NodeIdType> getSubTree(NodeIdType nodeId, Long afterLow, Integer maxLevels, int limit);
+
+    /**
+     * descendants ordered by low, read from the database as the stream is consumed.
+     * the stream must be consumed within a transaction and closed
+     *
+     * @param maxLevels null for all levels
+     */
+    Stream<NodeIdType> streamSubTree(NodeIdType nodeId, Integer maxLevels);
+
+    /**
+     * ancestors ordered from the root to the parent
+     */
+    List<NodeIdType> getAncestors(NodeIdType nodeId);
+
+    boolean isDescendant(NodeIdType ancestorNodeId, NodeIdType descendantNodeId);
+
+    /**
+     * path from the root to the node, empty if the node is not in any tree
+     */
+    List<NodeIdType> getAncestorPath(NodeIdType nodeId);
+
+    /**
+     * paths from the root to each node found in a tree, in one query
+     */
+    Map<NodeIdType, List<NodeIdType>> getAncestorPaths(Collection<NodeIdType> nodeIds);
 }
@@ -1,34 +1,81 @@
 package graph;
 
 import base.dao.AbstractJPADaoImpl;
+import base.util.TransactionUtils;
 import base.util.query.Query;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.jpa.QueryHints;
+import org.hibernate.persister.entity.EntityPersister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import java.io.Serializable;
+import java.sql.PreparedStatement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
+ * subtree, ancestor and containment queries are answered from an immutable IntervalTreeSnapshot per tree when it is loaded.
+ * a committed change reloads the trees of the changed nodes and replaces their snapshots, readers never lock
+ * and never see a tree in the middle of a renumbering. reads within a transaction that changed a tree go to the database.
+ * <p>
+ * changes of a tree are serialized by StripedLocks held until the transaction completes. the callers should run with
+ * READ COMMITTED, so the nodes read after the lock is acquired are the latest committed ones, and retry with @DeadlockRetry.
+ *
  * @author csieflyman
  */
 public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<NodeIdType>, NodeIdType extends Serializable>
         extends AbstractJPADaoImpl<NodeType, Long> implements IntervalTreeDao<NodeIdType> {
 
-    private static final Logger logger = LoggerFactory.getLogger(DagEdgeDaoImpl.class);
+    private static final Logger logger = LoggerFactory.getLogger(IntervalTreeDaoImpl.class);
+
+    private static final int BATCH_SIZE = 1000;
 
     abstract protected String getTreeType();
 
     @PersistenceContext
     protected EntityManager em;
 
+    @Value("${party.tree.lock.database:false}")
+    private boolean databaseLock;
+    @Value("${party.tree.lock.timeout-ms:10000}")
+    private long lockTimeoutMillis;
+    private StripedLocks treeLocks;
+
+    private final Map<String, IntervalTreeSnapshot<NodeIdType>> snapshots = new ConcurrentHashMap<>();
+    private final Map<NodeIdType, String> nodeTreeIds = new ConcurrentHashMap<>();
+    private volatile boolean snapshotsReady = false;
+    private final Object snapshotLock = new Object();
+
     @PostConstruct
     public void init() {
         setEntityManager(em);
+        treeLocks = new StripedLocks("tree " + getTreeType(), databaseLock ? StripedLocks.databaseLock(em, "interval_tree_lock", "tree_type", getTreeType()) : null, lockTimeoutMillis);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadSnapshots() {
+        synchronized (snapshotLock) {
+            long startTime = System.currentTimeMillis();
+            snapshots.clear();
+            nodeTreeIds.clear();
+            loadTrees(null).values().forEach(this::putSnapshot);
+            snapshotsReady = true;
+            logger.info("{} loaded {} trees in {} ms", getClass().getSimpleName(), snapshots.size(), System.currentTimeMillis() - startTime);
+        }
     }
 
     @Override
@@ -36,6 +83,7 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         Preconditions.checkArgument(parentNodeId != null, "parentNodeId must not be null");
         Preconditions.checkArgument(childNodeId != null, "childNodeId must not be null");
 
+        lockTrees(Arrays.asList(parentNodeId, childNodeId));
         NodeType parentNode = getNode(parentNodeId);
         if (parentNode == null) {
             parentNode = create(newNode(parentNodeId));
@@ -44,6 +92,7 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         if (childNode == null) {
             childNode = create(newNode(childNodeId));
         }
+        refreshAfterCommit(Arrays.asList(parentNodeId, childNodeId));
         addChild(parentNode, childNode);
     }
 
@@ -52,8 +101,10 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         Preconditions.checkArgument(parentNodeId != null, "parentNodeId must not be null");
         Preconditions.checkArgument(childNodeId != null, "childNodeId must not be null");
 
+        lockTrees(Arrays.asList(parentNodeId, childNodeId));
         NodeType parentNode = getNode(parentNodeId);
         NodeType childNode = getNode(childNodeId);
+        refreshAfterCommit(Arrays.asList(parentNodeId, childNodeId));
         removeChild(parentNode, childNode, true);
     }
 
@@ -62,14 +113,168 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         Preconditions.checkArgument(newParentNodeId != null, "newParentNodeId must not be null");
         Preconditions.checkArgument(childNodeId != null, "childNodeId must not be null");
 
-        NodeType childNode = getNode(childNodeId);
-        NodeType currentParentNode = getParent(childNode);
-        if (currentParentNode != null) {
-            removeChild(currentParentNode, childNode, false);
-            childNode = getNode(childNodeId);
+        moveAll(newParentNodeId, Collections.singletonList(childNodeId));
+    }
+
+    @Override
+    public void moveAll(NodeIdType newParentNodeId, Collection<NodeIdType> childNodeIds) {
+        Preconditions.checkArgument(newParentNodeId != null, "newParentNodeId must not be null");
+        Preconditions.checkArgument(childNodeIds != null, "childNodeIds must not be null");
+
+        if (childNodeIds.isEmpty())
+            return;
+
+        List<NodeIdType> nodeIds = new ArrayList<>(childNodeIds);
+        nodeIds.add(newParentNodeId);
+        lockTrees(nodeIds);
+        if (getNode(newParentNodeId) == null) {
+            create(newNode(newParentNodeId));
+        }
+        refreshAfterCommit(Collections.singletonList(newParentNodeId));
+        refreshAfterCommit(childNodeIds);
+        Set<NodeIdType> oldParentNodeIds = new HashSet<>();
+        for (NodeIdType childNodeId : new LinkedHashSet<>(childNodeIds)) {
+            NodeType newParentNode = getNode(newParentNodeId);
+            NodeType childNode = getNode(childNodeId);
+            if (childNode == null) {
+                addChild(newParentNode, create(newNode(childNodeId)));
+                continue;
+            }
+            if (newParentNodeId.equals(childNode.getParentNodeId()))
+                continue;
+            if (newParentNode.getTreeId().equals(childNode.getTreeId())
+                    && childNode.getLow() <= newParentNode.getLow() && newParentNode.getHigh() <= childNode.getHigh()) {
+                throw new IllegalArgumentException(String.format("%s can't be moved under itself or its descendant %s", childNodeId, newParentNodeId));
+            }
+
+            if (childNode.getParentNodeId() != null) {
+                oldParentNodeIds.add(childNode.getParentNodeId());
+                refreshAfterCommit(Collections.singletonList(childNode.getParentNodeId()));
+            }
+            logger.debug("move {} to {}", childNodeId, newParentNodeId);
+            moveChildTree(newParentNode, childNode);
+            detachAllNodes();
+        }
+        // an old parent left without child is a root without child
+        for (NodeIdType oldParentNodeId : oldParentNodeIds) {
+            NodeType oldParentNode = getNode(oldParentNodeId);
+            if (oldParentNode != null && isRootWithoutChild(oldParentNode)) {
+                super.delete(oldParentNode);
+                em.flush();
+                em.detach(oldParentNode);
+            }
+        }
+    }
+
+    @Override
+    public int buildTree(NodeIdType rootNodeId, Map<NodeIdType, List<NodeIdType>> childrenMap) {
+        Preconditions.checkArgument(rootNodeId != null, "rootNodeId must not be null");
+        Preconditions.checkArgument(childrenMap != null, "childrenMap must not be null");
+
+        List<NodeType> nodes = numberTree(rootNodeId, childrenMap);
+        lockTrees(Collections.singletonList(rootNodeId));
+        checkNotInTree(nodes);
+        refreshAfterCommit(nodes.stream().map(NodeType::getNodeId).collect(Collectors.toList()));
+        insertNodes(nodes);
+        return nodes.size();
+    }
+
+    @Override
+    public int replaceTree(NodeIdType rootNodeId, Map<NodeIdType, List<NodeIdType>> childrenMap) {
+        Preconditions.checkArgument(rootNodeId != null, "rootNodeId must not be null");
+        Preconditions.checkArgument(childrenMap != null, "childrenMap must not be null");
+
+        List<NodeType> nodes = numberTree(rootNodeId, childrenMap);
+        lockTrees(Collections.singletonList(rootNodeId));
+        NodeType rootNode = getNode(rootNodeId);
+        if (rootNode != null) {
+            if (!isRoot(rootNode)) {
+                throw new IllegalArgumentException(String.format("%s is not a root of tree %s", rootNodeId, rootNode.getTreeId()));
+            }
+            refreshAfterCommit(Collections.singletonList(rootNodeId));
+            StringBuilder sb = new StringBuilder();
+            sb.append("delete from ").append(getEntityName()).append(" where treeId = :treeId and treeType = :treeType");
+            javax.persistence.Query query = em.createQuery(sb.toString());
+            query.setParameter("treeId", rootNode.getTreeId()).setParameter("treeType", getTreeType());
+            int count = query.executeUpdate();
+            logger.debug("delete {} nodes of tree {}", count, rootNode.getTreeId());
+            detachAllNodes();
+        }
+        checkNotInTree(nodes);
+        refreshAfterCommit(nodes.stream().map(NodeType::getNodeId).collect(Collectors.toList()));
+        insertNodes(nodes);
+        return nodes.size();
+    }
+
+    @Override
+    public int addChildTrees(NodeIdType parentNodeId, Map<NodeIdType, List<NodeIdType>> childrenMap) {
+        Preconditions.checkArgument(parentNodeId != null, "parentNodeId must not be null");
+        Preconditions.checkArgument(childrenMap != null, "childrenMap must not be null");
+
+        // numbered as a new tree of the parent, then the new nodes are shifted into the room made at the end of the parent
+        List<NodeType> nodes = numberTree(parentNodeId, childrenMap);
+        List<NodeType> newNodes = nodes.subList(1, nodes.size());
+        if (newNodes.isEmpty())
+            return 0;
+
+        lockTrees(Collections.singletonList(parentNodeId));
+        checkNotInTree(newNodes);
+        NodeType parentNode = getNode(parentNodeId);
+        if (parentNode == null) {
+            parentNode = create(newNode(parentNodeId));
+        }
+        refreshAfterCommit(nodes.stream().map(NodeType::getNodeId).collect(Collectors.toList()));
+        // the new nodes are numbered from 1 + gap to the high of the parent - gap
+        long gap = getNumberGap();
+        long width = nodes.get(0).getHigh() - 2 * gap;
+        em.flush();
+        long offset = openGap(parentNode, width) - 1 - gap;
+        for (NodeType node : newNodes) {
+            node.setLow(node.getLow() + offset);
+            node.setHigh(node.getHigh() + offset);
+            node.setDepth(node.getDepth() + parentNode.getDepth());
+            node.setTreeId(parentNode.getTreeId());
+        }
+        insertNodes(newNodes);
+        detachAllNodes();
+        return newNodes.size();
+    }
+
+    /**
+     * a contiguous tree of n nodes uses every number from 1 to 2n, a tree with holes or gaps is numbered again by replaceTree
+     */
+    @Override
+    public int renumberTrees() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select treeId from ").append(getEntityName()).append(" where treeType = :treeType group by treeId having max(high) <> 2 * count(id)");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("treeType", getTreeType());
+        List<String> treeIds = query.getResultList();
+        for (String treeId : treeIds) {
+            sb = new StringBuilder();
+            sb.append("select nodeId, parentNodeId from ").append(getEntityName()).append(" where treeId = :treeId and treeType = :treeType order by low");
+            query = em.createQuery(sb.toString());
+            query.setParameter("treeId", treeId).setParameter("treeType", getTreeType());
+            List<Object[]> rows = query.getResultList();
+            if (rows.isEmpty())
+                continue;
+
+            // the root has the lowest number, the nodes read before the lock may be changed
+            lockTrees(Collections.singletonList((NodeIdType) rows.get(0)[0]));
+            rows = query.getResultList();
+            NodeIdType rootNodeId = null;
+            Map<NodeIdType, List<NodeIdType>> childrenMap = new HashMap<>();
+            for (Object[] row : rows) {
+                if (row[1] == null) {
+                    rootNodeId = (NodeIdType) row[0];
+                } else {
+                    childrenMap.computeIfAbsent((NodeIdType) row[1], key -> new ArrayList<>()).add((NodeIdType) row[0]);
+                }
+            }
+            int count = replaceTree(rootNodeId, childrenMap);
+            logger.info("renumber tree {} of {} nodes", treeId, count);
         }
-        NodeType newParentNode = getNode(newParentNodeId);
-        addChild(newParentNode, childNode);
+        return treeIds.size();
     }
 
     @Override
@@ -87,25 +292,60 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
     public void delete(NodeType node) {
         Preconditions.checkArgument(node != null, "node must not be null");
 
+        lockTrees(Collections.singletonList(node.getNodeId()));
+        // the node may be changed before the lock
+        node = getNode(node.getNodeId());
+        if (node == null)
+            return;
+
         NodeType parentNode = getParent(node);
+        List<NodeType> children = getChildren(node);
+        refreshAfterCommit(Collections.singletonList(node.getNodeId()));
+        refreshAfterCommit(children.stream().map(NodeType::getNodeId).collect(Collectors.toList()));
         if (parentNode != null) {
-            removeChild(parentNode, node, true);
-            node = getNode(node.getNodeId());
-        }
-        if (node != null && !isLeaf(node)) {
-            List<NodeType> children = getChildren(node);
-            for (NodeType child : children) {
-                node = getNode(node.getNodeId());
-                child = getNode(child.getNodeId());
-                removeChild(node, child, true);
+            refreshAfterCommit(Collections.singletonList(parentNode.getNodeId()));
+        }
+
+        // the node and its leaf children are deleted, the other children become roots of their own trees
+        Set<NodeIdType> nonLeafChildNodeIds = findNonLeafNodeIds(children);
+        Map<Boolean, List<NodeType>> leafChildrenMap = children.stream()
+                .collect(Collectors.partitioningBy(child -> !nonLeafChildNodeIds.contains(child.getNodeId())));
+        List<Long> deletedIds = new ArrayList<>();
+        deletedIds.add(node.getId());
+        leafChildrenMap.get(true).forEach(child -> deletedIds.add(child.getId()));
+        em.flush();
+        for (List<Long> chunk : Lists.partition(deletedIds, BATCH_SIZE)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("delete from ").append(getEntityName()).append(" where id in :ids");
+            javax.persistence.Query query = em.createQuery(sb.toString());
+            query.setParameter("ids", chunk);
+            query.executeUpdate();
+        }
+        for (List<NodeType> chunk : Lists.partition(leafChildrenMap.get(false), BATCH_SIZE)) {
+            promoteChildTrees(node, chunk);
+        }
+        logger.debug("delete {} with {} leaf children, promote {} children", node.getNodeId(), leafChildrenMap.get(true).size(),
+                leafChildrenMap.get(false).size());
+
+        if (parentNode != null) {
+            detachChildTree(parentNode, node);
+            parentNode = getNode(parentNode.getNodeId());
+            if (isRootWithoutChild(parentNode)) {
+                super.delete(parentNode);
+                em.flush();
             }
         }
+        detachAllNodes();
     }
 
     @Override
     public List<NodeIdType> getSubTree(NodeIdType nodeId) {
         Preconditions.checkArgument(nodeId != null, "nodeId must not be null");
 
+        IntervalTreeSnapshot<NodeIdType> snapshot = findSnapshot(nodeId);
+        if (snapshot != null) {
+            return snapshot.getSubTree(nodeId, Integer.MAX_VALUE);
+        }
         NodeType node = getNode(nodeId);
         if (node == null) {
             return Collections.emptyList();
@@ -114,14 +354,285 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         return subTreeNodes.stream().map(NodeType::getNodeId).collect(Collectors.toList());
     }
 
+    @Override
+    public List<NodeIdType> getSubTree(NodeIdType nodeId, int maxLevels) {
+        Preconditions.checkArgument(nodeId != null, "nodeId must not be null");
+        Preconditions.checkArgument(maxLevels >= 1, "maxLevels must be greater than 0");
+
+        IntervalTreeSnapshot<NodeIdType> snapshot = findSnapshot(nodeId);
+        if (snapshot != null) {
+            return snapshot.getSubTree(nodeId, maxLevels);
+        }
+        NodeType node = getNode(nodeId);
+        if (node == null || isLeaf(node)) {
+            return Collections.emptyList();
+        }
+        List<NodeType> subTreeNodes = find(Query.create().where().gt("low", node.getLow()).lt("high", node.getHigh())
+                .le("depth", node.getDepth() + maxLevels).eq("treeId", node.getTreeId()).eq("treeType", getTreeType()).end()
+                .orderByAsc("low"));
+        return subTreeNodes.stream().map(NodeType::getNodeId).collect(Collectors.toList());
+    }
+
+    @Override
+    public SubTreePage<NodeIdType> getSubTree(NodeIdType nodeId, Long afterLow, Integer maxLevels, int limit) {
+        Preconditions.checkArgument(nodeId != null, "nodeId must not be null");
+        Preconditions.checkArgument(maxLevels == null || maxLevels >= 1, "maxLevels must be greater than 0");
+        Preconditions.checkArgument(limit >= 1, "limit must be greater than 0");
+
+        NodeType node = getNode(nodeId);
+        if (node == null) {
+            return new SubTreePage<>(Collections.emptyList(), null);
+        }
+        javax.persistence.Query query = createSubTreeQuery(node, afterLow, maxLevels);
+        // one more row tells whether there is a next page
+        query.setMaxResults(limit + 1);
+        List<Object[]> rows = query.getResultList();
+        boolean hasNext = rows.size() > limit;
+        if (hasNext) {
+            rows = rows.subList(0, limit);
+        }
+        List<NodeIdType> nodeIds = rows.stream().map(row -> (NodeIdType) row[0]).collect(Collectors.toList());
+        return new SubTreePage<>(nodeIds, hasNext ? (Long) rows.get(rows.size() - 1)[1] : null);
+    }
+
+    @Override
+    public Stream<NodeIdType> streamSubTree(NodeIdType nodeId, Integer maxLevels) {
+        Preconditions.checkArgument(nodeId != null, "nodeId must not be null");
+        Preconditions.checkArgument(maxLevels == null || maxLevels >= 1, "maxLevels must be greater than 0");
+
+        NodeType node = getNode(nodeId);
+        if (node == null) {
+            return Stream.empty();
+        }
+        javax.persistence.Query query = createSubTreeQuery(node, null, maxLevels);
+        // MySQL Connector/J streams the rows one by one only with this fetch size
+        query.setHint(QueryHints.HINT_FETCH_SIZE, Integer.MIN_VALUE);
+        query.setHint(QueryHints.HINT_READONLY, true);
+        Stream<Object[]> rows = query.getResultStream();
+        return rows.map(row -> (NodeIdType) row[0]);
+    }
+
+    /**
+     * select nodeId and low only, no node is materialized in the persistence context
+     */
+    private javax.persistence.Query createSubTreeQuery(NodeType node, Long afterLow, Integer maxLevels) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select nodeId, low from ").append(getEntityName())
+                .append(" where treeId = :treeId and treeType = :treeType and low > :low and high < :high");
+        if (maxLevels != null) {
+            sb.append(" and depth <= :maxDepth");
+        }
+        sb.append(" order by low");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("treeId", node.getTreeId()).setParameter("treeType", getTreeType())
+                .setParameter("low", afterLow == null ? node.getLow() : Math.max(afterLow, node.getLow()))
+                .setParameter("high", node.getHigh());
+        if (maxLevels != null) {
+            query.setParameter("maxDepth", node.getDepth() + maxLevels);
+        }
+        return query;
+    }
+
+    @Override
+    public List<NodeIdType> getAncestors(NodeIdType nodeId) {
+        Preconditions.checkArgument(nodeId != null, "nodeId must not be null");
+
+        IntervalTreeSnapshot<NodeIdType> snapshot = findSnapshot(nodeId);
+        if (snapshot != null) {
+            return snapshot.getAncestors(nodeId);
+        }
+        NodeType node = getNode(nodeId);
+        if (node == null || isRoot(node)) {
+            return Collections.emptyList();
+        }
+        List<NodeType> ancestors = find(Query.create().where().lt("low", node.getLow()).gt("high", node.getHigh())
+                .eq("treeId", node.getTreeId()).eq("treeType", getTreeType()).end()
+                .orderByAsc("low"));
+        return ancestors.stream().map(NodeType::getNodeId).collect(Collectors.toList());
+    }
+
+    @Override
+    public boolean isDescendant(NodeIdType ancestorNodeId, NodeIdType descendantNodeId) {
+        Preconditions.checkArgument(ancestorNodeId != null, "ancestorNodeId must not be null");
+        Preconditions.checkArgument(descendantNodeId != null, "descendantNodeId must not be null");
+
+        IntervalTreeSnapshot<NodeIdType> snapshot = findSnapshot(descendantNodeId);
+        if (snapshot != null) {
+            return snapshot.isDescendant(ancestorNodeId, descendantNodeId);
+        }
+        NodeType ancestorNode = getNode(ancestorNodeId);
+        NodeType descendantNode = getNode(descendantNodeId);
+        return ancestorNode != null && descendantNode != null && ancestorNode.getTreeId().equals(descendantNode.getTreeId())
+                && ancestorNode.getLow() < descendantNode.getLow() && descendantNode.getHigh() < ancestorNode.getHigh();
+    }
+
+    @Override
+    public List<NodeIdType> getAncestorPath(NodeIdType nodeId) {
+        Preconditions.checkArgument(nodeId != null, "nodeId must not be null");
+
+        return getAncestorPaths(Collections.singleton(nodeId)).getOrDefault(nodeId, Collections.emptyList());
+    }
+
+    @Override
+    public Map<NodeIdType, List<NodeIdType>> getAncestorPaths(Collection<NodeIdType> nodeIds) {
+        Preconditions.checkArgument(nodeIds != null, "nodeIds must not be null");
+
+        Map<NodeIdType, List<NodeIdType>> paths = new HashMap<>();
+        Set<NodeIdType> unloadedNodeIds = new HashSet<>();
+        for (NodeIdType nodeId : nodeIds) {
+            IntervalTreeSnapshot<NodeIdType> snapshot = findSnapshot(nodeId);
+            if (snapshot == null) {
+                unloadedNodeIds.add(nodeId);
+            } else if (snapshot.contains(nodeId)) {
+                List<NodeIdType> path = new ArrayList<>(snapshot.getAncestors(nodeId));
+                path.add(nodeId);
+                paths.put(nodeId, path);
+            }
+        }
+        if (unloadedNodeIds.isEmpty())
+            return paths;
+
+        // the node itself satisfies the containment predicate with equality, it ends its own path
+        StringBuilder sb = new StringBuilder();
+        sb.append("select n.nodeId, a.nodeId from ").append(getEntityName()).append(" n, ").append(getEntityName()).append(" a ")
+                .append("where n.nodeId in :nodeIds and n.treeType = :treeType ")
+                .append("and a.treeId = n.treeId and a.treeType = n.treeType and a.low <= n.low and a.high >= n.high ")
+                .append("order by n.nodeId, a.low");
+        for (List<NodeIdType> chunk : Lists.partition(new ArrayList<>(unloadedNodeIds), BATCH_SIZE)) {
+            javax.persistence.Query query = em.createQuery(sb.toString());
+            query.setParameter("nodeIds", chunk).setParameter("treeType", getTreeType());
+            List<Object[]> rows = query.getResultList();
+            for (Object[] row : rows) {
+                paths.computeIfAbsent((NodeIdType) row[0], key -> new ArrayList<>()).add((NodeIdType) row[1]);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return snapshot of the tree of the node, an empty snapshot if the node is not in any tree,
+     * null if the database must be queried
+     */
+    private IntervalTreeSnapshot<NodeIdType> findSnapshot(NodeIdType nodeId) {
+        if (!snapshotsReady || TransactionSynchronizationManager.getResource(snapshotLock) != null)
+            return null;
+
+        String treeId = nodeTreeIds.get(nodeId);
+        if (treeId == null)
+            return IntervalTreeSnapshot.empty();
+
+        IntervalTreeSnapshot<NodeIdType> snapshot = snapshots.get(treeId);
+        // the node is moving between trees whose snapshots are being replaced
+        return snapshot != null && snapshot.contains(nodeId) ? snapshot : null;
+    }
+
+    /**
+     * lock the trees of the nodes, a node not in any tree is the root of a new tree named by its id.
+     * a node may be moved to another tree before the lock is acquired, the trees are read again until they are all locked
+     */
+    private void lockTrees(Collection<NodeIdType> nodeIds) {
+        Set<String> lockedTreeIds = new HashSet<>();
+        while (true) {
+            Set<String> treeIds = nodeIds.stream().map(Object::toString).collect(Collectors.toCollection(HashSet::new));
+            for (List<NodeIdType> chunk : Lists.partition(new ArrayList<>(nodeIds), BATCH_SIZE)) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("select nodeId, treeId from ").append(getEntityName()).append(" where nodeId in :nodeIds and treeType = :treeType");
+                javax.persistence.Query query = em.createQuery(sb.toString());
+                query.setParameter("nodeIds", chunk).setParameter("treeType", getTreeType());
+                List<Object[]> rows = query.getResultList();
+                for (Object[] row : rows) {
+                    treeIds.remove(row[0].toString());
+                    treeIds.add((String) row[1]);
+                }
+            }
+            if (lockedTreeIds.containsAll(treeIds))
+                return;
+
+            lockedTreeIds.addAll(treeIds);
+            treeLocks.lock(lockedTreeIds);
+        }
+    }
+
+    /**
+     * reload the trees of the nodes, before and after the change, after the transaction commits
+     */
+    private void refreshAfterCommit(Collection<NodeIdType> nodeIds) {
+        TransactionUtils.afterCommit(snapshotLock, HashSet::new, buffer -> buffer.addAll(nodeIds), this::refreshSnapshots);
+    }
+
+    private void refreshSnapshots(Set<NodeIdType> nodeIds) {
+        synchronized (snapshotLock) {
+            if (!snapshotsReady)
+                return;
+
+            Set<String> treeIds = nodeIds.stream().map(nodeTreeIds::get).filter(Objects::nonNull).collect(Collectors.toSet());
+            StringBuilder sb = new StringBuilder();
+            sb.append("select distinct treeId from ").append(getEntityName()).append(" where nodeId in :nodeIds and treeType = :treeType");
+            javax.persistence.Query query = em.createQuery(sb.toString());
+            query.setParameter("nodeIds", nodeIds).setParameter("treeType", getTreeType());
+            treeIds.addAll((List<String>) query.getResultList());
+
+            Map<String, IntervalTreeSnapshot<NodeIdType>> trees = loadTrees(treeIds);
+            // put the new trees before removing the old ones, a moved node is always found in one of them
+            trees.values().forEach(this::putSnapshot);
+            for (String treeId : treeIds) {
+                if (!trees.containsKey(treeId)) {
+                    IntervalTreeSnapshot<NodeIdType> oldSnapshot = snapshots.remove(treeId);
+                    if (oldSnapshot != null) {
+                        oldSnapshot.getNodeIds().forEach(nodeId -> nodeTreeIds.remove(nodeId, treeId));
+                    }
+                }
+            }
+            logger.debug("refresh trees {} of nodes {}", treeIds, nodeIds);
+        }
+    }
+
+    private void putSnapshot(IntervalTreeSnapshot<NodeIdType> snapshot) {
+        IntervalTreeSnapshot<NodeIdType> oldSnapshot = snapshots.put(snapshot.getTreeId(), snapshot);
+        snapshot.getNodeIds().forEach(nodeId -> nodeTreeIds.put(nodeId, snapshot.getTreeId()));
+        if (oldSnapshot != null) {
+            oldSnapshot.getNodeIds().stream().filter(nodeId -> !snapshot.contains(nodeId))
+                    .forEach(nodeId -> nodeTreeIds.remove(nodeId, snapshot.getTreeId()));
+        }
+    }
+
+    /**
+     * @param treeIds null to load all trees
+     */
+    private Map<String, IntervalTreeSnapshot<NodeIdType>> loadTrees(Set<String> treeIds) {
+        Map<String, IntervalTreeSnapshot<NodeIdType>> trees = new HashMap<>();
+        if (treeIds != null && treeIds.isEmpty())
+            return trees;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("select treeId, nodeId, low, high, depth from ").append(getEntityName()).append(" where treeType = :treeType");
+        if (treeIds != null) {
+            sb.append(" and treeId in :treeIds");
+        }
+        sb.append(" order by treeId, low");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("treeType", getTreeType());
+        if (treeIds != null) {
+            query.setParameter("treeIds", treeIds);
+        }
+        List<Object[]> rows = query.getResultList();
+        int start = 0;
+        for (int i = 1; i <= rows.size(); i++) {
+            if (i == rows.size() || !rows.get(i)[0].equals(rows.get(start)[0])) {
+                String treeId = (String) rows.get(start)[0];
+                trees.put(treeId, new IntervalTreeSnapshot<>(treeId, rows.subList(start, i)));
+                start = i;
+            }
+        }
+        return trees;
+    }
+
     private void addChild(NodeType parentNode, NodeType childNode) {
         Preconditions.checkArgument(parentNode != null, "parentNode must not be null");
         Preconditions.checkArgument(childNode != null, "childNode must not be null");
 
-        int childTreeSize = getSize(childNode);
-        updateFollowUpNodesOfParentTree(parentNode, parentNode.getHigh(), true, 2 * childTreeSize);
-        updateAncestorsOfParentTree(parentNode, true, 2 * childTreeSize);
-        updateChildTree(childNode, childNode.getTreeId(), parentNode.getTreeId(), true, parentNode.getHigh() - 1);
+        attachChildTree(parentNode, childNode);
+        updateParentNodeId(childNode, parentNode.getNodeId());
     }
 
     private void removeChild(NodeType parentNode, NodeType childNode, boolean isDeleteLeafChild) {
@@ -134,12 +645,11 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
             em.flush();
             em.detach(childNode);
         } else {
-            updateChildTree(childNode, childNode.getTreeId(), childNode.getNodeId().toString(), false, childNode.getLow() - 1);
+            updateChildTree(childNode, childNode.getTreeId(), childNode.getNodeId().toString(), false, childNode.getLow() - 1, -childNode.getDepth());
+            updateParentNodeId(childNode, null);
         }
 
-        int childTreeSize = getSize(childNode);
-        updateFollowUpNodesOfParentTree(parentNode, childNode.getHigh(), false, 2 * childTreeSize);
-        updateAncestorsOfParentTree(parentNode, false, 2 * childTreeSize);
+        detachChildTree(parentNode, childNode);
 
         parentNode = getNode(parentNode.getNodeId());
         if (isRootWithoutChild(parentNode)) {
@@ -149,10 +659,116 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         }
     }
 
-    private void updateFollowUpNodesOfParentTree(NodeType parentNode, int start, boolean incrementOffset, int offset) {
-        List<NodeType> nodes = find(Query.create().where().gt("low", start)
+    /**
+     * move the child tree, which is a separate tree rooted at the child node, under the parent node
+     */
+    protected void attachChildTree(NodeType parentNode, NodeType childNode) {
+        long childTreeWidth = getWidth(childNode);
+        updateFollowUpNodesOfParentTree(parentNode, parentNode.getHigh(), true, childTreeWidth);
+        updateAncestorsOfParentTree(parentNode, true, childTreeWidth);
+        updateChildTree(childNode, childNode.getTreeId(), parentNode.getTreeId(), true, parentNode.getHigh() - 1,
+                parentNode.getDepth() + 1 - childNode.getDepth());
+    }
+
+    /**
+     * make room of the width at the end of the parent node for new child trees, in one statement
+     *
+     * @return low of the first new child tree
+     */
+    protected long openGap(NodeType parentNode, long width) {
+        shiftNumbers(parentNode.getTreeId(), parentNode.getHigh(), width);
+        return parentNode.getHigh();
+    }
+
+    /**
+     * move the child tree as the last child of the new parent, with a constant number of set-based statements:
+     * within the same tree, one update permutes the numbers between the old and the new position,
+     * across trees, open the gap in the new tree, move the rows and close the hole in the old tree.
+     * the statements are native because MySQL evaluates the assignments of a single table update from left to right,
+     * each CASE only refers to the column it assigns or to columns assigned after it.
+     */
+    protected void moveChildTree(NodeType newParentNode, NodeType childNode) {
+        long width = getWidth(childNode);
+        long low = childNode.getLow();
+        long high = childNode.getHigh();
+        long position = newParentNode.getHigh();
+        int depthOffset = newParentNode.getDepth() + 1 - childNode.getDepth();
+        em.flush();
+        if (newParentNode.getTreeId().equals(childNode.getTreeId())) {
+            // numbers between the child tree and the position shift by the width in the opposite direction
+            long offset = position > high ? position - high - 1 : position - low;
+            long from = position > high ? high + 1 : position;
+            long to = position > high ? position - 1 : low - 1;
+            long shift = position > high ? -width : width;
+            StringBuilder sb = new StringBuilder();
+            sb.append("update ").append(getTableName()).append(" set ")
+                    .append("depth = case when low between :low and :high then depth + :depthOffset else depth end, ")
+                    .append("parent_node_id = case when id = :id then :parentNodeId else parent_node_id end, ")
+                    .append("low = case when low between :low and :high then low + :offset when low between :from and :to then low + :shift else low end, ")
+                    .append("high = case when high between :low and :high then high + :offset when high between :from and :to then high + :shift else high end ")
+                    .append("where tree_id = :treeId and tree_type = :treeType ")
+                    .append("and (low between :min and :max or high between :min and :max)");
+            javax.persistence.Query query = em.createNativeQuery(sb.toString());
+            query.setParameter("low", low).setParameter("high", high).setParameter("depthOffset", depthOffset)
+                    .setParameter("id", childNode.getId()).setParameter("parentNodeId", newParentNode.getNodeId().toString())
+                    .setParameter("offset", offset).setParameter("from", from).setParameter("to", to).setParameter("shift", shift)
+                    .setParameter("treeId", childNode.getTreeId()).setParameter("treeType", getTreeType())
+                    .setParameter("min", Math.min(low, from)).setParameter("max", Math.max(high, to));
+            query.executeUpdate();
+        } else {
+            shiftNumbers(newParentNode.getTreeId(), position, width);
+            moveRows(newParentNode, childNode, position - low, depthOffset);
+            if (!isRoot(childNode)) {
+                shiftNumbers(childNode.getTreeId(), high + 1, -width);
+            }
+        }
+    }
+
+    /**
+     * add the offset to the numbers not less than the start of the tree
+     */
+    private void shiftNumbers(String treeId, long start, long offset) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(getTableName()).append(" set ")
+                .append("low = case when low >= :start then low + :offset else low end, ")
+                .append("high = high + :offset ")
+                .append("where tree_id = :treeId and tree_type = :treeType and high >= :start");
+        javax.persistence.Query query = em.createNativeQuery(sb.toString());
+        query.setParameter("start", start).setParameter("offset", offset)
+                .setParameter("treeId", treeId).setParameter("treeType", getTreeType());
+        query.executeUpdate();
+    }
+
+    /**
+     * move the rows of the child tree to the tree of the new parent with the offset
+     */
+    protected void moveRows(NodeType newParentNode, NodeType childNode, long offset, int depthOffset) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(getTableName()).append(" set ")
+                .append("depth = depth + :depthOffset, ")
+                .append("parent_node_id = case when id = :id then :parentNodeId else parent_node_id end, ")
+                .append("tree_id = :newTreeId, low = low + :offset, high = high + :offset ")
+                .append("where tree_id = :treeId and tree_type = :treeType and low between :low and :high");
+        javax.persistence.Query query = em.createNativeQuery(sb.toString());
+        query.setParameter("depthOffset", depthOffset).setParameter("id", childNode.getId())
+                .setParameter("parentNodeId", newParentNode.getNodeId().toString()).setParameter("newTreeId", newParentNode.getTreeId())
+                .setParameter("offset", offset).setParameter("treeId", childNode.getTreeId()).setParameter("treeType", getTreeType())
+                .setParameter("low", childNode.getLow()).setParameter("high", childNode.getHigh());
+        query.executeUpdate();
+    }
+
+    /**
+     * close the hole left in the parent tree after the child tree (numbered with its old values) was moved out or deleted
+     */
+    protected void detachChildTree(NodeType parentNode, NodeType childNode) {
+        long childTreeWidth = getWidth(childNode);
+        updateFollowUpNodesOfParentTree(parentNode, childNode.getHigh(), false, childTreeWidth);
+        updateAncestorsOfParentTree(parentNode, false, childTreeWidth);
+    }
+
+    private void updateFollowUpNodesOfParentTree(NodeType parentNode, long start, boolean incrementOffset, long offset) {
+        Set<Long> ids = findIds(Query.create().where().gt("low", start)
                 .eq("treeId", parentNode.getTreeId()).eq("treeType", getTreeType()).end());
-        Set<Long> ids = nodes.stream().map(NodeType::getId).collect(Collectors.toSet());
         logger.debug("ids = {}", ids);
         if (ids.isEmpty())
             return;
@@ -161,20 +777,19 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         StringBuilder sb = new StringBuilder();
         sb.append("update ").append(getEntityName()).append(" set low = low ").append(operator).append(" :offset, ")
                 .append("high = high ").append(operator).append(" :offset ")
-                .append("and id in :ids");
+                .append("where id in :ids");
         javax.persistence.Query query = em.createQuery(sb.toString());
         query.setParameter("offset", offset);
         query.setParameter("ids", ids);
         query.executeUpdate();
 
         em.flush();
-        nodes.forEach(node -> em.detach(node));
+        detachNodes(ids);
     }
 
-    private void updateAncestorsOfParentTree(NodeType parentNode, boolean incrementOffset, int offset) {
-        List<NodeType> nodes = find(Query.create().where().le("low", parentNode.getLow()).ge("high", parentNode.getHigh())
+    private void updateAncestorsOfParentTree(NodeType parentNode, boolean incrementOffset, long offset) {
+        Set<Long> ids = findIds(Query.create().where().le("low", parentNode.getLow()).ge("high", parentNode.getHigh())
                 .eq("treeId", parentNode.getTreeId()).eq("treeType", getTreeType()).end());
-        Set<Long> ids = nodes.stream().map(NodeType::getId).collect(Collectors.toSet());
         logger.debug("ids = {}", ids);
         if (ids.isEmpty())
             return;
@@ -182,20 +797,19 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         String operator = incrementOffset ? "+" : "-";
         StringBuilder sb = new StringBuilder();
         sb.append("update ").append(getEntityName()).append(" set high = high ").append(operator).append(" :offset ")
-                .append("and id in :ids");
+                .append("where id in :ids");
         javax.persistence.Query query = em.createQuery(sb.toString());
         query.setParameter("offset", offset);
         query.setParameter("ids", ids);
         query.executeUpdate();
 
         em.flush();
-        nodes.forEach(node -> em.detach(node));
+        detachNodes(ids);
     }
 
-    private void updateChildTree(NodeType childNode, String oldTreeId, String newTreeId, boolean incrementOffset, int offset) {
-        List<NodeType> nodes = find(Query.create().where().ge("low", childNode.getLow()).le("high", childNode.getHigh())
+    protected void updateChildTree(NodeType childNode, String oldTreeId, String newTreeId, boolean incrementOffset, long offset, int depthOffset) {
+        Set<Long> ids = findIds(Query.create().where().ge("low", childNode.getLow()).le("high", childNode.getHigh())
                 .eq("treeId", oldTreeId).eq("treeType", getTreeType()).end());
-        Set<Long> ids = nodes.stream().map(NodeType::getId).collect(Collectors.toSet());
         logger.debug("ids = {}", ids);
         if (ids.isEmpty())
             return;
@@ -203,19 +817,176 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
         String operator = incrementOffset ? "+" : "-";
         StringBuilder sb = new StringBuilder();
         sb.append("update ").append(getEntityName()).append(" set low = low ").append(operator).append(" :offset, ")
-                .append("high = high ").append(operator).append(" :offset, treeId = :newTreeId ")
-                .append("and id in :ids");
+                .append("high = high ").append(operator).append(" :offset, depth = depth + :depthOffset, treeId = :newTreeId ")
+                .append("where id in :ids");
         javax.persistence.Query query = em.createQuery(sb.toString());
         query.setParameter("offset", offset);
+        query.setParameter("depthOffset", depthOffset);
         query.setParameter("newTreeId", newTreeId);
         query.setParameter("ids", ids);
         query.executeUpdate();
 
         em.flush();
-        nodes.forEach(node -> em.detach(node));
+        detachNodes(ids);
+    }
+
+    private Set<NodeIdType> findNonLeafNodeIds(List<NodeType> nodes) {
+        Set<NodeIdType> nonLeafNodeIds = new HashSet<>();
+        for (List<NodeType> chunk : Lists.partition(nodes, BATCH_SIZE)) {
+            Set<NodeIdType> nodeIds = chunk.stream().map(NodeType::getNodeId).collect(Collectors.toSet());
+            nonLeafNodeIds.addAll(findPropertyValues(Query.create().where().in("parentNodeId", nodeIds).eq("treeType", getTreeType()).end(), "parentNodeId"));
+        }
+        return nonLeafNodeIds;
+    }
+
+    /**
+     * make each child tree of the node a separate tree rooted at the child with a single statement,
+     * the assignments are ordered so that each CASE reads values not yet assigned.
+     * the children are ordered by low, the statement is limited to the range they cover
+     */
+    private void promoteChildTrees(NodeType node, List<NodeType> children) {
+        StringBuilder treeIdCase = new StringBuilder("tree_id = case");
+        StringBuilder lowCase = new StringBuilder("low = case");
+        StringBuilder highCase = new StringBuilder("high = case");
+        for (int i = 0; i < children.size(); i++) {
+            treeIdCase.append(" when low between :low").append(i).append(" and :high").append(i).append(" then :treeId").append(i);
+            lowCase.append(" when low between :low").append(i).append(" and :high").append(i).append(" then low - :offset").append(i);
+            highCase.append(" when high between :low").append(i).append(" and :high").append(i).append(" then high - :offset").append(i);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(getTableName()).append(" set depth = depth - :depthOffset, ")
+                .append("parent_node_id = case when parent_node_id = :parentNodeId then null else parent_node_id end, ")
+                .append(treeIdCase).append(" else tree_id end, ")
+                .append(lowCase).append(" else low end, ")
+                .append(highCase).append(" else high end ")
+                .append("where tree_id = :treeId and tree_type = :treeType and low >= :low and high <= :high");
+        javax.persistence.Query query = em.createNativeQuery(sb.toString());
+        for (int i = 0; i < children.size(); i++) {
+            NodeType child = children.get(i);
+            query.setParameter("low" + i, child.getLow()).setParameter("high" + i, child.getHigh())
+                    .setParameter("treeId" + i, child.getNodeId().toString()).setParameter("offset" + i, child.getLow() - 1);
+        }
+        query.setParameter("depthOffset", node.getDepth() + 1).setParameter("parentNodeId", node.getNodeId().toString())
+                .setParameter("treeId", node.getTreeId()).setParameter("treeType", getTreeType())
+                .setParameter("low", children.get(0).getLow()).setParameter("high", children.get(children.size() - 1).getHigh());
+        query.executeUpdate();
+    }
+
+    /**
+     * assign low and high to the nodes in one depth first pass, each number is getNumberGap() after the previous one
+     *
+     * @return nodes ordered by low
+     */
+    private List<NodeType> numberTree(NodeIdType rootNodeId, Map<NodeIdType, List<NodeIdType>> childrenMap) {
+        Map<NodeIdType, NodeType> nodes = new LinkedHashMap<>();
+        Deque<NodeType> openNodes = new ArrayDeque<>();
+        Deque<Iterator<NodeIdType>> openChildren = new ArrayDeque<>();
+        long gap = getNumberGap();
+        long number = 1;
+        NodeType rootNode = newNode(rootNodeId);
+        nodes.put(rootNodeId, rootNode);
+        openNodes.push(rootNode);
+        openChildren.push(childrenMap.getOrDefault(rootNodeId, Collections.emptyList()).iterator());
+        while (!openNodes.isEmpty()) {
+            NodeType node = openNodes.peek();
+            Iterator<NodeIdType> children = openChildren.peek();
+            if (children.hasNext()) {
+                NodeIdType childNodeId = children.next();
+                Preconditions.checkArgument(childNodeId != null, "children of %s must not contain null", node.getNodeId());
+                if (nodes.containsKey(childNodeId)) {
+                    throw new IllegalArgumentException(String.format("%s has more than one parent or is on a cycle", childNodeId));
+                }
+                number += gap;
+                NodeType childNode = newNode(childNodeId);
+                childNode.setLow(number);
+                childNode.setParentNodeId(node.getNodeId());
+                childNode.setDepth(node.getDepth() + 1);
+                childNode.setTreeId(rootNode.getTreeId());
+                nodes.put(childNodeId, childNode);
+                openNodes.push(childNode);
+                openChildren.push(childrenMap.getOrDefault(childNodeId, Collections.emptyList()).iterator());
+            } else {
+                number += gap;
+                node.setHigh(number);
+                openNodes.pop();
+                openChildren.pop();
+            }
+        }
+        Set<NodeIdType> unreachableNodeIds = new HashSet<>(childrenMap.keySet());
+        unreachableNodeIds.removeAll(nodes.keySet());
+        if (!unreachableNodeIds.isEmpty()) {
+            throw new IllegalArgumentException(String.format("%s are not reachable from root %s", unreachableNodeIds, rootNodeId));
+        }
+        return new ArrayList<>(nodes.values());
+    }
+
+    /**
+     * distance between consecutive numbers of a new tree
+     */
+    protected long getNumberGap() {
+        return 1;
     }
 
-    private List<NodeType> getSubTree(NodeType node) {
+    private void checkNotInTree(List<NodeType> nodes) {
+        for (List<NodeType> chunk : Lists.partition(nodes, BATCH_SIZE)) {
+            Set<NodeIdType> nodeIds = chunk.stream().map(NodeType::getNodeId).collect(Collectors.toSet());
+            Set<NodeIdType> existingNodeIds = findPropertyValues(Query.create().where().in("nodeId", nodeIds).eq("treeType", getTreeType()).end(), "nodeId");
+            if (!existingNodeIds.isEmpty()) {
+                throw new IllegalArgumentException(String.format("%s are already in a tree", existingNodeIds));
+            }
+        }
+    }
+
+    private void insertNodes(List<NodeType> nodes) {
+        String insertSQL = "insert into " + getTableName() + " (node_id, low, high, parent_node_id, depth, tree_id, tree_type) values (?, ?, ?, ?, ?, ?, ?)";
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            for (List<NodeType> batch : Lists.partition(nodes, BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(insertSQL)) {
+                    for (NodeType node : batch) {
+                        statement.setString(1, node.getNodeId().toString());
+                        statement.setLong(2, node.getLow());
+                        statement.setLong(3, node.getHigh());
+                        statement.setString(4, node.getParentNodeId() == null ? null : node.getParentNodeId().toString());
+                        statement.setInt(5, node.getDepth());
+                        statement.setString(6, node.getTreeId());
+                        statement.setString(7, node.getTreeType());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+        });
+        logger.debug("insert {} nodes of tree {}", nodes.size(), nodes.get(0).getTreeId());
+    }
+
+    /**
+     * bulk updates bypass the persistence context, detach the loaded nodes so that they are read again
+     */
+    protected void detachNodes(Collection<Long> ids) {
+        SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+        EntityPersister persister = session.getFactory().getMetamodel().entityPersister(clazz);
+        for (Long id : ids) {
+            Object node = session.getPersistenceContext().getEntity(session.generateEntityKey(id, persister));
+            if (node != null) {
+                em.detach(node);
+            }
+        }
+    }
+
+    /**
+     * native updates bypass the persistence context, detach all loaded nodes
+     */
+    protected void detachAllNodes() {
+        SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+        for (Map.Entry<Object, EntityEntry> entry : session.getPersistenceContext().reentrantSafeEntityEntries()) {
+            if (clazz.isInstance(entry.getKey())) {
+                em.detach(entry.getKey());
+            }
+        }
+    }
+
+    protected List<NodeType> getSubTree(NodeType node) {
         Preconditions.checkArgument(node != null, "node must not be null");
 
         if (isLeaf(node))
@@ -226,7 +997,7 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
                 .orderByAsc("low"));
     }
 
-    private NodeType getNode(NodeIdType nodeId) {
+    protected NodeType getNode(NodeIdType nodeId) {
         Preconditions.checkArgument(nodeId != null, "nodeId must not be null");
 
         List<NodeType> result = find(Query.create().where().eq("nodeId", nodeId).eq("treeType", getTreeType()).end());
@@ -236,64 +1007,57 @@ public abstract class IntervalTreeDaoImpl<NodeType extends IntervalTreeNode<Node
     private NodeType getParent(NodeType node) {
         Preconditions.checkArgument(node != null, "node must not be null");
 
-        if (isRoot(node))
-            return null;
-
-        List<NodeType> ancestors = find(Query.create().where().lt("low", node.getLow()).gt("high", node.getHigh())
-                .eq("treeId", node.getTreeId()).eq("treeType", getTreeType()).end());
-        return ancestors.stream().min(Comparator.comparing(ancestor -> node.getLow() - ancestor.getLow())).get();
+        return node.getParentNodeId() == null ? null : getNode(node.getParentNodeId());
     }
 
     private List<NodeType> getChildren(NodeType node) {
-        List<NodeType> subTreeNodes = getSubTree(node);
-        if (subTreeNodes.isEmpty())
-            return Collections.emptyList();
+        Preconditions.checkArgument(node != null, "node must not be null");
 
-        List<NodeType> children = new ArrayList<>();
-        do {
-            NodeType firstChild = subTreeNodes.get(0);
-            children.add(firstChild);
-            subTreeNodes.remove(firstChild);
-            subTreeNodes.removeAll(getSubTree(firstChild));
-        } while (!subTreeNodes.isEmpty());
-        return children;
+        return find(Query.create().where().eq("parentNodeId", node.getNodeId()).eq("treeType", getTreeType()).end().orderByAsc("low"));
     }
 
-    private int getSubTreeSize(NodeType node) {
-        Preconditions.checkArgument(node != null, "node must not be null");
+    private void updateParentNodeId(NodeType node, NodeIdType parentNodeId) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(getEntityName()).append(" set parentNodeId = :parentNodeId where id = :id");
+        javax.persistence.Query query = em.createQuery(sb.toString());
+        query.setParameter("parentNodeId", parentNodeId);
+        query.setParameter("id", node.getId());
+        query.executeUpdate();
 
-        return (node.getHigh() - 1 - node.getLow()) / 2;
+        em.flush();
+        detachNodes(Collections.singleton(node.getId()));
     }
 
-    private int getSize(NodeType node) {
+    protected long getWidth(NodeType node) {
         Preconditions.checkArgument(node != null, "node must not be null");
 
-        return 1 + getSubTreeSize(node);
+        return node.getHigh() - node.getLow() + 1;
     }
 
-    private boolean isRoot(NodeType node) {
+    protected boolean isRoot(NodeType node) {
         Preconditions.checkArgument(node != null, "node must not be null");
 
-        return node.getLow() == 1;
+        return node.getLow() == 1L;
     }
 
-    private boolean isRootWithoutChild(NodeType node) {
+    protected boolean isRootWithoutChild(NodeType node) {
         Preconditions.checkArgument(node != null, "node must not be null");
 
-        return node.getLow() == 1 && node.getHigh() == 2;
+        return node.getLow() == 1L && node.getHigh() == 2L;
     }
 
-    private boolean isLeaf(NodeType node) {
+    protected boolean isLeaf(NodeType node) {
         Preconditions.checkArgument(node != null, "node must not be null");
 
-        return (node.getHigh() - node.getLow()) == 1;
+        return (node.getHigh() - node.getLow()) == 1L;
     }
 
     protected NodeType newNode(NodeIdType nodeId) {
         NodeType node = super.newInstance();
         node.setNodeId(nodeId);
-        node.setLow(1);
-        node.setHigh(2);
+        node.setLow(1L);
+        node.setHigh(2L);
+        node.setDepth(0);
         node.setTreeId(nodeId.toString());
         node.setTreeType(getTreeType());
         return node;
@@ -13,13 +13,21 @@ public interface IntervalTreeNode<NodeIdType extends Serializable> extends Ident
 
     void setNodeId(NodeIdType nodeId);
 
-    Integer getLow();
+    Long getLow();
 
-    void setLow(Integer low);
+    void setLow(Long low);
 
-    Integer getHigh();
+    Long getHigh();
 
-    void setHigh(Integer high);
+    void setHigh(Long high);
+
+    NodeIdType getParentNodeId();
+
+    void setParentNodeId(NodeIdType parentNodeId);
+
+    Integer getDepth();
+
+    void setDepth(Integer depth);
 
     String getTreeId();
 
@@ -0,0 +1,113 @@
+package graph;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * immutable copy of one interval tree, nodes are sorted by low so a subtree is a contiguous range found by binary search.
+ * a snapshot is never modified, a changed tree is replaced by a new snapshot.
+ *
+ * @author csieflyman
+ */
+final class IntervalTreeSnapshot<NodeIdType extends Serializable> {
+
+    private static final IntervalTreeSnapshot<?> EMPTY = new IntervalTreeSnapshot<>(null, Collections.emptyList());
+
+    private final String treeId;
+    private final long[] lows;
+    private final long[] highs;
+    private final int[] depths;
+    private final int[] parents;
+    private final List<NodeIdType> nodeIds;
+    private final Map<NodeIdType, Integer> indexes;
+
+    /**
+     * @param rows treeId, nodeId, low, high, depth of the nodes of the tree sorted by low
+     */
+    IntervalTreeSnapshot(String treeId, List<Object[]> rows) {
+        this.treeId = treeId;
+        int size = rows.size();
+        lows = new long[size];
+        highs = new long[size];
+        depths = new int[size];
+        parents = new int[size];
+        nodeIds = new ArrayList<>(size);
+        indexes = new HashMap<>((int) (size / 0.75f) + 1);
+        Deque<Integer> openIndexes = new ArrayDeque<>();
+        for (int i = 0; i < size; i++) {
+            Object[] row = rows.get(i);
+            @SuppressWarnings("unchecked")
+            NodeIdType nodeId = (NodeIdType) row[1];
+            nodeIds.add(nodeId);
+            lows[i] = (Long) row[2];
+            highs[i] = (Long) row[3];
+            depths[i] = (Integer) row[4];
+            indexes.put(nodeId, i);
+            while (!openIndexes.isEmpty() && highs[openIndexes.peek()] < lows[i]) {
+                openIndexes.pop();
+            }
+            parents[i] = openIndexes.isEmpty() ? -1 : openIndexes.peek();
+            openIndexes.push(i);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <NodeIdType extends Serializable> IntervalTreeSnapshot<NodeIdType> empty() {
+        return (IntervalTreeSnapshot<NodeIdType>) EMPTY;
+    }
+
+    String getTreeId() {
+        return treeId;
+    }
+
+    Collection<NodeIdType> getNodeIds() {
+        return indexes.keySet();
+    }
+
+    boolean contains(NodeIdType nodeId) {
+        return indexes.containsKey(nodeId);
+    }
+
+    /**
+     * descendants ordered by low, at most maxLevels below the node
+     */
+    List<NodeIdType> getSubTree(NodeIdType nodeId, int maxLevels) {
+        Integer index = indexes.get(nodeId);
+        if (index == null)
+            return Collections.emptyList();
+
+        int end = Arrays.binarySearch(lows, index + 1, lows.length, highs[index]);
+        // high is never a low, the insertion point is the end of the subtree
+        end = end < 0 ? -end - 1 : end;
+        int maxDepth = maxLevels == Integer.MAX_VALUE ? Integer.MAX_VALUE : depths[index] + maxLevels;
+        List<NodeIdType> subTree = new ArrayList<>(end - index - 1);
+        for (int i = index + 1; i < end; i++) {
+            if (depths[i] <= maxDepth) {
+                subTree.add(nodeIds.get(i));
+            }
+        }
+        return subTree;
+    }
+
+    /**
+     * ancestors ordered from the root to the parent
+     */
+    List<NodeIdType> getAncestors(NodeIdType nodeId) {
+        Integer index = indexes.get(nodeId);
+        if (index == null)
+            return Collections.emptyList();
+
+        LinkedList<NodeIdType> ancestors = new LinkedList<>();
+        for (int i = parents[index]; i >= 0; i = parents[i]) {
+            ancestors.addFirst(nodeIds.get(i));
+        }
+        return new ArrayList<>(ancestors);
+    }
+
+    boolean isDescendant(NodeIdType ancestorNodeId, NodeIdType descendantNodeId) {
+        Integer ancestor = indexes.get(ancestorNodeId);
+        Integer descendant = indexes.get(descendantNodeId);
+        return ancestor != null && descendant != null
+                && lows[ancestor] < lows[descendant] && highs[descendant] < highs[ancestor];
+    }
+}
@@ -2,6 +2,7 @@ package graph;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.*;
 import java.util.UUID;
@@ -44,9 +45,11 @@ public class PartyDagEdge implements DagEdge<UUID> {
     private Long exitEdgeId;
 
     @Column(name = "start_vertex_id")
+    @Type(type = "uuid-char")
     private UUID startVertexId;
 
     @Column(name = "end_vertex_id")
+    @Type(type = "uuid-char")
     private UUID endVertexId;
 
     /**
@@ -1,5 +1,6 @@
 package graph;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
 import java.util.UUID;
@@ -7,6 +8,7 @@ import java.util.UUID;
 /**
  * @author csieflyman
  */
+@ConditionalOnProperty(name = "party.dag.closure-mode", havingValue = "edge", matchIfMissing = true)
 @Repository("partyDagEdgeDao")
 class PartyDagEdgeDaoImpl extends DagEdgeDaoImpl<PartyDagEdge, UUID> {
 
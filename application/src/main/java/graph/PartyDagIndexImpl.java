@@ -0,0 +1,34 @@
+package graph;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * @author csieflyman
+ */
+@Component("partyDagIndex")
+class PartyDagIndexImpl extends DagIndexImpl<UUID> {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        reload();
+    }
+
+    @Override
+    protected List<Pair<UUID, UUID>> loadEdges() {
+        List<Object[]> rows = em.createNativeQuery("select parent_id, child_id from party_rel").getResultList();
+        return rows.stream().map(row -> Pair.of(UUID.fromString(row[0].toString()), UUID.fromString(row[1].toString())))
+                .collect(Collectors.toList());
+    }
+}
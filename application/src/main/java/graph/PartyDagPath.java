@@ -0,0 +1,111 @@
+package graph;
+
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.hibernate.annotations.Type;
+
+import javax.persistence.*;
+import java.util.UUID;
+
+/**
+ * @author csieflyman
+ */
+@Entity
+@Table(name = "dag_path")
+public class PartyDagPath implements DagPath<UUID> {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "start_vertex_id")
+    @Type(type = "uuid-char")
+    private UUID startVertexId;
+
+    @Column(name = "end_vertex_id")
+    @Type(type = "uuid-char")
+    private UUID endVertexId;
+
+    /**
+     * The number of distinct paths from the start vertex to the end vertex
+     */
+    @Column(name = "path_count")
+    private Long pathCount;
+
+    /**
+     * Indicates how many vertex hops are necessary for the shortest path.
+     * It is zero if there is a direct edge.
+     */
+    @Column(name = "min_hops")
+    private Integer minHops;
+
+    @Column(name = "dag_id")
+    private String dagId = PartyDagEdge.DAG_ID;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public UUID getStartVertexId() {
+        return startVertexId;
+    }
+
+    public void setStartVertexId(UUID startVertexId) {
+        this.startVertexId = startVertexId;
+    }
+
+    public UUID getEndVertexId() {
+        return endVertexId;
+    }
+
+    public void setEndVertexId(UUID endVertexId) {
+        this.endVertexId = endVertexId;
+    }
+
+    public Long getPathCount() {
+        return pathCount;
+    }
+
+    public void setPathCount(Long pathCount) {
+        this.pathCount = pathCount;
+    }
+
+    public Integer getMinHops() {
+        return minHops;
+    }
+
+    public void setMinHops(Integer minHops) {
+        this.minHops = minHops;
+    }
+
+    public String getDagId() {
+        return dagId;
+    }
+
+    public void setDagId(String dagId) {
+        this.dagId = dagId;
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder().append(id).toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        PartyDagPath path = (PartyDagPath) o;
+        return this.getId().equals(path.getId());
+    }
+
+    @Override
+    public String toString() {
+        return ToStringBuilder.reflectionToString(this);
+    }
+}
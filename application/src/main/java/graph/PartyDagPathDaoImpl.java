@@ -0,0 +1,19 @@
+package graph;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.util.UUID;
+
+/**
+ * @author csieflyman
+ */
+@ConditionalOnProperty(name = "party.dag.closure-mode", havingValue = "path")
+@Repository("partyDagEdgeDao")
+class PartyDagPathDaoImpl extends DagPathDaoImpl<PartyDagPath, UUID> {
+
+    @Override
+    protected String getDagId() {
+        return PartyDagEdge.DAG_ID;
+    }
+}
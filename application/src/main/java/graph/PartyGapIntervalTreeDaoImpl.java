@@ -0,0 +1,19 @@
+package graph;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.util.UUID;
+
+/**
+ * @author csieflyman
+ */
+@ConditionalOnProperty(name = "party.tree.numbering", havingValue = "gap")
+@Repository("partyIntervalTreeDao")
+public class PartyGapIntervalTreeDaoImpl extends GapIntervalTreeDaoImpl<PartyIntervalTreeNode, UUID> {
+
+    @Override
+    protected String getTreeType() {
+        return PartyIntervalTreeNode.TREE_TYPE;
+    }
+}
@@ -3,6 +3,7 @@ package graph;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.*;
 import java.util.UUID;
@@ -17,17 +18,28 @@ public class PartyIntervalTreeNode implements IntervalTreeNode<UUID> {
     public static final String TREE_TYPE = "member";
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
     @Column(name = "node_id")
+    @Type(type = "uuid-char")
     private UUID nodeId;
 
     @Column(name = "low")
-    private Integer low;
+    private Long low;
 
     @Column(name = "high")
-    private Integer high;
+    private Long high;
+
+    @Column(name = "parent_node_id")
+    @Type(type = "uuid-char")
+    private UUID parentNodeId;
+
+    /**
+     * 0 for the root
+     */
+    @Column(name = "depth")
+    private Integer depth = 0;
 
     @Column(name = "tree_id")
     private String treeId;
@@ -54,22 +66,42 @@ public class PartyIntervalTreeNode implements IntervalTreeNode<UUID> {
         this.nodeId = nodeId;
     }
 
-    public Integer getLow() {
+    public Long getLow() {
         return low;
     }
 
-    public void setLow(Integer low) {
+    public void setLow(Long low) {
         this.low = low;
     }
 
-    public Integer getHigh() {
+    public Long getHigh() {
         return high;
     }
 
-    public void setHigh(Integer high) {
+    public void setHigh(Long high) {
         this.high = high;
     }
 
+    @Override
+    public UUID getParentNodeId() {
+        return parentNodeId;
+    }
+
+    @Override
+    public void setParentNodeId(UUID parentNodeId) {
+        this.parentNodeId = parentNodeId;
+    }
+
+    @Override
+    public Integer getDepth() {
+        return depth;
+    }
+
+    @Override
+    public void setDepth(Integer depth) {
+        this.depth = depth;
+    }
+
     @Override
     public String getTreeId() {
         return treeId;
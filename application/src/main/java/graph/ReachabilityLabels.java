@@ -0,0 +1,239 @@
+package graph;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * GRAIL-style reachability labels of a CsrGraph (Yildirim et al., "GRAIL: Scalable Reachability Index for Large Graphs").
+ * each of the k random DFS traversals gives every vertex an interval [low, high] that contains the intervals of all its descendants,
+ * so a pair whose intervals are not nested in any traversal is unreachable (negative cut).
+ * the pre-order interval of the first traversal's spanning tree answers the tree-reachable pairs (positive cut),
+ * the remaining pairs are resolved by a DFS pruned with the labels.
+ * <p>
+ * added edges expand the intervals of the start vertex and its ascendants, removed edges leave the intervals as they are
+ * (still contain the descendants), only the positive cut is dropped until the next full relabeling.
+ *
+ * @author csieflyman
+ */
+final class ReachabilityLabels {
+
+    private static final int TRAVERSAL_COUNT = 3;
+    private static final int RELABEL_THRESHOLD = 1000;
+
+    private final CsrGraph graph;
+    private final int[][] lows;
+    private final int[][] highs;
+    // pre-order number and subtree size in the spanning tree of the first traversal, -1 if the vertex was added afterwards
+    private final int[] preOrders;
+    private final int[] treeSizes;
+    private final boolean treeValid;
+    private final int nextRank;
+    private final int changeCount;
+
+    private ReachabilityLabels(CsrGraph graph, int[][] lows, int[][] highs, int[] preOrders, int[] treeSizes, boolean treeValid,
+                               int nextRank, int changeCount) {
+        this.graph = graph;
+        this.lows = lows;
+        this.highs = highs;
+        this.preOrders = preOrders;
+        this.treeSizes = treeSizes;
+        this.treeValid = treeValid;
+        this.nextRank = nextRank;
+        this.changeCount = changeCount;
+    }
+
+    static ReachabilityLabels build(CsrGraph graph) {
+        int n = graph.vertexCount();
+        int[][] lows = new int[TRAVERSAL_COUNT][];
+        int[][] highs = new int[TRAVERSAL_COUNT][];
+        int[] preOrders = new int[n];
+        int[] treeSizes = new int[n];
+        Random random = new Random(n);
+        for (int i = 0; i < TRAVERSAL_COUNT; i++) {
+            lows[i] = new int[n];
+            highs[i] = new int[n];
+            traverse(graph, random, i == 0 ? null : random, lows[i], highs[i], i == 0 ? preOrders : null, i == 0 ? treeSizes : null);
+        }
+        return new ReachabilityLabels(graph, lows, highs, preOrders, treeSizes, true, n, 0);
+    }
+
+    /**
+     * iterative post-order DFS from the sources, children are visited from a random offset when the random is given
+     */
+    private static void traverse(CsrGraph graph, Random rootRandom, Random childRandom, int[] low, int[] high, int[] preOrders, int[] treeSizes) {
+        int n = graph.vertexCount();
+        // sources in random order first, then the others in case any vertex is not reachable from a source
+        int[] roots = new int[2 * n];
+        int rootCount = 0;
+        for (int v = 0; v < n; v++) {
+            if (graph.inDegree(v) == 0) {
+                roots[rootCount++] = v;
+            }
+        }
+        shuffle(roots, rootCount, rootRandom);
+        for (int v = 0; v < n; v++) {
+            roots[rootCount++] = v;
+        }
+
+        BitSet visited = new BitSet(n);
+        int[] stack = new int[Math.max(n, 1)];
+        int[] cursors = new int[Math.max(n, 1)];
+        int[] starts = new int[Math.max(n, 1)];
+        int rank = 0;
+        int preOrder = 0;
+        for (int r = 0; r < rootCount; r++) {
+            if (visited.get(roots[r]))
+                continue;
+            int top = 0;
+            stack[0] = roots[r];
+            starts[0] = childRandom == null ? 0 : childRandom.nextInt(Math.max(graph.outDegree(roots[r]), 1));
+            cursors[0] = 0;
+            visited.set(roots[r]);
+            low[roots[r]] = Integer.MAX_VALUE;
+            if (preOrders != null) {
+                preOrders[roots[r]] = preOrder++;
+            }
+            while (top >= 0) {
+                int v = stack[top];
+                int degree = graph.outDegree(v);
+                if (cursors[top] < degree) {
+                    int w = graph.outgoingVertex(v, (starts[top] + cursors[top]++) % degree);
+                    if (!visited.get(w)) {
+                        visited.set(w);
+                        low[w] = Integer.MAX_VALUE;
+                        if (preOrders != null) {
+                            preOrders[w] = preOrder++;
+                        }
+                        top++;
+                        stack[top] = w;
+                        cursors[top] = 0;
+                        starts[top] = childRandom == null ? 0 : childRandom.nextInt(Math.max(graph.outDegree(w), 1));
+                    } else {
+                        low[v] = Math.min(low[v], low[w]);
+                    }
+                } else {
+                    high[v] = rank++;
+                    low[v] = Math.min(low[v], high[v]);
+                    if (preOrders != null) {
+                        treeSizes[v] = preOrder - preOrders[v];
+                    }
+                    top--;
+                    if (top >= 0) {
+                        low[stack[top]] = Math.min(low[stack[top]], low[v]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void shuffle(int[] array, int size, Random random) {
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+
+    /**
+     * labels of the new graph after the given edges were added and removed
+     */
+    ReachabilityLabels update(CsrGraph newGraph, long[] addedEdges, boolean removed) {
+        int changes = changeCount + addedEdges.length + (removed ? 1 : 0);
+        if (changes > RELABEL_THRESHOLD) {
+            return build(newGraph);
+        }
+
+        int n = newGraph.vertexCount();
+        int oldCount = preOrders.length;
+        int rank = nextRank;
+        int[][] newLows = new int[TRAVERSAL_COUNT][];
+        int[][] newHighs = new int[TRAVERSAL_COUNT][];
+        for (int i = 0; i < TRAVERSAL_COUNT; i++) {
+            newLows[i] = Arrays.copyOf(lows[i], n);
+            newHighs[i] = Arrays.copyOf(highs[i], n);
+        }
+        for (int v = oldCount; v < n; v++) {
+            for (int i = 0; i < TRAVERSAL_COUNT; i++) {
+                newLows[i][v] = rank;
+                newHighs[i][v] = rank;
+            }
+            rank++;
+        }
+        int[] newPreOrders = Arrays.copyOf(preOrders, n);
+        Arrays.fill(newPreOrders, oldCount, n, -1);
+        int[] newTreeSizes = Arrays.copyOf(treeSizes, n);
+
+        for (long edge : addedEdges) {
+            int start = CsrGraph.startVertex(edge);
+            int end = CsrGraph.endVertex(edge);
+            for (int i = 0; i < TRAVERSAL_COUNT; i++) {
+                expand(newGraph, newLows[i], newHighs[i], start, end);
+            }
+        }
+        return new ReachabilityLabels(newGraph, newLows, newHighs, newPreOrders, newTreeSizes, treeValid && !removed, rank, changes);
+    }
+
+    /**
+     * make the intervals of the start vertex and its ascendants contain the interval of the end vertex,
+     * an ascendant already containing it is not expanded further because its ascendants contain it too
+     */
+    private static void expand(CsrGraph graph, int[] low, int[] high, int start, int end) {
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            int v = queue.poll();
+            if (low[v] <= low[end] && high[end] <= high[v])
+                continue;
+            low[v] = Math.min(low[v], low[end]);
+            high[v] = Math.max(high[v], high[end]);
+            for (int i = 0; i < graph.inDegree(v); i++) {
+                queue.add(graph.incomingVertex(v, i));
+            }
+        }
+    }
+
+    CsrGraph graph() {
+        return graph;
+    }
+
+    boolean isReachable(int from, int to) {
+        int n = graph.vertexCount();
+        if (from < 0 || from >= n || to < 0 || to >= n || from == to)
+            return false;
+        if (!containsInAllLabels(from, to))
+            return false;
+        if (treeValid && preOrders[from] >= 0 && preOrders[to] >= 0
+                && preOrders[from] < preOrders[to] && preOrders[to] < preOrders[from] + treeSizes[from])
+            return true;
+
+        BitSet visited = new BitSet(n);
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(from);
+        visited.set(from);
+        while (!stack.isEmpty()) {
+            int v = stack.pop();
+            for (int i = 0; i < graph.outDegree(v); i++) {
+                int w = graph.outgoingVertex(v, i);
+                if (w == to)
+                    return true;
+                if (!visited.get(w) && containsInAllLabels(w, to)) {
+                    visited.set(w);
+                    stack.push(w);
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean containsInAllLabels(int from, int to) {
+        for (int i = 0; i < TRAVERSAL_COUNT; i++) {
+            if (lows[i][to] < lows[i][from] || highs[i][from] < highs[i][to])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+package graph;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Striped;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * locks of keys (tree ids, vertex ids) hashed to a fixed number of stripes.
+ * locks are held until the transaction completes, because the rows changed under a lock stay locked by the database until then.
+ * within a transaction stripes are locked in ascending order, a stripe lower than one already held is tried with a timeout,
+ * a timeout throws CannotAcquireLockException to be retried by @DeadlockRetry.
+ * a transaction locking more than COARSE_STRIPES stripes at once takes the coarse lock of all stripes exclusively instead,
+ * the other transactions hold the coarse lock shared while they lock the stripes. a transaction that already holds stripes can not
+ * upgrade the coarse lock, it locks the further stripes one by one.
+ * with a database lock, the stripes are also locked in the database in the same order to serialize the nodes of a cluster.
+ * the wait time and the timeouts are recorded as graph.lock.wait and graph.lock.timeout tagged by the name.
+ *
+ * @author csieflyman
+ */
+@Slf4j
+final class StripedLocks {
+
+    private static final int STRIPES = 1024;
+    // locking more stripes than this one by one costs more than waiting for the other transactions to complete
+    private static final int COARSE_STRIPES = STRIPES / 8;
+    // the database row of the coarse lock, no key is hashed to it
+    private static final int COARSE_STRIPE = STRIPES;
+
+    interface DatabaseLock {
+
+        /**
+         * lock the stripe until the transaction completes
+         *
+         * @param shared only the coarse stripe is locked shared
+         */
+        void lock(int stripe, boolean shared);
+    }
+
+    /**
+     * lock the rows of the stripes in the table (keyColumn, stripe), the rows are inserted on first use
+     */
+    static DatabaseLock databaseLock(EntityManager em, String tableName, String keyColumn, String key) {
+        // a duplicate key of insert ignore takes a shared lock of the existing row
+        String sharedSQL = "insert ignore into " + tableName + " (" + keyColumn + ", stripe) values (:key, :stripe)";
+        String exclusiveSQL = "insert into " + tableName + " (" + keyColumn + ", stripe) values (:key, :stripe) on duplicate key update stripe = stripe";
+        return (stripe, shared) -> em.createNativeQuery(shared ? sharedSQL : exclusiveSQL)
+                .setParameter("key", key).setParameter("stripe", stripe).executeUpdate();
+    }
+
+    private final String name;
+    private final DatabaseLock databaseLock;
+    private final long timeoutMillis;
+    private final Striped<Lock> locks = Striped.lock(STRIPES);
+    private final ReentrantReadWriteLock coarseLock = new ReentrantReadWriteLock();
+    private final Timer waitTimer;
+
+    /**
+     * @param databaseLock null to lock in this process only
+     */
+    StripedLocks(String name, DatabaseLock databaseLock, long timeoutMillis) {
+        this.name = name;
+        this.databaseLock = databaseLock;
+        this.timeoutMillis = timeoutMillis;
+        this.waitTimer = Metrics.timer("graph.lock.wait", "name", name);
+    }
+
+    void lock(Collection<?> keys) {
+        Preconditions.checkState(TransactionSynchronizationManager.isSynchronizationActive(), "%s %s must be changed within a transaction", name, keys);
+
+        HeldLocks heldLocks = getHeldLocks();
+        if (heldLocks.exclusive)
+            return;
+
+        SortedSet<Integer> stripes = new TreeSet<>();
+        keys.forEach(key -> stripes.add(Math.floorMod(key.toString().hashCode(), STRIPES)));
+        stripes.removeAll(heldLocks.stripes);
+        if (stripes.isEmpty())
+            return;
+
+        long startTime = System.nanoTime();
+        if (!heldLocks.shared && stripes.size() > COARSE_STRIPES) {
+            lockCoarse(heldLocks, false);
+            waitTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            log.debug("lock {} all stripes for {} stripes", name, stripes.size());
+            return;
+        }
+        if (!heldLocks.shared) {
+            lockCoarse(heldLocks, true);
+        }
+        for (int stripe : stripes) {
+            tryLock(locks.getAt(stripe), "stripe " + stripe);
+            heldLocks.stripes.add(stripe);
+        }
+        if (databaseLock != null) {
+            stripes.forEach(stripe -> databaseLock.lock(stripe, false));
+        }
+        waitTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        log.debug("lock {} stripes {}", name, stripes);
+    }
+
+    /**
+     * lock all stripes until the transaction completes, the transaction must not hold any stripe yet
+     */
+    void lockAll() {
+        Preconditions.checkState(TransactionSynchronizationManager.isSynchronizationActive(), "%s must be locked within a transaction", name);
+
+        HeldLocks heldLocks = getHeldLocks();
+        if (heldLocks.exclusive)
+            return;
+        Preconditions.checkState(!heldLocks.shared, "%s stripes %s are locked before all stripes", name, heldLocks.stripes);
+
+        long startTime = System.nanoTime();
+        lockCoarse(heldLocks, false);
+        waitTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        log.debug("lock {} all stripes", name);
+    }
+
+    private void lockCoarse(HeldLocks heldLocks, boolean shared) {
+        if (shared) {
+            tryLock(coarseLock.readLock(), "shared");
+            heldLocks.shared = true;
+        } else {
+            tryLock(coarseLock.writeLock(), "all stripes");
+            heldLocks.exclusive = true;
+        }
+        if (databaseLock != null) {
+            databaseLock.lock(COARSE_STRIPE, shared);
+        }
+    }
+
+    private void tryLock(Lock lock, String description) {
+        try {
+            if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                Metrics.counter("graph.lock.timeout", "name", name).increment();
+                throw new CannotAcquireLockException(String.format("fail to lock %s %s in %d ms", name, description, timeoutMillis));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CannotAcquireLockException(String.format("interrupted while locking %s %s", name, description), e);
+        }
+    }
+
+    private HeldLocks getHeldLocks() {
+        HeldLocks heldLocks = (HeldLocks) TransactionSynchronizationManager.getResource(this);
+        if (heldLocks == null) {
+            HeldLocks newHeldLocks = new HeldLocks();
+            TransactionSynchronizationManager.bindResource(this, newHeldLocks);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(StripedLocks.this);
+                    newHeldLocks.stripes.forEach(stripe -> locks.getAt(stripe).unlock());
+                    if (newHeldLocks.shared) {
+                        coarseLock.readLock().unlock();
+                    }
+                    if (newHeldLocks.exclusive) {
+                        coarseLock.writeLock().unlock();
+                    }
+                }
+            });
+            heldLocks = newHeldLocks;
+        }
+        return heldLocks;
+    }
+
+    /**
+     * locks held by the transaction
+     */
+    private static class HeldLocks {
+
+        private boolean shared;
+        private boolean exclusive;
+        private final SortedSet<Integer> stripes = new TreeSet<>();
+    }
+}
@@ -0,0 +1,31 @@
+package graph;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * a page of a subtree ordered by low, the next page starts after nextLow
+ *
+ * @author csieflyman
+ */
+public class SubTreePage<NodeIdType extends Serializable> {
+
+    private final List<NodeIdType> nodeIds;
+    private final Long nextLow;
+
+    public SubTreePage(List<NodeIdType> nodeIds, Long nextLow) {
+        this.nodeIds = nodeIds;
+        this.nextLow = nextLow;
+    }
+
+    public List<NodeIdType> getNodeIds() {
+        return nodeIds;
+    }
+
+    /**
+     * @return low of the last node of the page, null if it is the last page
+     */
+    public Long getNextLow() {
+        return nextLow;
+    }
+}
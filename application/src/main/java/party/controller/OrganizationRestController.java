@@ -2,16 +2,27 @@ package party.controller;
 
 import base.controller.AbstractController;
 import base.exception.BadRequestException;
+import base.util.Json;
+import base.util.query.Query;
+import com.fasterxml.jackson.core.JsonGenerator;
+import graph.SubTreePage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import party.model.Organization;
 import party.model.Party;
 import party.model.PartyType;
 import party.service.OrganizationService;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 /**
  * @author csieflyman
@@ -22,6 +33,11 @@ import java.util.UUID;
 @ResponseBody
 public class OrganizationRestController extends AbstractController {
 
+    private static final String Q_AFTER_LOW = "afterLow";
+    private static final String Q_MAX_HOPS = "maxHops";
+    private static final String Q_LIMIT = "limit";
+    private static final int MAX_LIMIT = 10000;
+
     @Autowired
     private OrganizationService organizationService;
 
@@ -36,4 +52,65 @@ public class OrganizationRestController extends AbstractController {
         Party child = organizationService.getById(childUUID);
         organizationService.movePartyToOrganization(child, organization);
     }
+
+    @GetMapping("/{id}/path")
+    public List<Party> getAncestorPath(@PathVariable String id) {
+        List<Party> path = organizationService.getAncestorPath(UUID.fromString(id));
+        path.forEach(Party::removeRelations); // do not serialize relations
+        return path;
+    }
+
+    @GetMapping("/paths")
+    public Map<UUID, List<Party>> getAncestorPaths(@RequestParam(name = "ids") List<String> idList) {
+        log.debug("getAncestorPaths: " + idList);
+        Map<UUID, List<Party>> paths = organizationService.getAncestorPaths(idList.stream().map(UUID::fromString).collect(Collectors.toSet()));
+        paths.values().forEach(path -> path.forEach(Party::removeRelations)); // do not serialize relations
+        return paths;
+    }
+
+    @GetMapping("/{id}/descendantIds")
+    public SubTreePage<UUID> getDescendantIds(@PathVariable String id, @RequestParam(name = Q_AFTER_LOW, required = false) Long afterLow,
+                                              @RequestParam(name = Q_MAX_HOPS, required = false) Integer maxHops,
+                                              @RequestParam(name = Q_LIMIT, required = false, defaultValue = "1000") int limit) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new BadRequestException(String.format("limit must be between 1 and %d", MAX_LIMIT));
+        }
+        return organizationService.getDescendantIds(UUID.fromString(id), afterLow, maxHops, limit);
+    }
+
+    @GetMapping("/{id}/descendantIds/stream")
+    public ResponseEntity<StreamingResponseBody> streamDescendantIds(@PathVariable String id,
+                                                                     @RequestParam(name = Q_MAX_HOPS, required = false) Integer maxHops) {
+        UUID uuid = UUID.fromString(id);
+        StreamingResponseBody body = outputStream -> {
+            // ids are written to the response as they are read, nothing is held in memory
+            try (JsonGenerator generator = Json.getObjectMapper().getFactory().createGenerator(outputStream)) {
+                generator.writeStartArray();
+                organizationService.forEachDescendantId(uuid, maxHops, descendantId -> {
+                    try {
+                        generator.writeString(descendantId.toString());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(body);
+    }
+
+    @PutMapping("{parentId}/children")
+    public void movePartiesToOrganization(@PathVariable String parentId, @RequestBody List<String> childrenIds) {
+        log.debug("move " + childrenIds + " to " + parentId);
+        if (childrenIds.isEmpty())
+            return;
+
+        UUID parentUUID = UUID.fromString(parentId);
+        Organization organization = organizationService.getById(parentUUID, Party.RELATION_PARENT);
+        if (organization != null && organization.getType() != PartyType.OU) {
+            throw new BadRequestException(String.format("%s is not a organization", parentUUID));
+        }
+        List<Party> children = organizationService.findParties(Query.create().where().in("id", childrenIds.stream().map(UUID::fromString).collect(Collectors.toSet())).end());
+        organizationService.movePartiesToOrganization(children, organization);
+    }
 }
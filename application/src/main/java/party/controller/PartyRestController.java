@@ -2,7 +2,15 @@ package party.controller;
 
 import base.controller.AbstractController;
 import base.model.Identifiable;
+import base.dto.request.BatchFormRequest;
+import base.dto.response.BatchResponse;
+import base.exception.BadRequestException;
+import base.util.Json;
 import base.util.query.Query;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,15 +21,21 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.util.MultiValueMap;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
+import party.dto.PartyBatchForm;
 import party.dto.PartyCreateForm;
 import party.dto.PartyForm;
+import party.dto.PartyImportForm;
+import party.dto.PartyRelationsForm;
 import party.model.Party;
+import party.service.PartyBatchService;
 import party.service.PartyService;
 
-import java.util.List;
-import java.util.Set;
-import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author csieflyman
@@ -32,9 +46,20 @@ import java.util.stream.Collectors;
 @ResponseBody
 public class PartyRestController extends AbstractController {
     
+    private static final String Q_MAX_HOPS = "maxHops";
+    private static final String Q_CASCADE = "cascade";
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
+    private static final String MEDIA_TYPE_CSV = "text/csv";
+    // a CSV cell is read as a single element list, the parents in the cell are split by the form
+    private static final ObjectReader CSV_READER = new CsvMapper().enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+            .readerFor(PartyImportForm.class).with(CsvSchema.emptySchema().withHeader());
+
     @Autowired
     private PartyService<Party> partyService;
     @Autowired
+    private PartyBatchService partyBatchService;
+    @Autowired
     private BeanFactory beanFactory;
 
     @PostMapping
@@ -47,6 +72,32 @@ public class PartyRestController extends AbstractController {
         return ResponseEntity.status(HttpStatus.CREATED).body(entity.getId());
     }
 
+    @PostMapping(value = "/import", consumes = {MEDIA_TYPE_NDJSON, MEDIA_TYPE_CSV})
+    public BatchResponse importParties(HttpServletRequest request) throws IOException {
+        log.debug("import parties: " + request.getContentType());
+        ObjectReader reader = request.getContentType().startsWith(MEDIA_TYPE_CSV) ? CSV_READER : Json.getObjectMapper().readerFor(PartyImportForm.class);
+        return partyBatchService.importParties(reader.readValues(request.getInputStream()));
+    }
+
+    @PostMapping("/batch")
+    public BatchResponse createBatch(@RequestBody BatchFormRequest<UUID, PartyBatchForm> request) {
+        log.debug("create batch: " + request);
+        return partyBatchService.create(checkBatchSize(request.getForm()));
+    }
+
+    @PutMapping("/batch")
+    public BatchResponse updateBatch(@RequestBody BatchFormRequest<UUID, PartyBatchForm> request) {
+        log.debug("update batch: " + request);
+        return partyBatchService.update(checkBatchSize(request.getForm()));
+    }
+
+    private List<PartyBatchForm> checkBatchSize(List<PartyBatchForm> forms) {
+        if (forms == null || forms.isEmpty() || forms.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException(String.format("forms must be between 1 and %d", MAX_BATCH_SIZE));
+        }
+        return forms;
+    }
+
     @PutMapping({"/{id}"})
     public void update(@PathVariable String id, @RequestBody PartyForm form, BindingResult result) {
         log.debug("update partyForm: " + form);
@@ -79,9 +130,11 @@ public class PartyRestController extends AbstractController {
     }
 
     @GetMapping({"/{id}/ascendants"})
-    public Object getAscendants(@PathVariable String id, @RequestParam() MultiValueMap<String, String> requestParam) {
+    public Object getAscendants(@PathVariable String id, @RequestParam(name = Q_MAX_HOPS, required = false) Integer maxHops,
+                                @RequestParam() MultiValueMap<String, String> requestParam) {
         UUID uuid = UUID.fromString(id);
-        Set<Party> ascendants = partyService.getAscendants(uuid);
+        requestParam.remove(Q_MAX_HOPS);
+        Set<Party> ascendants = maxHops != null ? partyService.getAscendants(uuid, maxHops) : partyService.getAscendants(uuid);
         if (requestParam != null && !requestParam.isEmpty()) {
             Query params = Query.create(requestParam);
             List<Party> parties = partyService.find(params);
@@ -92,9 +145,11 @@ public class PartyRestController extends AbstractController {
     }
 
     @GetMapping({"/{id}/descendants"})
-    public Object getDescendants(@PathVariable String id, @RequestParam() MultiValueMap<String, String> requestParam) {
+    public Object getDescendants(@PathVariable String id, @RequestParam(name = Q_MAX_HOPS, required = false) Integer maxHops,
+                                 @RequestParam() MultiValueMap<String, String> requestParam) {
         UUID uuid = UUID.fromString(id);
-        Set<Party> descendants = partyService.getDescendants(uuid);
+        requestParam.remove(Q_MAX_HOPS);
+        Set<Party> descendants = maxHops != null ? partyService.getDescendants(uuid, maxHops) : partyService.getDescendants(uuid);
         if (requestParam != null && !requestParam.isEmpty()) {
             Query params = Query.create(requestParam);
             List<Party> parties = partyService.find(params);
@@ -110,6 +165,12 @@ public class PartyRestController extends AbstractController {
         return findEntities(partyService, Query.create(requestParam));
     }
 
+    @PostMapping(value = "/dag/rebuild", consumes = MediaType.ALL_VALUE)
+    public int rebuildDag() {
+        log.debug("rebuild dag");
+        return partyService.rebuildDag();
+    }
+
     @PutMapping("/enable")
     public void enable(@RequestBody List<String> idList) {
         log.debug("enable: " + idList);
@@ -122,6 +183,18 @@ public class PartyRestController extends AbstractController {
         partyService.disable(idList.stream().map(UUID::fromString).collect(Collectors.toSet()));
     }
 
+    @PutMapping(value = "/{id}/enable", consumes = MediaType.ALL_VALUE)
+    public int enable(@PathVariable String id, @RequestParam(name = Q_CASCADE, defaultValue = "false") boolean cascade) {
+        log.debug("enable: " + id + " , cascade = " + cascade);
+        return partyService.enable(UUID.fromString(id), cascade);
+    }
+
+    @PutMapping(value = "/{id}/disable", consumes = MediaType.ALL_VALUE)
+    public int disable(@PathVariable String id, @RequestParam(name = Q_CASCADE, defaultValue = "false") boolean cascade) {
+        log.debug("disable: " + id + " , cascade = " + cascade);
+        return partyService.disable(UUID.fromString(id), cascade);
+    }
+
     @DeleteMapping
     public void deleteByIds(@RequestBody List<String> idList) {
         log.debug("delete: " + idList);
@@ -172,6 +245,30 @@ public class PartyRestController extends AbstractController {
             partyService.removeChildren(parent, children);
     }
 
+    @PatchMapping(value = "/{id}/relations", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public void updateRelations(@PathVariable String id, @RequestBody PartyRelationsForm form) {
+        log.debug("update relations of " + id + ": " + form);
+        Party party = partyService.getById(UUID.fromString(id));
+        Set<UUID> ids = new HashSet<>();
+        Stream.of(form.getAddParents(), form.getRemoveParents(), form.getAddChildren(), form.getRemoveChildren()).filter(Objects::nonNull).forEach(ids::addAll);
+        if (ids.isEmpty())
+            return;
+
+        Map<UUID, Party> parties = partyService.findParties(Query.create().where().in("id", ids).end()).stream()
+                .collect(Collectors.toMap(Party::getId, Function.identity()));
+        PartyService partyService = BeanFactoryAnnotationUtils.qualifiedBeanOfType(beanFactory, PartyService.class, party.getType().getId());
+        partyService.updateRelations(party, toParties(form.getAddParents(), parties), toParties(form.getRemoveParents(), parties),
+                toParties(form.getAddChildren(), parties), toParties(form.getRemoveChildren(), parties));
+    }
+
+    private List<Party> toParties(Set<UUID> ids, Map<UUID, Party> parties) {
+        if (ids == null)
+            return new ArrayList<>();
+
+        return ids.stream().map(id -> Optional.ofNullable(parties.get(id))
+                .orElseThrow(() -> new BadRequestException(String.format("party %s doesn't exist.", id)))).collect(Collectors.toList());
+    }
+
     @PostMapping(value = "/{childId}/parents", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
     public void addParents(@PathVariable String childId, @RequestBody List<String> parentsIds) {
         updateParents(childId, parentsIds, true);
@@ -1,9 +1,13 @@
 package party.dao;
 
 import base.dao.GenericDao;
+import org.apache.commons.lang3.tuple.Pair;
 import party.model.Party;
+import party.model.PartyType;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -22,4 +26,43 @@ public interface PartyDao<T extends Party> extends GenericDao<T, UUID> {
     void addParents(Party child, Collection<Party> parents);
 
     void removeParents(Party child, Collection<Party> parents);
+
+    /**
+     * insert the (parent id, child id) rows of party_rel by batches, the relations must not exist
+     */
+    void addRelations(Collection<Pair<UUID, UUID>> relations);
+
+    /**
+     * delete the (parent id, child id) rows of party_rel by batches, the relations must exist
+     */
+    void removeRelations(Collection<Pair<UUID, UUID>> relations);
+
+    /**
+     * remove the relations with the children and the parents of the party
+     *
+     * @return number of removed relations
+     */
+    int removeAllRelations(Party party);
+
+    /**
+     * @return all (parent id, child id) of party_rel
+     */
+    List<Pair<UUID, UUID>> findAllRelations();
+
+    /**
+     * insert new parties by batches bypassing the persistence context, the ids must be assigned
+     */
+    void createAll(Collection<? extends Party> parties);
+
+    /**
+     * @return ids of the existing parties of the (type, identity), in one query per batch
+     */
+    Map<Pair<PartyType, String>, UUID> findIdsByIdentities(Collection<Pair<PartyType, String>> identities);
+
+    /**
+     * update the party and its descendants by one statement joined on the closure table of the dag
+     *
+     * @return number of updated parties
+     */
+    int updateWithDescendants(UUID id, String closureTableName, String dagId, Map<String, Object> columnValueMap);
 }
@@ -1,17 +1,24 @@
 package party.dao;
 
 import base.dao.AbstractJPADaoImpl;
-import base.util.query.Query;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.query.NativeQuery;
 import org.springframework.stereotype.Repository;
 import party.model.Party;
+import party.model.PartyType;
 
 import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceUnitUtil;
+import java.sql.PreparedStatement;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -22,6 +29,8 @@ import java.util.stream.Collectors;
 @Repository("partyDao")
 public class PartyDaoImpl<T extends Party> extends AbstractJPADaoImpl<T, UUID> implements PartyDao<T> {
 
+    private static final int BATCH_SIZE = 1000;
+
     @PersistenceContext
     private EntityManager em;
 
@@ -35,13 +44,7 @@ public class PartyDaoImpl<T extends Party> extends AbstractJPADaoImpl<T, UUID> i
         Preconditions.checkArgument(parent != null, "parent must not be null");
         Preconditions.checkArgument(child != null, "child must not be null");
 
-        parent = loadParent(parent);
-        child = loadChild(child);
-        if (parent.getChildren().contains(child)) {
-            throw new IllegalArgumentException(String.format("%s is already a child of %s", child, parent));
-        }
-        parent.addChild(child);
-        em.merge(parent);
+        addRelations(Collections.singletonList(Pair.of(parent.getId(), child.getId())));
     }
 
     @Override
@@ -49,13 +52,7 @@ public class PartyDaoImpl<T extends Party> extends AbstractJPADaoImpl<T, UUID> i
         Preconditions.checkArgument(parent != null, "parent must not be null");
         Preconditions.checkArgument(child != null, "child must not be null");
 
-        parent = loadParent(parent);
-        child = loadChild(child);
-        if (!parent.getChildren().contains(child)) {
-            throw new IllegalArgumentException(String.format("%s is not a child of %s", child, parent));
-        }
-        parent.removeChild(child);
-        em.merge(parent);
+        removeRelations(Collections.singletonList(Pair.of(parent.getId(), child.getId())));
     }
 
     @Override
@@ -63,19 +60,7 @@ public class PartyDaoImpl<T extends Party> extends AbstractJPADaoImpl<T, UUID> i
         Preconditions.checkArgument(parent != null, "parent must not be null");
         Preconditions.checkArgument(children != null, "children must not be null");
 
-        if (children.isEmpty())
-            return;
-
-        parent = loadParent(parent);
-        children = loadChildren(children);
-        if (CollectionUtils.containsAny(parent.getChildren(), children)) {
-            throw new IllegalArgumentException(String.format("%s already contains some children %s", parent, children));
-        }
-        children = new HashSet<>(children);
-        for (Party child : children) {
-            parent.addChild(child);
-        }
-        em.merge(parent);
+        addRelations(children.stream().map(child -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList()));
     }
 
     @Override
@@ -83,19 +68,7 @@ public class PartyDaoImpl<T extends Party> extends AbstractJPADaoImpl<T, UUID> i
         Preconditions.checkArgument(parent != null, "parent must not be null");
         Preconditions.checkArgument(children != null, "children must not be null");
 
-        if (children.isEmpty())
-            return;
-
-        parent = loadParent(parent);
-        children = loadChildren(children);
-        if (!CollectionUtils.isSubCollection(children, parent.getChildren())) {
-            throw new IllegalArgumentException(String.format("%s doesn't contains some children %s", parent, children));
-        }
-        children = new HashSet<>(children);
-        for (Party child : children) {
-            parent.removeChild(child);
-        }
-        em.merge(parent);
+        removeRelations(children.stream().map(child -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList()));
     }
 
     @Override
@@ -103,18 +76,7 @@ public class PartyDaoImpl<T extends Party> extends AbstractJPADaoImpl<T, UUID> i
         Preconditions.checkArgument(child != null, "child must not be null");
         Preconditions.checkArgument(parents != null, "parents must not be null");
 
-        if (parents.isEmpty())
-            return;
-
-        child = loadChild(child);
-        parents = loadParents(parents);
-        for (Party parent : parents) {
-            if (parent.getChildren().contains(child)) {
-                throw new IllegalArgumentException(String.format("%s is already a child of %s", child, parent));
-            }
-            parent.addChild(child);
-            em.merge(parent);
-        }
+        addRelations(parents.stream().map(parent -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList()));
     }
 
     @Override
@@ -122,75 +84,203 @@ public class PartyDaoImpl<T extends Party> extends AbstractJPADaoImpl<T, UUID> i
         Preconditions.checkArgument(child != null, "child must not be null");
         Preconditions.checkArgument(parents != null, "parents must not be null");
 
-        if (parents.isEmpty())
+        removeRelations(parents.stream().map(parent -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList()));
+    }
+
+    @Override
+    public int removeAllRelations(Party party) {
+        Preconditions.checkArgument(party != null, "party must not be null");
+
+        em.flush();
+        int count = em.createNativeQuery("delete from party_rel where parent_id = :id or child_id = :id")
+                .setParameter("id", party.getId().toString()).executeUpdate();
+        refreshRelations(Collections.singleton(party.getId()), Collections.singleton(party.getId()));
+        return count;
+    }
+
+    @Override
+    public List<Pair<UUID, UUID>> findAllRelations() {
+        List<Object[]> rows = em.createNativeQuery("select parent_id, child_id from party_rel").getResultList();
+        return rows.stream().map(row -> Pair.of(UUID.fromString(row[0].toString()), UUID.fromString(row[1].toString())))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void createAll(Collection<? extends Party> parties) {
+        Preconditions.checkArgument(parties != null, "parties must not be null");
+        if (parties.isEmpty())
             return;
 
-        child = loadChild(child);
-        parents = loadParents(parents);
-        for (Party parent : parents) {
-            if (!parent.getChildren().contains(child)) {
-                throw new IllegalArgumentException(String.format("%s is not a child of %s", child, parent));
+        String insertSQL = "insert into party (id, version, `identity`, type, name, email, enabled) values (?, ?, ?, ?, ?, ?, ?)";
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            for (List<? extends Party> batch : Lists.partition(new ArrayList<>(parties), BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(insertSQL)) {
+                    for (Party party : batch) {
+                        statement.setString(1, party.getId().toString());
+                        statement.setLong(2, 0L);
+                        statement.setString(3, party.getIdentity());
+                        statement.setString(4, party.getType().getId());
+                        statement.setString(5, party.getName());
+                        statement.setString(6, party.getEmail());
+                        statement.setBoolean(7, party.getEnabled() == null || party.getEnabled());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
             }
-            parent.removeChild(child);
-            em.merge(parent);
-        }
+        });
+        log.debug("insert {} parties", parties.size());
     }
 
-    private Party loadParent(Party parent) {
-        if (isLoadedParent(parent))
-            return parent;
+    @Override
+    public Map<Pair<PartyType, String>, UUID> findIdsByIdentities(Collection<Pair<PartyType, String>> identities) {
+        Preconditions.checkArgument(identities != null, "identities must not be null");
+
+        Map<Pair<PartyType, String>, UUID> ids = new HashMap<>();
+        for (List<Pair<PartyType, String>> batch : Lists.partition(new ArrayList<>(new HashSet<>(identities)), BATCH_SIZE)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("select id, type, `identity` from party where (type, `identity`) in (");
+            for (int i = 0; i < batch.size(); i++) {
+                sb.append(i == 0 ? "" : ", ").append("(?").append(2 * i + 1).append(", ?").append(2 * i + 2).append(")");
+            }
+            sb.append(")");
+            javax.persistence.Query query = em.createNativeQuery(sb.toString());
+            for (int i = 0; i < batch.size(); i++) {
+                query.setParameter(2 * i + 1, batch.get(i).getLeft().getId()).setParameter(2 * i + 2, batch.get(i).getRight());
+            }
+            List<Object[]> rows = query.getResultList();
+            for (Object[] row : rows) {
+                ids.put(Pair.of(PartyType.fromId(row[1].toString()), row[2].toString()), UUID.fromString(row[0].toString()));
+            }
+        }
+        return ids;
+    }
 
-        UUID parentId = parent.getId();
-        List<T> parties = find(Query.create().where().eq("id", parentId).end().fetchRelations(Party.RELATION_CHILDREN));
-        parent = parties.isEmpty() ? null : parties.get(0);
+    @Override
+    public void addRelations(Collection<Pair<UUID, UUID>> relations) {
+        Preconditions.checkArgument(relations != null, "relations must not be null");
+        if (relations.isEmpty())
+            return;
 
-        if (parent == null) {
-            throw new IllegalArgumentException(String.format("party %s is not exist", parentId));
+        List<Pair<UUID, UUID>> relationIds = sort(relations);
+        checkPartiesExist(relationIds);
+        Set<Pair<UUID, UUID>> existingRelationIds = findRelations(relationIds);
+        if (!existingRelationIds.isEmpty()) {
+            Pair<UUID, UUID> relationId = existingRelationIds.iterator().next();
+            throw new IllegalArgumentException(String.format("%s is already a child of %s", relationId.getRight(), relationId.getLeft()));
         }
-        return parent;
+        executeBatch("insert into party_rel (parent_id, child_id) values (?, ?)", relationIds);
+        log.debug("insert {} party relations", relationIds.size());
     }
 
-    private Collection<Party> loadParents(Collection<Party> parents) {
-        if (parents.stream().allMatch(this::isLoadedChild))
-            return parents;
+    @Override
+    public void removeRelations(Collection<Pair<UUID, UUID>> relations) {
+        Preconditions.checkArgument(relations != null, "relations must not be null");
+        if (relations.isEmpty())
+            return;
 
-        Set<UUID> parentsIds = parents.stream().map(Party::getId).collect(Collectors.toSet());
-        parents = new HashSet<>(find(Query.create().where().in("id", parentsIds).end().fetchRelations(Party.RELATION_CHILDREN)));
-        if (parents.size() != parentsIds.size()) {
-            Set<UUID> foundParentsIds = parents.stream().map(Party::getId).collect(Collectors.toSet());
-            throw new IllegalArgumentException(String.format("parents id %s are not exist", CollectionUtils.subtract(parentsIds, foundParentsIds)));
+        List<Pair<UUID, UUID>> relationIds = sort(relations);
+        Set<Pair<UUID, UUID>> existingRelationIds = findRelations(relationIds);
+        if (existingRelationIds.size() != relationIds.size()) {
+            Pair<UUID, UUID> relationId = relationIds.stream().filter(id -> !existingRelationIds.contains(id)).findFirst().get();
+            throw new IllegalArgumentException(String.format("%s is not a child of %s", relationId.getRight(), relationId.getLeft()));
         }
-        return parents;
+        executeBatch("delete from party_rel where parent_id = ? and child_id = ?", relationIds);
+        log.debug("delete {} party relations", relationIds.size());
     }
 
-    private Party loadChild(Party child) {
-        if (isLoadedChild(child))
-            return child;
-
-        UUID childId = child.getId();
-        return getById(childId).orElseThrow(() -> new IllegalArgumentException(String.format("party %s is not exist", childId)));
+    /**
+     * distinct (parent id, child id) sorted, so concurrent batches lock the rows in the same order
+     */
+    private List<Pair<UUID, UUID>> sort(Collection<Pair<UUID, UUID>> relations) {
+        return relations.stream().distinct().sorted().collect(Collectors.toList());
     }
 
-    private Collection<Party> loadChildren(Collection<Party> children) {
-        if (children.stream().allMatch(this::isLoadedChild))
-            return children;
+    private void checkPartiesExist(List<Pair<UUID, UUID>> relationIds) {
+        Set<String> partyIds = new HashSet<>();
+        relationIds.forEach(relationId -> {
+            partyIds.add(relationId.getLeft().toString());
+            partyIds.add(relationId.getRight().toString());
+        });
+        Set<String> foundPartyIds = new HashSet<>();
+        for (List<String> batch : Lists.partition(new ArrayList<>(partyIds), BATCH_SIZE)) {
+            List<Object> rows = em.createNativeQuery("select id from party where id in (:ids)").setParameter("ids", batch).getResultList();
+            rows.forEach(row -> foundPartyIds.add(row.toString()));
+        }
+        if (foundPartyIds.size() != partyIds.size()) {
+            throw new IllegalArgumentException(String.format("parties id %s are not exist", CollectionUtils.subtract(partyIds, foundPartyIds)));
+        }
+    }
 
-        Set<UUID> childrenIds = children.stream().map(Party::getId).collect(Collectors.toSet());
-        children = new HashSet<>(find(Query.create().where().eq("id", childrenIds).end()));
-        if (children.size() != childrenIds.size()) {
-            Set<UUID> foundChildrenIds = children.stream().map(Party::getId).collect(Collectors.toSet());
-            throw new IllegalArgumentException(String.format("children id %s are not exist", CollectionUtils.subtract(childrenIds, foundChildrenIds)));
+    /**
+     * @return the given relations which exist in party_rel
+     */
+    private Set<Pair<UUID, UUID>> findRelations(List<Pair<UUID, UUID>> relationIds) {
+        Set<Pair<UUID, UUID>> existingRelationIds = new HashSet<>();
+        for (List<Pair<UUID, UUID>> batch : Lists.partition(relationIds, BATCH_SIZE)) {
+            Set<String> parentIds = batch.stream().map(relationId -> relationId.getLeft().toString()).collect(Collectors.toSet());
+            Set<String> childIds = batch.stream().map(relationId -> relationId.getRight().toString()).collect(Collectors.toSet());
+            List<Object[]> rows = em.createNativeQuery("select parent_id, child_id from party_rel where parent_id in (:parentIds) and child_id in (:childIds)")
+                    .setParameter("parentIds", parentIds).setParameter("childIds", childIds).getResultList();
+            rows.stream().map(row -> Pair.of(UUID.fromString(row[0].toString()), UUID.fromString(row[1].toString())))
+                    .filter(new HashSet<>(batch)::contains).forEach(existingRelationIds::add);
         }
-        return children;
+        return existingRelationIds;
     }
 
-    private boolean isLoadedParent(Party parent) {
-        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
-        return em.contains(parent) && util.isLoaded(parent) && util.isLoaded(parent, Party.RELATION_CHILDREN);
+    private void executeBatch(String sql, List<Pair<UUID, UUID>> relationIds) {
+        em.flush();
+        em.unwrap(Session.class).doWork(connection -> {
+            for (List<Pair<UUID, UUID>> batch : Lists.partition(relationIds, BATCH_SIZE)) {
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    for (Pair<UUID, UUID> relationId : batch) {
+                        statement.setString(1, relationId.getLeft().toString());
+                        statement.setString(2, relationId.getRight().toString());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+        });
+        refreshRelations(relationIds.stream().map(Pair::getLeft).collect(Collectors.toSet()),
+                relationIds.stream().map(Pair::getRight).collect(Collectors.toSet()));
     }
 
-    private boolean isLoadedChild(Party child) {
+    /**
+     * party_rel is changed bypassing the persistence context, refresh the loaded parties whose children or parents are loaded,
+     * otherwise a stale collection would be written back at flush
+     */
+    private void refreshRelations(Set<UUID> parentIds, Set<UUID> childIds) {
+        SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+        EntityPersister persister = session.getFactory().getMetamodel().entityPersister(Party.class);
         PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
-        return em.contains(child) && util.isLoaded(child);
+        Set<UUID> partyIds = new HashSet<>(parentIds);
+        partyIds.addAll(childIds);
+        for (UUID partyId : partyIds) {
+            Object party = session.getPersistenceContext().getEntity(session.generateEntityKey(partyId, persister));
+            if (party != null && ((parentIds.contains(partyId) && util.isLoaded(party, Party.RELATION_CHILDREN))
+                    || (childIds.contains(partyId) && util.isLoaded(party, Party.RELATION_PARENT)))) {
+                em.refresh(party);
+            }
+        }
+    }
+
+    @Override
+    public int updateWithDescendants(UUID id, String closureTableName, String dagId, Map<String, Object> columnValueMap) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+        Preconditions.checkArgument(closureTableName != null, "closureTableName must not be null");
+        Preconditions.checkArgument(columnValueMap != null && !columnValueMap.isEmpty(), "columnValueMap must not be empty");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(getTableName()).append(" p join (select :id as id union select end_vertex_id from ").append(closureTableName)
+                .append(" where dag_id = :dagId and start_vertex_id = :id) d on p.id = d.id set ")
+                .append(columnValueMap.keySet().stream().map(column -> "p." + column + " = :" + column).collect(Collectors.joining(", ")));
+        javax.persistence.Query query = em.createNativeQuery(sb.toString());
+        // invalidate the cached parties only, instead of all cache regions
+        query.unwrap(NativeQuery.class).addSynchronizedQuerySpace(getTableName());
+        query.setParameter("dagId", dagId).setParameter("id", id.toString());
+        columnValueMap.forEach(query::setParameter);
+        return query.executeUpdate();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+package party.dto;
+
+import base.dto.request.BatchForm;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import party.model.PartyType;
+
+import javax.validation.constraints.*;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * item of a batch create or update, the relations refer to the ids of the parties, null relations are not changed by an update
+ *
+ * @author csieflyman
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class PartyBatchForm extends BatchForm<UUID> {
+
+    private UUID id;
+
+    @NotNull
+    private PartyType type;
+
+    @NotNull
+    @Size(max = 30)
+    @Pattern(regexp = "^[a-zA-z]([\\w\\_\\-])+$")
+    private String identity;
+
+    @NotBlank
+    @Size(max = 30)
+    private String name;
+
+    @NotNull
+    @Email
+    private String email;
+
+    @NotNull
+    private Boolean enabled;
+
+    private Set<UUID> parents;
+
+    private Set<UUID> children;
+
+    public PartyForm toForm() {
+        PartyForm form = new PartyForm();
+        form.setId(id);
+        form.setType(type);
+        form.setIdentity(identity);
+        form.setName(name);
+        form.setEmail(email);
+        form.setEnabled(enabled);
+        form.setParents(null);
+        form.setChildren(null);
+        return form;
+    }
+}
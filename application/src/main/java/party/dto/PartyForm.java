@@ -8,7 +8,6 @@ import party.model.*;
 
 import javax.validation.Valid;
 import javax.validation.constraints.*;
-import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
 
@@ -44,11 +43,12 @@ public class PartyForm extends AbstractForm<Party> {
     @NotNull
     private Boolean enabled;
 
+    // null relations are not changed by an update
     @Valid
-    private Set<Party> parents = new HashSet<>();
+    private Set<Party> parents;
 
     @Valid
-    private Set<Party> children = new HashSet<>();
+    private Set<Party> children;
 
     @Override
     public Party toModel() {
@@ -67,6 +67,8 @@ public class PartyForm extends AbstractForm<Party> {
                 throw new NotImplementedException("Undefined PartyType");
         }
         BeanUtils.copyIgnoreNull(this, party);
+        party.setParents(parents);
+        party.setChildren(children);
         return party;
     }
 }
@@ -0,0 +1,74 @@
+package party.dto;
+
+import base.exception.BadRequestException;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import party.model.PartyType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * one row of an import, a NDJSON line or a CSV record with the header type,identity,name,email,enabled,parents.
+ * parents refer to existing parties or to other rows by type/identity, e.g. ou/sales, several parents of a CSV record are separated by ;
+ *
+ * @author csieflyman
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString
+public class PartyImportForm {
+
+    private PartyType type;
+
+    private String identity;
+
+    private String name;
+
+    private String email;
+
+    private Boolean enabled;
+
+    private List<String> parents = new ArrayList<>();
+
+    public PartyForm toForm() {
+        PartyForm form = new PartyCreateForm();
+        form.setType(type);
+        form.setIdentity(identity);
+        form.setName(name);
+        form.setEmail(StringUtils.isEmpty(email) ? null : email);
+        form.setEnabled(enabled == null ? true : enabled);
+        return form;
+    }
+
+    /**
+     * @return (type, identity) of the parents
+     */
+    public List<Pair<PartyType, String>> toParentIdentities() {
+        if (parents == null)
+            return new ArrayList<>();
+
+        return parents.stream().flatMap(parent -> Arrays.stream(StringUtils.split(parent, ';'))).map(String::trim)
+                .filter(StringUtils::isNotEmpty).map(PartyImportForm::toIdentity).distinct().collect(Collectors.toList());
+    }
+
+    private static Pair<PartyType, String> toIdentity(String reference) {
+        int index = reference.indexOf('/');
+        if (index > 0) {
+            String typeId = reference.substring(0, index);
+            for (PartyType type : PartyType.values()) {
+                if (type.getId().equalsIgnoreCase(typeId)) {
+                    return Pair.of(type, reference.substring(index + 1));
+                }
+            }
+        }
+        throw new BadRequestException(String.format("invalid parent %s, it must be type/identity", reference));
+    }
+}
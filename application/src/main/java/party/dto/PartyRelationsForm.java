@@ -0,0 +1,30 @@
+package party.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * changes of the relations of a party, the parents and children not listed are not changed
+ *
+ * @author csieflyman
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@ToString
+public class PartyRelationsForm {
+
+    private Set<UUID> addParents = new HashSet<>();
+
+    private Set<UUID> removeParents = new HashSet<>();
+
+    private Set<UUID> addChildren = new HashSet<>();
+
+    private Set<UUID> removeChildren = new HashSet<>();
+}
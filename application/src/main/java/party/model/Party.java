@@ -9,6 +9,7 @@ import lombok.Setter;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.hibernate.annotations.Type;
 
 import javax.persistence.*;
 import java.util.Collection;
@@ -40,8 +41,9 @@ public abstract class Party extends EntityModel<UUID> implements Resource<UUID>
         this.type = type;
     }
 
+    // assigned by the forms, a database can't generate a uuid-char identity
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Type(type = "uuid-char")
     private UUID id;
 
     @Version
@@ -59,7 +61,8 @@ public abstract class Party extends EntityModel<UUID> implements Resource<UUID>
     @Column
     private Boolean enabled = true;
 
-    @Enumerated(EnumType.STRING)
+    // the discriminator column, it holds the id of the type
+    @Convert(converter = PartyTypeConverter.class)
     @Column(insertable = false, updatable = false)
     private PartyType type;
 
@@ -29,6 +29,19 @@ public enum PartyType implements ResourceType<String> {
     }
 
 
+    public static PartyType fromId(String id) {
+        switch (id) {
+            case OU_ID:
+                return OU;
+            case GROUP_ID:
+                return GROUP;
+            case USER_ID:
+                return USER;
+            default:
+                throw new NotImplementedException("Undefined PartyType " + id);
+        }
+    }
+
     @Override
     public String toString() {
         return getId();
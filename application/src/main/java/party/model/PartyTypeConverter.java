@@ -0,0 +1,23 @@
+package party.model;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+
+/**
+ * the type column is the discriminator of the subclasses, the values are the ids of PartyType
+ *
+ * @author csieflyman
+ */
+@Converter
+public class PartyTypeConverter implements AttributeConverter<PartyType, String> {
+
+    @Override
+    public String convertToDatabaseColumn(PartyType type) {
+        return type == null ? null : type.getId();
+    }
+
+    @Override
+    public PartyType convertToEntityAttribute(String id) {
+        return id == null ? null : PartyType.fromId(id);
+    }
+}
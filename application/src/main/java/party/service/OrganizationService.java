@@ -1,12 +1,50 @@
 package party.service;
 
+import graph.SubTreePage;
 import party.model.Organization;
 import party.model.Party;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
 /**
  * @author csieflyman
  */
 public interface OrganizationService extends PartyService<Organization> {
 
     void movePartyToOrganization(Party child, Organization organization);
+
+    void movePartiesToOrganization(Collection<Party> children, Organization organization);
+
+    /**
+     * renumber the organization trees which are not valid in the configured party.tree.numbering
+     *
+     * @return number of renumbered trees
+     */
+    int renumberTrees();
+
+    /**
+     * parties from the root organization to the party, empty if the party is not in any organization tree
+     */
+    List<Party> getAncestorPath(UUID id);
+
+    Map<UUID, List<Party>> getAncestorPaths(Collection<UUID> ids);
+
+    /**
+     * a page of descendant ids ordered by the position in the organization tree
+     *
+     * @param afterLow nextLow of the previous page, null for the first page
+     * @param maxHops  max number of levels below the organization, 1 for the children only, null for all descendants
+     */
+    SubTreePage<UUID> getDescendantIds(UUID id, Long afterLow, Integer maxHops, int limit);
+
+    /**
+     * pass each descendant id to the consumer as it is read from the database, ordered by the position in the organization tree
+     *
+     * @param maxHops max number of levels below the organization, 1 for the children only, null for all descendants
+     */
+    void forEachDescendantId(UUID id, Integer maxHops, Consumer<UUID> consumer);
 }
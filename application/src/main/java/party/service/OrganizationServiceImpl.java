@@ -1,13 +1,16 @@
 package party.service;
 
+import base.dao.DeadlockRetry;
 import base.util.query.Query;
 import com.google.common.base.Preconditions;
 import graph.IntervalTreeDao;
+import graph.SubTreePage;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 import party.dao.PartyDao;
 import party.model.Organization;
@@ -15,7 +18,9 @@ import party.model.Party;
 import party.model.PartyType;
 
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author csieflyman
@@ -33,7 +38,8 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         super(partyDao);
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void movePartyToOrganization(Party child, Organization organization) {
         Preconditions.checkArgument(child != null, "child must not be null");
@@ -43,17 +49,39 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
             child = getById(child.getId(), Party.RELATION_PARENT);
             Optional<Party> parentOrg = child.getParents().stream().filter(parent -> parent.getType() == PartyType.OU).findFirst();
             if (parentOrg.isPresent()) {
-                intervalTreeDao.removeChild(parentOrg.get().getId(), child.getId());
                 super.removeChild((Organization) parentOrg.get(), child);
             }
             super.addChild(organization, child);
-            intervalTreeDao.addChild(organization.getId(), child.getId());
+            intervalTreeDao.move(organization.getId(), child.getId());
         } else {
             throw new IllegalArgumentException(String.format("organization %s can't add group child %s", organization, child));
         }
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public void movePartiesToOrganization(Collection<Party> children, Organization organization) {
+        Preconditions.checkArgument(children != null, "children must not be null");
+        Preconditions.checkArgument(organization != null, "organization must not be null");
+
+        if (children.isEmpty())
+            return;
+
+        children = loadChildren(children);
+        Map<Party, List<Party>> parentOrgChildrenMap = new HashMap<>();
+        for (Party child : children) {
+            validateChildType(child);
+            child.getParents().stream().filter(parent -> parent.getType() == PartyType.OU).findFirst()
+                    .ifPresent(parentOrg -> parentOrgChildrenMap.computeIfAbsent(parentOrg, key -> new ArrayList<>()).add(child));
+        }
+        parentOrgChildrenMap.forEach((parentOrg, parentOrgChildren) -> super.removeChildren((Organization) parentOrg, parentOrgChildren));
+        super.addChildren(organization, children);
+        intervalTreeDao.moveAll(organization.getId(), children.stream().map(Party::getId).collect(Collectors.toList()));
+    }
+
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void addChild(Organization parent, Party child) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
@@ -67,7 +95,8 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         intervalTreeDao.addChild(parent.getId(), child.getId());
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void removeChild(Organization parent, Party child) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
@@ -77,7 +106,8 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         super.removeChild(parent, child);
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void addChildren(Organization parent, Collection<Party> children) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
@@ -96,7 +126,8 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         children.forEach(child -> intervalTreeDao.addChild(parent.getId(), child.getId()));
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void removeChildren(Organization parent, Collection<Party> children) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
@@ -109,7 +140,8 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         super.removeChildren(parent, children);
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void addParents(Organization child, Collection<Party> parents) {
         Preconditions.checkArgument(child != null, "child must not be null");
@@ -133,7 +165,8 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         }
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void removeParents(Organization child, Collection<Party> parents) {
         Preconditions.checkArgument(child != null, "child must not be null");
@@ -150,7 +183,15 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         super.removeParents(child, parents);
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public int renumberTrees() {
+        return intervalTreeDao.renumberTrees();
+    }
+
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void delete(Organization organization) {
         Preconditions.checkArgument(organization != null, "organization must not be null");
@@ -165,12 +206,79 @@ public class OrganizationServiceImpl extends PartyServiceImpl<Organization> impl
         Preconditions.checkArgument(id != null, "id must not be null");
 
         List<UUID> descendantIds = intervalTreeDao.getSubTree(id);
-        if (descendantIds.isEmpty())
+        return findInOrder(descendantIds);
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public Set<Party> getDescendants(UUID id, int maxHops) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+        Preconditions.checkArgument(maxHops > 0, "maxHops must be positive");
+
+        List<UUID> descendantIds = intervalTreeDao.getSubTree(id, maxHops);
+        return findInOrder(descendantIds);
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public List<Party> getAncestorPath(UUID id) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+
+        return getAncestorPaths(Collections.singleton(id)).getOrDefault(id, new ArrayList<>());
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public Map<UUID, List<Party>> getAncestorPaths(Collection<UUID> ids) {
+        Preconditions.checkArgument(ids != null, "ids must not be null");
+
+        Map<UUID, List<UUID>> pathIdsMap = intervalTreeDao.getAncestorPaths(ids);
+        if (pathIdsMap.isEmpty())
+            return new HashMap<>();
+
+        Set<UUID> partyIds = pathIdsMap.values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
+        Map<UUID, Party> partyMap = find(Query.create().where().in("id", partyIds).end()).stream()
+                .collect(Collectors.toMap(Party::getId, party -> party));
+        Map<UUID, List<Party>> paths = new LinkedHashMap<>();
+        pathIdsMap.forEach((id, pathIds) -> paths.put(id, pathIds.stream().map(partyMap::get).filter(Objects::nonNull).collect(Collectors.toList())));
+        return paths;
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public SubTreePage<UUID> getDescendantIds(UUID id, Long afterLow, Integer maxHops, int limit) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+        Preconditions.checkArgument(maxHops == null || maxHops > 0, "maxHops must be positive");
+
+        return intervalTreeDao.getSubTree(id, afterLow, maxHops, limit);
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public void forEachDescendantId(UUID id, Integer maxHops, Consumer<UUID> consumer) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+        Preconditions.checkArgument(maxHops == null || maxHops > 0, "maxHops must be positive");
+        Preconditions.checkArgument(consumer != null, "consumer must not be null");
+
+        try (Stream<UUID> descendantIds = intervalTreeDao.streamSubTree(id, maxHops)) {
+            descendantIds.forEach(consumer);
+        }
+    }
+
+    /**
+     * parties of the ids in the order of the ids
+     */
+    private Set<Party> findInOrder(List<UUID> ids) {
+        if (ids.isEmpty())
             return new HashSet<>();
 
-        List<? extends Party> parties = find(Query.create().where().in("id", new HashSet<>(descendantIds)).end());
-        parties = parties.stream().sorted(Comparator.comparing(party -> descendantIds.indexOf(party.getId()))).collect(Collectors.toList());
-        return new LinkedHashSet<>(parties);
+        Map<UUID, Integer> ranks = new HashMap<>((int) (ids.size() / 0.75f) + 1);
+        for (int i = 0; i < ids.size(); i++) {
+            ranks.put(ids.get(i), i);
+        }
+        List<? extends Party> parties = find(Query.create().where().in("id", ranks.keySet()).end());
+        return parties.stream().sorted(Comparator.comparingInt(party -> ranks.get(party.getId())))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
     }
 
     private Collection<Party> loadChildren(Collection<Party> children) {
@@ -0,0 +1,34 @@
+package party.service;
+
+import base.dto.response.BatchResponse;
+import party.dto.PartyBatchForm;
+import party.dto.PartyImportForm;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @author csieflyman
+ */
+public interface PartyBatchService {
+
+    /**
+     * validate the forms and check the identities in bulk, then create the parties in chunked transactions.
+     * results are keyed by the party id, a form without id is given a random one
+     */
+    BatchResponse create(List<PartyBatchForm> forms);
+
+    /**
+     * same as create, the parties must exist and their types can't be changed
+     */
+    BatchResponse update(List<PartyBatchForm> forms);
+
+    /**
+     * create the parties of the rows and their relations, a row which is invalid, duplicated or refers to a missing parent fails alone.
+     * the rows are read and created in chunks, a parent must be in the same chunk as its child or before it.
+     * results are keyed by the row number starting from 1, the result of a created party is its id
+     *
+     * @param forms rows read as they are consumed
+     */
+    BatchResponse importParties(Iterator<PartyImportForm> forms);
+}
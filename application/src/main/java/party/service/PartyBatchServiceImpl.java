@@ -0,0 +1,472 @@
+package party.service;
+
+import base.dto.response.BatchResponse;
+import base.exception.BadBatchRequestException;
+import base.exception.BadRequestException;
+import base.exception.ObjectNotFoundException;
+import base.model.Identifiable;
+import base.util.query.Query;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import graph.DagEdgeDao;
+import graph.DagIndex;
+import graph.IntervalTreeDao;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.BeanFactoryAnnotationUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.support.DefaultMessageSourceResolvable;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.validation.BeanPropertyBindingResult;
+import party.dao.PartyDao;
+import party.dto.PartyBatchForm;
+import party.dto.PartyForm;
+import party.dto.PartyFormValidator;
+import party.dto.PartyImportForm;
+import party.model.GlobalRole;
+import party.model.Party;
+import party.model.PartyType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.security.RolesAllowed;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * @author csieflyman
+ */
+@Slf4j
+@Service("partyBatchService")
+public class PartyBatchServiceImpl implements PartyBatchService {
+
+    private static final int BATCH_SIZE = 1000;
+    // parties persisted in one transaction, a chunk with a failed party is persisted again party by party
+    private static final int CHUNK_SIZE = 100;
+    // rows of an import read and created together
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+
+    private final PartyFormValidator partyFormValidator = new PartyFormValidator();
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private BeanFactory beanFactory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    @Qualifier("partyDao")
+    private PartyDao<Party> partyDao;
+
+    @Autowired
+    @Qualifier("partyDagEdgeDao")
+    private DagEdgeDao<UUID> dagEdgeDao;
+
+    @Autowired
+    @Qualifier("partyDagIndex")
+    private DagIndex<UUID> dagIndex;
+
+    @Autowired
+    @Qualifier("partyIntervalTreeDao")
+    private IntervalTreeDao<UUID> intervalTreeDao;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+    }
+
+    @RolesAllowed(GlobalRole.SYS_ADMIN_ID)
+    @Override
+    public BatchResponse create(List<PartyBatchForm> forms) {
+        Preconditions.checkArgument(forms != null, "forms must not be null");
+
+        forms.stream().filter(form -> form.getId() == null).forEach(form -> form.setId(UUID.randomUUID()));
+        LinkedHashMultimap<String, Throwable> failureResultMap = LinkedHashMultimap.create();
+        Map<Identifiable, Set<ConstraintViolation<Identifiable>>> invalidForms = new ConcurrentHashMap<>();
+        List<PartyBatchForm> validForms = validate(forms, invalidForms, failureResultMap);
+
+        Map<Pair<PartyType, String>, PartyBatchForm> identities = new HashMap<>();
+        for (PartyBatchForm form : validForms) {
+            PartyBatchForm duplicatedForm = identities.putIfAbsent(Pair.of(form.getType(), form.getIdentity()), form);
+            if (duplicatedForm != null) {
+                failureResultMap.put(form.getId().toString(), new BadRequestException(String.format("identity %s is duplicated with party %s", form.getIdentity(), duplicatedForm.getId())));
+            }
+        }
+        partyDao.findIdsByIdentities(identities.keySet()).keySet().forEach(identity -> failureResultMap.put(identities.get(identity).getId().toString(),
+                new BadRequestException(String.format("identity %s must be unique of the type %s", identity.getRight(), identity.getLeft()))));
+        return persist(validForms, true, invalidForms, failureResultMap);
+    }
+
+    @Override
+    public BatchResponse update(List<PartyBatchForm> forms) {
+        Preconditions.checkArgument(forms != null, "forms must not be null");
+
+        LinkedHashMultimap<String, Throwable> failureResultMap = LinkedHashMultimap.create();
+        forms.stream().filter(form -> form.getId() == null).forEach(form -> failureResultMap.put(String.valueOf((Object) null), new BadRequestException("party id must not be null")));
+        Map<Identifiable, Set<ConstraintViolation<Identifiable>>> invalidForms = new ConcurrentHashMap<>();
+        List<PartyBatchForm> validForms = validate(forms.stream().filter(form -> form.getId() != null).collect(Collectors.toList()), invalidForms, failureResultMap);
+
+        Map<UUID, Party> oldParties = findParties(validForms.stream().map(PartyBatchForm::getId).collect(Collectors.toSet()));
+        Map<Pair<PartyType, String>, PartyBatchForm> identities = new HashMap<>();
+        for (PartyBatchForm form : validForms) {
+            Party oldParty = oldParties.get(form.getId());
+            if (oldParty == null) {
+                failureResultMap.put(form.getId().toString(), new ObjectNotFoundException(String.format("party %s doesn't exist.", form.getId())));
+            } else if (oldParty.getType() != form.getType()) {
+                failureResultMap.put(form.getId().toString(), new BadRequestException(String.format("type of party %s can't be changed", form.getId())));
+            } else if (!oldParty.getIdentity().equals(form.getIdentity())) {
+                PartyBatchForm duplicatedForm = identities.putIfAbsent(Pair.of(form.getType(), form.getIdentity()), form);
+                if (duplicatedForm != null) {
+                    failureResultMap.put(form.getId().toString(), new BadRequestException(String.format("identity %s is duplicated with party %s", form.getIdentity(), duplicatedForm.getId())));
+                }
+            }
+        }
+        partyDao.findIdsByIdentities(identities.keySet()).keySet().forEach(identity -> failureResultMap.put(identities.get(identity).getId().toString(),
+                new BadRequestException(String.format("identity %s must be unique of the type %s", identity.getRight(), identity.getLeft()))));
+        return persist(validForms, false, invalidForms, failureResultMap);
+    }
+
+    // the rows can not be read again, so the import is not retried on deadlock
+    @RolesAllowed(GlobalRole.SYS_ADMIN_ID)
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public BatchResponse importParties(Iterator<PartyImportForm> forms) {
+        Preconditions.checkArgument(forms != null, "forms must not be null");
+
+        Map<String, Object> successResultMap = new LinkedHashMap<>();
+        LinkedHashMultimap<String, Throwable> failureResultMap = LinkedHashMultimap.create();
+        int rowCount = 0;
+        List<PartyImportForm> rows;
+        while (!(rows = readRows(forms, rowCount)).isEmpty()) {
+            importRows(rows, rowCount, successResultMap, failureResultMap);
+            rowCount += rows.size();
+        }
+        log.info("import {} parties, {} rows failed", successResultMap.size(), failureResultMap.keySet().size());
+        return new BatchResponse(successResultMap, failureResultMap);
+    }
+
+    /**
+     * create the parties of a chunk of rows, the parents created by the previous chunks are existing parties
+     *
+     * @param firstRow number of rows before the chunk
+     */
+    private void importRows(List<PartyImportForm> rows, int firstRow, Map<String, Object> successResultMap,
+                            LinkedHashMultimap<String, Throwable> failureResultMap) {
+        Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+        Party[] parties = new Party[rows.size()];
+        List<List<Pair<PartyType, String>>> parentIdentities = new ArrayList<>(Collections.nCopies(rows.size(), null));
+        IntStream.range(0, rows.size()).parallel().forEach(i -> {
+            try {
+                PartyForm form = rows.get(i).toForm();
+                validate(form);
+                List<Pair<PartyType, String>> identities = rows.get(i).toParentIdentities();
+                validateParents(form.getType(), identities);
+                parties[i] = form.toModel();
+                parentIdentities.set(i, identities);
+            } catch (RuntimeException e) {
+                failures.put(i, e);
+            }
+        });
+
+        // (type, identity) of the rows, the first row of a duplicated identity wins
+        Map<Pair<PartyType, String>, Integer> newIdentities = new HashMap<>();
+        for (int i = 0; i < parties.length; i++) {
+            if (failures.containsKey(i))
+                continue;
+
+            Integer duplicatedRow = newIdentities.putIfAbsent(Pair.of(parties[i].getType(), parties[i].getIdentity()), i);
+            if (duplicatedRow != null) {
+                failures.put(i, new BadRequestException(String.format("identity %s is duplicated with row %d", parties[i].getIdentity(), firstRow + duplicatedRow + 1)));
+            }
+        }
+        Set<Pair<PartyType, String>> identities = new HashSet<>(newIdentities.keySet());
+        parentIdentities.stream().filter(Objects::nonNull).forEach(identities::addAll);
+        Map<Pair<PartyType, String>, UUID> existingIds = partyDao.findIdsByIdentities(identities);
+        newIdentities.forEach((identity, i) -> {
+            if (existingIds.containsKey(identity)) {
+                failures.put(i, new BadRequestException(String.format("identity %s must be unique of the type %s", identity.getRight(), identity.getLeft())));
+            }
+        });
+        newIdentities.values().removeIf(failures::containsKey);
+
+        resolveParents(parentIdentities, newIdentities, existingIds, failures, firstRow);
+        List<Integer> createdRows = IntStream.range(0, parties.length).filter(i -> !failures.containsKey(i)).boxed().collect(Collectors.toList());
+        List<Party> newParties = createdRows.stream().map(i -> parties[i]).collect(Collectors.toList());
+        partyDao.createAll(newParties);
+
+        List<Pair<UUID, UUID>> edges = new ArrayList<>();
+        Map<UUID, List<UUID>> organizationChildrenMap = new LinkedHashMap<>();
+        for (int i : createdRows) {
+            UUID childId = parties[i].getId();
+            for (Pair<PartyType, String> parentIdentity : parentIdentities.get(i)) {
+                Integer parentRow = newIdentities.get(parentIdentity);
+                UUID parentId = parentRow != null ? parties[parentRow].getId() : existingIds.get(parentIdentity);
+                edges.add(Pair.of(parentId, childId));
+                if (parentIdentity.getLeft() == PartyType.OU) {
+                    organizationChildrenMap.computeIfAbsent(parentId, key -> new ArrayList<>()).add(childId);
+                }
+            }
+        }
+        partyDao.addRelations(edges);
+        dagEdgeDao.addEdges(edges);
+        dagIndex.addEdges(edges);
+        Set<UUID> newIds = newParties.stream().map(Party::getId).collect(Collectors.toSet());
+        addOrganizationTrees(organizationChildrenMap, newIds);
+        log.debug("import rows {} to {}: {} parties with {} relations, {} rows failed", firstRow + 1, firstRow + rows.size(),
+                newParties.size(), edges.size(), failures.size());
+
+        createdRows.forEach(i -> successResultMap.put(String.valueOf(firstRow + i + 1), parties[i].getId().toString()));
+        new TreeMap<>(failures).forEach((i, e) -> failureResultMap.put(String.valueOf(firstRow + i + 1), e));
+    }
+
+    /**
+     * validate the forms concurrently, a form with the same id as a previous one fails
+     *
+     * @return valid forms
+     */
+    private List<PartyBatchForm> validate(List<PartyBatchForm> forms, Map<Identifiable, Set<ConstraintViolation<Identifiable>>> invalidForms,
+                                          LinkedHashMultimap<String, Throwable> failureResultMap) {
+        Set<UUID> ids = new HashSet<>();
+        List<PartyBatchForm> distinctForms = new ArrayList<>();
+        for (PartyBatchForm form : forms) {
+            if (ids.add(form.getId())) {
+                distinctForms.add(form);
+            } else {
+                failureResultMap.put(form.getId().toString(), new BadRequestException(String.format("party %s is duplicated", form.getId())));
+            }
+        }
+        distinctForms.parallelStream().forEach(form -> {
+            Set<ConstraintViolation<Identifiable>> violations = validator.<Identifiable>validate(form);
+            if (!violations.isEmpty()) {
+                invalidForms.put(form, violations);
+            }
+        });
+        return distinctForms.stream().filter(form -> !invalidForms.containsKey(form)).collect(Collectors.toList());
+    }
+
+    private BatchResponse persist(List<PartyBatchForm> forms, boolean isCreate, Map<Identifiable, Set<ConstraintViolation<Identifiable>>> invalidForms,
+                                  LinkedHashMultimap<String, Throwable> failureResultMap) {
+        Set<UUID> relationIds = new HashSet<>();
+        forms.forEach(form -> {
+            Optional.ofNullable(form.getParents()).ifPresent(relationIds::addAll);
+            Optional.ofNullable(form.getChildren()).ifPresent(relationIds::addAll);
+        });
+        Map<UUID, Party> relationParties = findParties(relationIds);
+        List<PartyBatchForm> persistedForms = new ArrayList<>();
+        for (PartyBatchForm form : forms) {
+            if (failureResultMap.containsKey(form.getId().toString()))
+                continue;
+
+            Optional<UUID> missingId = Stream.of(form.getParents(), form.getChildren()).filter(Objects::nonNull).flatMap(Collection::stream)
+                    .filter(id -> !relationParties.containsKey(id)).findFirst();
+            if (missingId.isPresent()) {
+                failureResultMap.put(form.getId().toString(), new ObjectNotFoundException(String.format("party %s doesn't exist.", missingId.get())));
+            } else {
+                persistedForms.add(form);
+            }
+        }
+
+        List<String> successIds = new ArrayList<>();
+        for (List<PartyBatchForm> chunk : Lists.partition(persistedForms, CHUNK_SIZE)) {
+            try {
+                transactionTemplate.execute(status -> {
+                    chunk.forEach(form -> persist(form, isCreate, relationParties));
+                    return null;
+                });
+                chunk.forEach(form -> successIds.add(form.getId().toString()));
+            } catch (RuntimeException e) {
+                log.warn("fail to persist {} parties in one transaction, persist them one by one: {}", chunk.size(), e.getMessage());
+                for (PartyBatchForm form : chunk) {
+                    try {
+                        persist(form, isCreate, relationParties);
+                        successIds.add(form.getId().toString());
+                    } catch (RuntimeException ex) {
+                        failureResultMap.put(form.getId().toString(), ex);
+                    }
+                }
+            }
+        }
+        log.info("{} {} parties, {} failed", isCreate ? "create" : "update", successIds.size(), failureResultMap.keySet().size() + invalidForms.size());
+
+        BatchResponse response = new BatchResponse(successIds, failureResultMap);
+        if (!invalidForms.isEmpty()) {
+            response.addFailure(new BadBatchRequestException("party", invalidForms));
+        }
+        return response;
+    }
+
+    /**
+     * the party is created or updated by the service of its type, which wires the relations of the type
+     */
+    private void persist(PartyBatchForm form, boolean isCreate, Map<UUID, Party> relationParties) {
+        Party party = form.toForm().toModel();
+        party.setParents(form.getParents() == null ? null : form.getParents().stream().map(relationParties::get).collect(Collectors.toSet()));
+        party.setChildren(form.getChildren() == null ? null : form.getChildren().stream().map(relationParties::get).collect(Collectors.toSet()));
+        PartyService partyService = BeanFactoryAnnotationUtils.qualifiedBeanOfType(beanFactory, PartyService.class, party.getType().getId());
+        if (isCreate) {
+            partyService.create(party, false);
+        } else {
+            partyService.update(party, false);
+        }
+    }
+
+    private Map<UUID, Party> findParties(Set<UUID> ids) {
+        Map<UUID, Party> parties = new HashMap<>();
+        for (List<UUID> batch : Lists.partition(new ArrayList<>(ids), BATCH_SIZE)) {
+            partyDao.find(Query.create().where().in("id", new HashSet<>(batch)).end()).forEach(party -> parties.put(party.getId(), party));
+        }
+        return parties;
+    }
+
+    /**
+     * @param firstRow number of rows read before
+     * @return next chunk of rows, empty if all rows are read
+     */
+    private List<PartyImportForm> readRows(Iterator<PartyImportForm> forms, int firstRow) {
+        List<PartyImportForm> rows = new ArrayList<>();
+        while (rows.size() < IMPORT_CHUNK_SIZE) {
+            try {
+                if (!forms.hasNext())
+                    break;
+                rows.add(forms.next());
+            } catch (RuntimeException e) {
+                throw new BadRequestException(String.format("fail to read row %d: %s", firstRow + rows.size() + 1, e.getMessage()), null, e);
+            }
+        }
+        return rows;
+    }
+
+    private void validate(PartyForm form) {
+        if (form.getType() == null) {
+            throw new BadRequestException("type must not be null");
+        }
+        BeanPropertyBindingResult errors = new BeanPropertyBindingResult(form, "party");
+        partyFormValidator.validate(form, errors);
+        if (errors.hasErrors()) {
+            throw new BadRequestException(errors.getAllErrors().stream().map(DefaultMessageSourceResolvable::getDefaultMessage)
+                    .collect(Collectors.joining(", ")));
+        }
+    }
+
+    /**
+     * same rules as the addParents of the party services
+     */
+    private void validateParents(PartyType type, List<Pair<PartyType, String>> parentIdentities) {
+        if (parentIdentities.stream().anyMatch(parent -> parent.getLeft() == PartyType.USER)) {
+            throw new BadRequestException(String.format("%s can't add user parent", type));
+        }
+        if (type == PartyType.GROUP && parentIdentities.stream().anyMatch(parent -> parent.getLeft() == PartyType.OU)) {
+            throw new BadRequestException("group can't add organization parent");
+        }
+        if (parentIdentities.stream().filter(parent -> parent.getLeft() == PartyType.OU).count() > 1) {
+            throw new BadRequestException(String.format("%s can't add above two organization parents", type));
+        }
+    }
+
+    /**
+     * a row fails if a parent neither exists nor is created by a row, or if its parents are in a cycle.
+     * rows are removed from the new identities as they fail, until the rows left only refer to created parents
+     */
+    private void resolveParents(List<List<Pair<PartyType, String>>> parentIdentities, Map<Pair<PartyType, String>, Integer> newIdentities,
+                                Map<Pair<PartyType, String>, UUID> existingIds, Map<Integer, Throwable> failures, int firstRow) {
+        Map<Integer, List<Integer>> parentRowsMap = new HashMap<>();
+        Map<Integer, List<Integer>> childRowsMap = new HashMap<>();
+        Deque<Integer> failedRows = new ArrayDeque<>();
+        for (int i : newIdentities.values()) {
+            List<Integer> parentRows = new ArrayList<>();
+            for (Pair<PartyType, String> parentIdentity : parentIdentities.get(i)) {
+                Integer parentRow = newIdentities.get(parentIdentity);
+                if (parentRow != null) {
+                    parentRows.add(parentRow);
+                    childRowsMap.computeIfAbsent(parentRow, key -> new ArrayList<>()).add(i);
+                } else if (!existingIds.containsKey(parentIdentity)) {
+                    failures.put(i, new BadRequestException(String.format("parent %s/%s doesn't exist", parentIdentity.getLeft(), parentIdentity.getRight())));
+                    failedRows.add(i);
+                }
+            }
+            parentRowsMap.put(i, parentRows);
+        }
+
+        // topological order from the rows without new parents, the rows never reached are in a cycle
+        Map<Integer, Integer> parentCounts = new HashMap<>();
+        Deque<Integer> readyRows = new ArrayDeque<>();
+        parentRowsMap.forEach((i, parentRows) -> {
+            parentCounts.put(i, parentRows.size());
+            if (parentRows.isEmpty()) {
+                readyRows.add(i);
+            }
+        });
+        while (!readyRows.isEmpty()) {
+            for (int childRow : childRowsMap.getOrDefault(readyRows.poll(), Collections.emptyList())) {
+                if (parentCounts.merge(childRow, -1, Integer::sum) == 0) {
+                    readyRows.add(childRow);
+                }
+            }
+        }
+        parentCounts.forEach((i, count) -> {
+            if (count > 0 && !failures.containsKey(i)) {
+                failures.put(i, new BadRequestException(String.format("parents of row %d are in a cycle", firstRow + i + 1)));
+                failedRows.add(i);
+            }
+        });
+
+        // the children of a failed row fail too
+        while (!failedRows.isEmpty()) {
+            int failedRow = failedRows.poll();
+            newIdentities.values().remove(failedRow);
+            for (int childRow : childRowsMap.getOrDefault(failedRow, Collections.emptyList())) {
+                if (!failures.containsKey(childRow)) {
+                    failures.put(childRow, new BadRequestException(String.format("parent of row %d failed at row %d", firstRow + childRow + 1, firstRow + failedRow + 1)));
+                    failedRows.add(childRow);
+                }
+            }
+        }
+    }
+
+    /**
+     * a new organization without organization parent is the root of a new tree, built in one pass with its new descendants.
+     * the new descendants of an existing organization are added under it in one pass, with one gap opened in its tree
+     */
+    private void addOrganizationTrees(Map<UUID, List<UUID>> childrenMap, Set<UUID> newIds) {
+        Set<UUID> childIds = childrenMap.values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
+        childrenMap.forEach((parentId, children) -> {
+            if (!newIds.contains(parentId)) {
+                intervalTreeDao.addChildTrees(parentId, getSubTreeMap(parentId, childrenMap));
+            } else if (!childIds.contains(parentId)) {
+                intervalTreeDao.buildTree(parentId, getSubTreeMap(parentId, childrenMap));
+            }
+        });
+    }
+
+    private Map<UUID, List<UUID>> getSubTreeMap(UUID rootId, Map<UUID, List<UUID>> childrenMap) {
+        Map<UUID, List<UUID>> subTreeMap = new HashMap<>();
+        Deque<UUID> nodeIds = new ArrayDeque<>(Collections.singleton(rootId));
+        while (!nodeIds.isEmpty()) {
+            UUID nodeId = nodeIds.poll();
+            List<UUID> children = childrenMap.get(nodeId);
+            if (children != null) {
+                subTreeMap.put(nodeId, children);
+                nodeIds.addAll(children);
+            }
+        }
+        return subTreeMap;
+    }
+}
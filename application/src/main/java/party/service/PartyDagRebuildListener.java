@@ -0,0 +1,36 @@
+package party.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import party.model.Party;
+
+/**
+ * rebuild the closure table on startup if party.dag.rebuild-on-startup is true, otherwise only if it is stale or empty.
+ * the closure table of the inactive party.dag.closure-mode is not maintained, it is stale after switching the mode back to it.
+ *
+ * @author csieflyman
+ */
+@Slf4j
+@Component
+class PartyDagRebuildListener {
+
+    @Autowired
+    private PartyService<Party> partyService;
+
+    @Value("${party.dag.rebuild-on-startup:false}")
+    private boolean rebuildOnStartup;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        if (rebuildOnStartup) {
+            log.info("rebuild party dag on startup");
+            partyService.rebuildDag();
+        } else {
+            partyService.rebuildDagIfStale();
+        }
+    }
+}
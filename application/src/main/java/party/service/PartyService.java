@@ -2,11 +2,13 @@ package party.service;
 
 import base.service.GenericService;
 import base.util.query.Query;
+import org.apache.commons.lang3.tuple.Pair;
 import party.model.Party;
 import party.model.PartyType;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -15,6 +17,18 @@ import java.util.UUID;
  */
 public interface PartyService<T extends Party> extends GenericService<T, UUID> {
 
+    /**
+     * @param checkIdentity false if the caller has checked that the identity is unique, e.g. for many parties in one query
+     */
+    T create(T party, boolean checkIdentity);
+
+    /**
+     * null parents or children of the party are neither changed nor loaded
+     *
+     * @param checkIdentity false if the caller has checked that the changed identity is unique
+     */
+    void update(T party, boolean checkIdentity);
+
     T get(T party, String... relations);
 
     T get(T party, Set<String> relations);
@@ -31,6 +45,18 @@ public interface PartyService<T extends Party> extends GenericService<T, UUID> {
 
     void disable(Set<UUID> ids);
 
+    /**
+     * @param cascade true to enable the descendants of the party too
+     * @return number of enabled parties
+     */
+    int enable(UUID id, boolean cascade);
+
+    /**
+     * @param cascade true to disable the descendants of the party too
+     * @return number of disabled parties
+     */
+    int disable(UUID id, boolean cascade);
+
     Set<Party> getParents(UUID id);
 
     Set<Party> getChildren(UUID id);
@@ -39,6 +65,19 @@ public interface PartyService<T extends Party> extends GenericService<T, UUID> {
 
     Set<Party> getDescendants(UUID id);
 
+    /**
+     * @param maxHops max number of edges between the parties, same as distance, 1 for the parents only
+     */
+    Set<Party> getAscendants(UUID id, int maxHops);
+
+    Set<Party> getDescendants(UUID id, int maxHops);
+
+    Integer distance(UUID ancestorId, UUID descendantId);
+
+    boolean isAncestor(UUID ancestorId, UUID descendantId);
+
+    Map<Pair<UUID, UUID>, Boolean> isAncestor(Collection<Pair<UUID, UUID>> pairs);
+
     void addChild(T parent, Party child);
 
     void removeChild(T parent, Party child);
@@ -50,4 +89,24 @@ public interface PartyService<T extends Party> extends GenericService<T, UUID> {
     void addParents(T child, Collection<Party> parents);
 
     void removeParents(T child, Collection<Party> parents);
+
+    /**
+     * apply only the listed changes of the relations in one transaction, the other parents and children of the party are not loaded
+     */
+    void updateRelations(T party, Collection<Party> addParents, Collection<Party> removeParents, Collection<Party> addChildren, Collection<Party> removeChildren);
+
+    /**
+     * rebuild the closure table from party_rel, changes of the relations wait for the rebuild or fail after the lock timeout
+     *
+     * @return number of closure rows
+     */
+    int rebuildDag();
+
+    /**
+     * rebuild the closure table if it is stale, e.g. the first start after switching party.dag.closure-mode,
+     * or if it has no rows but party_rel has relations
+     *
+     * @return number of closure rows, 0 if the closure table is not rebuilt
+     */
+    int rebuildDagIfStale();
 }
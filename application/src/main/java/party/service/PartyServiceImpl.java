@@ -1,25 +1,37 @@
 package party.service;
 
+import base.dao.DeadlockRetry;
 import base.exception.ObjectNotFoundException;
 import base.service.GenericServiceImpl;
+import base.util.TransactionUtils;
 import base.util.query.Query;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 import graph.DagEdgeDao;
+import graph.DagIndex;
+import graph.PartyDagEdge;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import party.dao.PartyDao;
 import party.model.GlobalRole;
 import party.model.Party;
 import party.model.PartyType;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.security.RolesAllowed;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author csieflyman
@@ -34,28 +46,70 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
     @Qualifier("partyDagEdgeDao")
     private DagEdgeDao<UUID> dagEdgeDao;
 
+    @Autowired
+    @Qualifier("partyDagIndex")
+    private DagIndex<UUID> dagIndex;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
     @Autowired
     public PartyServiceImpl(@Qualifier("partyDao") PartyDao<T> partyDao) {
         super(partyDao);
         this.partyDao = partyDao;
     }
 
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+    }
+
     @RolesAllowed(GlobalRole.SYS_ADMIN_ID)
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public T create(T party) {
+        return create(party, true);
+    }
+
+    @RolesAllowed(GlobalRole.SYS_ADMIN_ID)
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public T create(T party, boolean checkIdentity) {
         Preconditions.checkArgument(party != null, "party must not be null");
 
-        if (checkExist(party.getType(), party.getIdentity())) {
+        if (checkIdentity && checkExist(party.getType(), party.getIdentity())) {
             throw new IllegalArgumentException(String.format("identity %s must be unique of the type %s", party.getIdentity(), party.getType()));
         }
 
         Set<Party> parents = party.getParents();
         Set<Party> children = party.getChildren();
+        // a retry of @DeadlockRetry creates the party again, the version set by the rolled back persist is cleared
+        UUID id = party.getId();
+        Long version = party.getVersion();
+        TransactionUtils.afterRollback(() -> {
+            party.setId(id);
+            party.setVersion(version);
+            party.setParents(parents);
+            party.setChildren(children);
+        });
         party.setParents(new HashSet<>());
         party.setChildren(new HashSet<>());
         T newParty = partyDao.create(party);
 
+        List<Pair<UUID, UUID>> edges = new ArrayList<>();
+        if (children != null) {
+            children.forEach(child -> edges.add(Pair.of(newParty.getId(), child.getId())));
+        }
+        if (parents != null) {
+            parents.forEach(parent -> edges.add(Pair.of(parent.getId(), newParty.getId())));
+        }
+        // lock the descendants of the children and the ancestors of the parents at once, in stripe order
+        dagEdgeDao.lockEdges(edges);
         if (children != null && !children.isEmpty()) {
             addChildren(newParty, children);
         }
@@ -66,36 +120,74 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
         return newParty;
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void update(T party) {
+        update(party, true);
+    }
+
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public void update(T party, boolean checkIdentity) {
         Preconditions.checkArgument(party != null, "party must not be null");
         Preconditions.checkArgument(party.getId() != null, "party id must not be null");
 
-        Party oldParty = getById(party.getId(), Party.RELATION_PARENT, Party.RELATION_CHILDREN);
-        if (!party.getIdentity().equals(oldParty.getIdentity()) && checkExist(party.getType(), party.getIdentity())) {
-            throw new IllegalArgumentException(String.format("identity %s must be unique of the type %s", party.getIdentity(), party.getType()));
-        }
-
         Set<Party> parents = party.getParents();
         Set<Party> children = party.getChildren();
-        party.setChildren(oldParty.getChildren());
-        party.setParents(oldParty.getParents());
-        partyDao.update(party);
+        // a retry of @DeadlockRetry compares the requested relations again, not the ones of the rolled back attempt
+        TransactionUtils.afterRollback(() -> {
+            party.setParents(parents);
+            party.setChildren(children);
+        });
+        // a party renamed only doesn't load its relations, the merge keeps the uninitialized collections of the managed party
+        Set<String> relations = new HashSet<>();
+        if (parents != null) {
+            relations.add(Party.RELATION_PARENT);
+        }
+        if (children != null) {
+            relations.add(Party.RELATION_CHILDREN);
+        }
+        Party oldParty = getById(party.getId(), relations);
+        if (checkIdentity && !party.getIdentity().equals(oldParty.getIdentity()) && checkExist(party.getType(), party.getIdentity())) {
+            throw new IllegalArgumentException(String.format("identity %s must be unique of the type %s", party.getIdentity(), party.getType()));
+        }
 
         Collection<Party> addParents = parents == null ? Collections.emptySet() : CollectionUtils.subtract(parents, oldParty.getParents());
         Collection<Party> removeParents = parents == null ? Collections.emptySet() : CollectionUtils.subtract(oldParty.getParents(), parents);
         Collection<Party> addChildren = children == null ? Collections.emptySet() : CollectionUtils.subtract(children, oldParty.getChildren());
         Collection<Party> removeChildren = children == null ? Collections.emptySet() : CollectionUtils.subtract(oldParty.getChildren(), children);
+        // lock the vertices of all changed edges before the party is written
+        dagEdgeDao.lockEdges(toEdges(party.getId(), addParents, removeParents, addChildren, removeChildren));
+
+        party.setChildren(oldParty.getChildren());
+        party.setParents(oldParty.getParents());
+        partyDao.update(party);
+        updateRelations(party, addParents, removeParents, addChildren, removeChildren);
+    }
+
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public void updateRelations(T party, Collection<Party> addParents, Collection<Party> removeParents, Collection<Party> addChildren, Collection<Party> removeChildren) {
+        Preconditions.checkArgument(party != null, "party must not be null");
+        Preconditions.checkArgument(addParents != null && removeParents != null, "parents must not be null");
+        Preconditions.checkArgument(addChildren != null && removeChildren != null, "children must not be null");
+
+        if (CollectionUtils.containsAny(addParents, removeParents) || CollectionUtils.containsAny(addChildren, removeChildren)) {
+            throw new IllegalArgumentException(String.format("party %s can't add and remove the same relation at once", party.getId()));
+        }
+
+        // lock the vertices of all changed edges at once, in stripe order
+        dagEdgeDao.lockEdges(toEdges(party.getId(), addParents, removeParents, addChildren, removeChildren));
         if (!removeChildren.isEmpty()) {
-            party = get(party, Party.RELATION_CHILDREN);
             removeChildren(party, removeChildren);
         }
         if (!removeParents.isEmpty()) {
             removeParents(party, removeParents);
         }
         if (!addChildren.isEmpty()) {
-            party = get(party, Party.RELATION_CHILDREN);
             addChildren(party, addChildren);
         }
         if (!addParents.isEmpty()) {
@@ -103,6 +195,14 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
         }
     }
 
+    private static List<Pair<UUID, UUID>> toEdges(UUID id, Collection<Party> addParents, Collection<Party> removeParents,
+                                                  Collection<Party> addChildren, Collection<Party> removeChildren) {
+        List<Pair<UUID, UUID>> edges = new ArrayList<>();
+        Stream.concat(addChildren.stream(), removeChildren.stream()).forEach(child -> edges.add(Pair.of(id, child.getId())));
+        Stream.concat(addParents.stream(), removeParents.stream()).forEach(parent -> edges.add(Pair.of(parent.getId(), id)));
+        return edges;
+    }
+
     @Override
     public T get(T party, String... relations) {
         return get(party, Sets.newHashSet(relations));
@@ -149,19 +249,20 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
         return findSize(Query.create().where().eq("type", type).eq("identity", identity).end()) > 0;
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void delete(T party) {
         Preconditions.checkArgument(party != null, "party must not be null");
 
-        party = getById(party.getId(), Party.RELATION_PARENT, Party.RELATION_CHILDREN);
-        if (party.getChildren() != null && !party.getChildren().isEmpty()) {
-            partyDao.removeChildren(party, party.getChildren());
-        }
-        if (party.getParents() != null && !party.getParents().isEmpty()) {
-            partyDao.removeParents(party, party.getParents());
-        }
-        dagEdgeDao.removeEdgesOfVertex(party.getId());
+        // the ancestors and descendants of the party are changed
+        dagEdgeDao.lockEdges(Collections.singletonList(Pair.of(party.getId(), party.getId())));
+        party = getById(party.getId());
+        int removedRelationCount = partyDao.removeAllRelations(party);
+        log.debug("remove {} relations of party {}", removedRelationCount, party.getId());
+        int removedEdgeCount = dagEdgeDao.removeEdgesOfVertex(party.getId());
+        log.debug("remove {} dag edges of party {}", removedEdgeCount, party.getId());
+        dagIndex.removeVertex(party.getId());
         partyDao.delete(party);
     }
 
@@ -185,6 +286,38 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
         partyDao.executeUpdate(updatedValueMap, Query.create().where().in("id", ids));
     }
 
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public int enable(UUID id, boolean cascade) {
+        return updateEnabled(id, cascade, true);
+    }
+
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    @Override
+    public int disable(UUID id, boolean cascade) {
+        return updateEnabled(id, cascade, false);
+    }
+
+    private int updateEnabled(UUID id, boolean cascade, boolean enabled) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+
+        int count;
+        if (cascade) {
+            // the descendants are not changed until the transaction completes, they are updated by one statement joined on the closure
+            dagEdgeDao.lockEdges(Collections.singletonList(Pair.of(id, id)));
+            count = partyDao.updateWithDescendants(id, dagEdgeDao.getClosureTableName(), PartyDagEdge.DAG_ID, Collections.singletonMap("enabled", enabled));
+        } else {
+            count = partyDao.executeUpdate(Collections.singletonMap("enabled", enabled), Query.create().where().eq("id", id));
+        }
+        if (count == 0) {
+            throw new ObjectNotFoundException(String.format("party %s doesn't exist.", id));
+        }
+        log.info("{} {} parties of party {}", enabled ? "enable" : "disable", count, id);
+        return count;
+    }
+
     @Override
     public Set<Party> getParents(UUID id) {
         Preconditions.checkArgument(id != null, "party must not be null");
@@ -205,7 +338,7 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
     public Set<Party> getAscendants(UUID id) {
         Preconditions.checkArgument(id != null, "id must not be null");
 
-        Set ascendantIds = dagEdgeDao.findIncomingVertices(id);
+        Set<UUID> ascendantIds = dagIndex.isReady() ? dagIndex.findIncomingVertices(id) : dagEdgeDao.findIncomingVertices(id);
         if (ascendantIds.isEmpty())
             return new HashSet<>();
 
@@ -216,34 +349,94 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
     public Set<Party> getDescendants(UUID id) {
         Preconditions.checkArgument(id != null, "id must not be null");
 
-        Set descendantIds = dagEdgeDao.findOutgoingVertices(id);
+        Set<UUID> descendantIds = dagIndex.isReady() ? dagIndex.findOutgoingVertices(id) : dagEdgeDao.findOutgoingVertices(id);
         if (descendantIds.isEmpty())
             return new HashSet<>();
 
         return new HashSet<>(find(Query.create().where().in("id", descendantIds).end()));
     }
 
-    @Transactional
+    @Override
+    public Set<Party> getAscendants(UUID id, int maxHops) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+        Preconditions.checkArgument(maxHops > 0, "maxHops must be positive");
+
+        Set<UUID> ascendantIds = dagIndex.isReady() ? dagIndex.findIncomingVertices(id, maxHops) : dagEdgeDao.findIncomingVertices(id, maxHops);
+        if (ascendantIds.isEmpty())
+            return new HashSet<>();
+
+        return new HashSet<>(find(Query.create().where().in("id", ascendantIds).end()));
+    }
+
+    @Override
+    public Set<Party> getDescendants(UUID id, int maxHops) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+        Preconditions.checkArgument(maxHops > 0, "maxHops must be positive");
+
+        Set<UUID> descendantIds = dagIndex.isReady() ? dagIndex.findOutgoingVertices(id, maxHops) : dagEdgeDao.findOutgoingVertices(id, maxHops);
+        if (descendantIds.isEmpty())
+            return new HashSet<>();
+
+        return new HashSet<>(find(Query.create().where().in("id", descendantIds).end()));
+    }
+
+    @Override
+    public Integer distance(UUID ancestorId, UUID descendantId) {
+        Preconditions.checkArgument(ancestorId != null, "ancestorId must not be null");
+        Preconditions.checkArgument(descendantId != null, "descendantId must not be null");
+
+        return dagIndex.isReady() ? dagIndex.distance(ancestorId, descendantId) : dagEdgeDao.distance(ancestorId, descendantId);
+    }
+
+    @Override
+    public boolean isAncestor(UUID ancestorId, UUID descendantId) {
+        Preconditions.checkArgument(ancestorId != null, "ancestorId must not be null");
+        Preconditions.checkArgument(descendantId != null, "descendantId must not be null");
+
+        return dagIndex.isReady() ? dagIndex.isAncestor(ancestorId, descendantId) : dagEdgeDao.findIncomingVertices(descendantId).contains(ancestorId);
+    }
+
+    @Override
+    public Map<Pair<UUID, UUID>, Boolean> isAncestor(Collection<Pair<UUID, UUID>> pairs) {
+        Preconditions.checkArgument(pairs != null, "pairs must not be null");
+
+        if (dagIndex.isReady())
+            return dagIndex.isAncestor(pairs);
+
+        Map<UUID, Set<UUID>> ascendantIdMap = new HashMap<>();
+        return pairs.stream().distinct().collect(Collectors.toMap(pair -> pair, pair -> ascendantIdMap
+                .computeIfAbsent(pair.getRight(), descendantId -> dagEdgeDao.findIncomingVertices(descendantId)).contains(pair.getLeft())));
+    }
+
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void addChild(T parent, Party child) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
         Preconditions.checkArgument(child != null, "child must not be null");
 
+        checkAcyclic(Collections.singletonList(Pair.of(parent.getId(), child.getId())));
+        dagEdgeDao.lockEdges(Collections.singletonList(Pair.of(parent.getId(), child.getId())));
         partyDao.addChild(parent, child);
         dagEdgeDao.addEdges(parent.getId(), child.getId());
+        dagIndex.addEdge(parent.getId(), child.getId());
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void removeChild(T parent, Party child) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
         Preconditions.checkArgument(child != null, "child must not be null");
 
+        dagEdgeDao.lockEdges(Collections.singletonList(Pair.of(parent.getId(), child.getId())));
         partyDao.removeChild(parent, child);
         dagEdgeDao.removeEdges(parent.getId(), child.getId());
+        dagIndex.removeEdge(parent.getId(), child.getId());
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void addChildren(T parent, Collection<Party> children) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
@@ -251,11 +444,16 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
 
         if (children.isEmpty())
             return;
+        List<Pair<UUID, UUID>> edges = children.stream().map(child -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList());
+        checkAcyclic(edges);
+        dagEdgeDao.lockEdges(edges);
         partyDao.addChildren(parent, children);
-        children.forEach(child -> dagEdgeDao.addEdges(parent.getId(), child.getId()));
+        dagEdgeDao.addEdges(edges);
+        dagIndex.addEdges(edges);
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void removeChildren(T parent, Collection<Party> children) {
         Preconditions.checkArgument(parent != null, "parent must not be null");
@@ -263,11 +461,15 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
 
         if (children.isEmpty())
             return;
+        List<Pair<UUID, UUID>> edges = children.stream().map(child -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList());
+        dagEdgeDao.lockEdges(edges);
         partyDao.removeChildren(parent, children);
-        children.forEach(child -> dagEdgeDao.removeEdges(parent.getId(), child.getId()));
+        edges.forEach(edge -> dagEdgeDao.removeEdges(edge.getLeft(), edge.getRight()));
+        dagIndex.removeEdges(edges);
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void addParents(T child, Collection<Party> parents) {
         Preconditions.checkArgument(child != null, "child must not be null");
@@ -275,11 +477,16 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
 
         if (parents.isEmpty())
             return;
+        List<Pair<UUID, UUID>> edges = parents.stream().map(parent -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList());
+        checkAcyclic(edges);
+        dagEdgeDao.lockEdges(edges);
         partyDao.addParents(child, parents);
-        parents.forEach(parent -> dagEdgeDao.addEdges(parent.getId(), child.getId()));
+        dagEdgeDao.addEdges(edges);
+        dagIndex.addEdges(edges);
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void removeParents(T child, Collection<Party> parents) {
         Preconditions.checkArgument(child != null, "child must not be null");
@@ -287,7 +494,61 @@ public class PartyServiceImpl<T extends Party> extends GenericServiceImpl<T, UUI
 
         if (parents.isEmpty())
             return;
+        List<Pair<UUID, UUID>> edges = parents.stream().map(parent -> Pair.of(parent.getId(), child.getId())).collect(Collectors.toList());
+        dagEdgeDao.lockEdges(edges);
         partyDao.removeParents(child, parents);
-        parents.forEach(parent -> dagEdgeDao.removeEdges(parent.getId(), child.getId()));
+        edges.forEach(edge -> dagEdgeDao.removeEdges(edge.getLeft(), edge.getRight()));
+        dagIndex.removeEdges(edges);
+    }
+
+    /**
+     * fail before anything is written when an edge closes a cycle with the committed edges, checked against the labels of the dag index.
+     * cycles among the new edges themselves, or with edges committed after the snapshot, are still rejected by the closure dao
+     */
+    private void checkAcyclic(Collection<Pair<UUID, UUID>> edges) {
+        for (Pair<UUID, UUID> edge : edges) {
+            if (edge.getLeft().equals(edge.getRight())) {
+                throw new IllegalArgumentException(String.format("add edge from %s to %s will cause cycle", edge.getLeft(), edge.getRight()));
+            }
+        }
+        if (!dagIndex.isReady())
+            return;
+
+        List<Pair<UUID, UUID>> reversedEdges = edges.stream().map(edge -> Pair.of(edge.getRight(), edge.getLeft())).collect(Collectors.toList());
+        dagIndex.isAncestor(reversedEdges).forEach((reversedEdge, isAncestor) -> {
+            if (isAncestor) {
+                throw new IllegalArgumentException(String.format("add edge from %s to %s will cause cycle", reversedEdge.getRight(), reversedEdge.getLeft()));
+            }
+        });
+    }
+
+    @RolesAllowed(GlobalRole.SYS_ADMIN_ID)
+    @Override
+    public int rebuildDag() {
+        return rebuildDag(false);
+    }
+
+    @RolesAllowed(GlobalRole.SYS_ADMIN_ID)
+    @Override
+    public int rebuildDagIfStale() {
+        return rebuildDag(true);
+    }
+
+    // the transaction holds the lock of the whole dag, so the relations read under it are not changed until the closure is replaced
+    private int rebuildDag(boolean ifStale) {
+        return transactionTemplate.execute(status -> {
+            dagEdgeDao.lockAll();
+            boolean stale = dagEdgeDao.isStale();
+            if (ifStale && !stale && !dagEdgeDao.isEmpty())
+                return 0;
+
+            List<Pair<UUID, UUID>> relations = partyDao.findAllRelations();
+            if (ifStale && !stale && relations.isEmpty())
+                return 0;
+
+            int count = dagEdgeDao.rebuild(relations);
+            log.info("rebuild dag from {} relations: {} closure rows", relations.size(), count);
+            return count;
+        });
     }
 }
@@ -0,0 +1,29 @@
+package party.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * renumber the organization trees on startup, the trees numbered with gaps are not valid after party.tree.numbering is switched back to contiguous.
+ * the contiguous trees are valid in the gap mode, so nothing is renumbered after switching to gap
+ *
+ * @author csieflyman
+ */
+@Slf4j
+@Component
+class PartyTreeRenumberListener {
+
+    @Autowired
+    private OrganizationService organizationService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void renumber() {
+        int count = organizationService.renumberTrees();
+        if (count > 0) {
+            log.info("renumber {} organization trees on startup", count);
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package party.service;
 
+import base.dao.DeadlockRetry;
 import com.google.common.base.Preconditions;
 import graph.IntervalTreeDao;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 import party.dao.PartyDao;
 import party.model.Party;
@@ -57,7 +59,8 @@ public class UserServiceImpl extends PartyServiceImpl<User> implements UserServi
         throw new UnsupportedOperationException(String.format("user %s can't remove child", user));
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void addParents(User child, Collection<Party> parents) {
         Preconditions.checkArgument(child != null, "child must not be null");
@@ -80,7 +83,8 @@ public class UserServiceImpl extends PartyServiceImpl<User> implements UserServi
         }
     }
 
-    @Transactional
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void removeParents(User child, Collection<Party> parents) {
         Preconditions.checkArgument(child != null, "child must not be null");
@@ -111,7 +115,15 @@ public class UserServiceImpl extends PartyServiceImpl<User> implements UserServi
         return new HashSet<>();
     }
 
-    @Transactional
+    @Override
+    public Set<Party> getDescendants(UUID id, int maxHops) {
+        Preconditions.checkArgument(id != null, "id must not be null");
+
+        return new HashSet<>();
+    }
+
+    @DeadlockRetry
+    @Transactional(isolation = Isolation.READ_COMMITTED)
     @Override
     public void delete(User user) {
         Preconditions.checkArgument(user != null, "user must not be null");
@@ -9,7 +9,7 @@ CREATE TABLE party (
     created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
     updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
     PRIMARY KEY (id),
-    INDEX identity_idx (`identity``),
+    INDEX identity_idx (`identity`),
     INDEX type_idx (type),
     INDEX name_idx (name),
     INDEX enabled_idx (enabled),
@@ -19,7 +19,7 @@ CREATE TABLE party (
 CREATE TABLE party_rel (
     parent_id VARCHAR(36) NOT NULL,
     child_id VARCHAR(36) NOT NULL,
-    PRIMARY KEY (parent, children),
+    PRIMARY KEY (parent_id, child_id),
     INDEX parent_id_idx (parent_id),
     INDEX child_id_idx (child_id),
     CONSTRAINT FK_party_rel_parent FOREIGN KEY (parent_id) REFERENCES party (id),
@@ -0,0 +1,16 @@
+CREATE TABLE dag_path (
+    id BIGINT UNSIGNED NOT NULL AUTO_INCREMENT,
+    start_vertex_id VARCHAR(36) NOT NULL,
+    end_vertex_id VARCHAR(36) NOT NULL,
+    path_count BIGINT NOT NULL,
+    min_hops INT NOT NULL,
+    dag_id VARCHAR(150) NOT NULL,
+    PRIMARY KEY (id),
+    UNIQUE INDEX dag_path_start_end_idx (dag_id, start_vertex_id, end_vertex_id),
+    INDEX dag_path_start_hops_idx (dag_id, start_vertex_id, min_hops),
+    INDEX dag_path_end_hops_idx (dag_id, end_vertex_id, min_hops),
+    CONSTRAINT FK_dag_path_start_vertex_id FOREIGN KEY (start_vertex_id) REFERENCES party (id),
+    CONSTRAINT FK_dag_path_end_vertex_id FOREIGN KEY (end_vertex_id) REFERENCES party (id)
+);
+
+-- dag_path is filled on startup when party.dag.closure-mode is path
@@ -0,0 +1,2 @@
+CREATE INDEX dag_edge_start_hops_idx ON dag_edge (dag_id, start_vertex_id, hops);
+CREATE INDEX dag_edge_end_hops_idx ON dag_edge (dag_id, end_vertex_id, hops);
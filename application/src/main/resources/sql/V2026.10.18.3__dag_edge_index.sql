@@ -0,0 +1,3 @@
+-- every statement filters on dag_id plus a vertex, the (dag_id, vertex, hops) indexes replace the single column hops index.
+-- start_vertex_id_idx and end_vertex_id_idx are kept for the foreign keys.
+DROP INDEX hops_idx ON dag_edge;
@@ -0,0 +1 @@
+ALTER TABLE interval_tree MODIFY low BIGINT NOT NULL, MODIFY high BIGINT NOT NULL;
@@ -0,0 +1,19 @@
+ALTER TABLE interval_tree ADD COLUMN parent_node_id VARCHAR(36) NULL AFTER node_id, ADD COLUMN depth INT NOT NULL DEFAULT 0 AFTER high;
+
+-- depth is the number of ancestors
+UPDATE interval_tree n JOIN (
+    SELECT c.id, COUNT(a.id) AS depth FROM interval_tree c JOIN interval_tree a
+        ON a.tree_type = c.tree_type AND a.tree_id = c.tree_id AND a.low < c.low AND a.high > c.high
+    GROUP BY c.id
+) d ON d.id = n.id
+SET n.depth = d.depth;
+
+-- the parent is the ancestor one level up
+UPDATE interval_tree n JOIN (
+    SELECT DISTINCT c.id, a.node_id FROM interval_tree c JOIN interval_tree a
+        ON a.tree_type = c.tree_type AND a.tree_id = c.tree_id AND a.low < c.low AND a.high > c.high AND a.depth = c.depth - 1
+) p ON p.id = n.id
+SET n.parent_node_id = p.node_id;
+
+CREATE INDEX interval_tree_parent_idx ON interval_tree (tree_type, parent_node_id);
+ALTER TABLE interval_tree ADD CONSTRAINT FK_interval_tree_parent_node_id FOREIGN KEY (parent_node_id) REFERENCES party (id);
@@ -0,0 +1 @@
+CREATE INDEX interval_tree_range_idx ON interval_tree (tree_type, tree_id, low, high);
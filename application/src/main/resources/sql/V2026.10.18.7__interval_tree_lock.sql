@@ -0,0 +1,8 @@
+CREATE TABLE interval_tree_lock (
+    tree_type VARCHAR(50) NOT NULL,
+    stripe INT NOT NULL,
+    PRIMARY KEY (tree_type, stripe)
+);
+
+-- the range queries filter by tree, single column indexes on low and high make unrelated trees share gap locks
+ALTER TABLE interval_tree DROP INDEX low_idx, DROP INDEX high_idx, DROP INDEX tree_id_idx, DROP INDEX tree_type_idx;
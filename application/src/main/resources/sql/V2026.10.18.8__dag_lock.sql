@@ -0,0 +1,5 @@
+CREATE TABLE dag_lock (
+    dag_id VARCHAR(150) NOT NULL,
+    stripe INT NOT NULL,
+    PRIMARY KEY (dag_id, stripe)
+);
@@ -0,0 +1,5 @@
+CREATE TABLE dag_closure (
+    dag_id VARCHAR(150) NOT NULL,
+    closure_table VARCHAR(64) NOT NULL,
+    PRIMARY KEY (dag_id)
+);
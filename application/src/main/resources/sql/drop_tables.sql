@@ -1,4 +1,8 @@
+DROP TABLE dag_closure;
+DROP TABLE dag_lock;
+DROP TABLE interval_tree_lock;
 DROP TABLE interval_tree;
+DROP TABLE dag_path;
 DROP TABLE dag_edge;
 DROP TABLE party_rel;
 DROP TABLE party;
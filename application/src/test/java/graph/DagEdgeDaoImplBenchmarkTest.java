@@ -0,0 +1,246 @@
+package graph;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackage;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * timings of the closure table on a generated layered dag, run by the benchmark task of gradle.
+ * the numbers are logged, only the results are asserted, the timings depend on the machine
+ *
+ * @author csieflyman
+ */
+@Tag("benchmark")
+@ExtendWith(SpringExtension.class)
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class DagEdgeDaoImplBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(DagEdgeDaoImplBenchmarkTest.class);
+
+    private static final int LAYERS = 8;
+    private static final int WIDTH = 10;
+    private static final int OUT_DEGREE = 3;
+    private static final int REMOVED_EDGES = 20;
+    private static final int QUERY_ROUNDS = 5;
+
+    @Configuration
+    @AutoConfigurationPackage
+    @Import(PartyDagEdgeDaoImpl.class)
+    static class Config {
+
+        @Bean
+        public OtherDagEdgeDaoImpl otherDagEdgeDao1() {
+            return new OtherDagEdgeDaoImpl("other1");
+        }
+
+        @Bean
+        public OtherDagEdgeDaoImpl otherDagEdgeDao2() {
+            return new OtherDagEdgeDaoImpl("other2");
+        }
+
+        @Bean
+        public OtherDagEdgeDaoImpl otherDagEdgeDao3() {
+            return new OtherDagEdgeDaoImpl("other3");
+        }
+
+        @Bean
+        public OtherDagEdgeDaoImpl otherDagEdgeDao4() {
+            return new OtherDagEdgeDaoImpl("other4");
+        }
+    }
+
+    /**
+     * another dag sharing the closure table
+     */
+    static class OtherDagEdgeDaoImpl extends DagEdgeDaoImpl<PartyDagEdge, UUID> {
+
+        private final String dagId;
+
+        OtherDagEdgeDaoImpl(String dagId) {
+            this.dagId = dagId;
+        }
+
+        @Override
+        protected String getDagId() {
+            return dagId;
+        }
+    }
+
+    @Autowired
+    private PartyDagEdgeDaoImpl dagEdgeDao;
+
+    @Autowired
+    private TestEntityManager em;
+
+    @Autowired
+    private List<OtherDagEdgeDaoImpl> otherDagEdgeDaos;
+
+    @Test
+    void removeEdgeAgainstLoop() {
+        Random random = new Random(3);
+        List<Pair<UUID, UUID>> edges = generateDag(generateLayers(random), random);
+        dagEdgeDao.addEdges(edges);
+        long rowCount = countRows();
+        // the edges between the middle layers have both ancestors and descendants
+        List<Pair<UUID, UUID>> removedEdges = new ArrayList<>(edges.subList(edges.size() / 2 - REMOVED_EDGES / 2, edges.size() / 2 + REMOVED_EDGES / 2));
+
+        long loopNanos = 0;
+        long oneQueryNanos = 0;
+        int loopQueries = 0;
+        for (Pair<UUID, UUID> edge : removedEdges) {
+            Long edgeId = findDirectEdgeId(edge);
+            em.clear();
+            long start = System.nanoTime();
+            Pair<Set<Long>, Integer> dependentIds = findDependentIdsByLoop(edgeId);
+            loopNanos += System.nanoTime() - start;
+            loopQueries += dependentIds.getRight();
+
+            // the one-query removal also deletes the rows, the loop only finds them
+            em.clear();
+            start = System.nanoTime();
+            dagEdgeDao.removeEdges(edge.getLeft(), edge.getRight());
+            em.flush();
+            oneQueryNanos += System.nanoTime() - start;
+
+            long newRowCount = countRows();
+            assertEquals(rowCount - dependentIds.getLeft().size(), newRowCount, edge.toString());
+            rowCount = newRowCount;
+        }
+        log.info("remove {} edges of a dag with {} closure rows: loop {} ms in {} queries (find only), one query {} ms (find and delete)",
+                REMOVED_EDGES, rowCount, TimeUnit.NANOSECONDS.toMillis(loopNanos), loopQueries, TimeUnit.NANOSECONDS.toMillis(oneQueryNanos));
+    }
+
+    @Test
+    void queryAmongOtherDags() {
+        Random random = new Random(9);
+        List<List<UUID>> layers = generateLayers(random);
+        dagEdgeDao.addEdges(generateDag(layers, random));
+        List<UUID> vertices = layers.get(LAYERS / 2);
+        Map<UUID, Set<UUID>> descendants = new HashMap<>();
+        Map<UUID, Set<UUID>> ascendants = new HashMap<>();
+        vertices.forEach(vertex -> {
+            descendants.put(vertex, dagEdgeDao.findOutgoingVertices(vertex));
+            ascendants.put(vertex, dagEdgeDao.findIncomingVertices(vertex));
+        });
+        long aloneRowCount = countRows();
+        long aloneNanos = timeQueries(vertices, layers);
+
+        // the other dags have the same vertices with other edges, the worst case for the indexes
+        for (OtherDagEdgeDaoImpl otherDagEdgeDao : otherDagEdgeDaos) {
+            otherDagEdgeDao.addEdges(generateDag(layers, random));
+        }
+        em.flush();
+        em.clear();
+        long sharedNanos = timeQueries(vertices, layers);
+
+        vertices.forEach(vertex -> {
+            assertEquals(descendants.get(vertex), dagEdgeDao.findOutgoingVertices(vertex));
+            assertEquals(ascendants.get(vertex), dagEdgeDao.findIncomingVertices(vertex));
+        });
+        assertEquals(aloneRowCount, countRows());
+        long queryCount = (long) QUERY_ROUNDS * vertices.size() * 3;
+        log.info("{} queries of a dag with {} closure rows: alone {} us per query, among {} other dags {} us per query",
+                queryCount, aloneRowCount, TimeUnit.NANOSECONDS.toMicros(aloneNanos / queryCount), otherDagEdgeDaos.size(),
+                TimeUnit.NANOSECONDS.toMicros(sharedNanos / queryCount));
+    }
+
+    /**
+     * descendants, ascendants within 2 hops and the distance to a vertex of the last layer, of every vertex, after a warm up round
+     */
+    private long timeQueries(List<UUID> vertices, List<List<UUID>> layers) {
+        UUID last = layers.get(LAYERS - 1).get(0);
+        long start = 0;
+        for (int round = 0; round <= QUERY_ROUNDS; round++) {
+            if (round == 1) {
+                start = System.nanoTime();
+            }
+            for (UUID vertex : vertices) {
+                dagEdgeDao.findOutgoingVertices(vertex);
+                dagEdgeDao.findIncomingVertices(vertex, 2);
+                dagEdgeDao.distance(vertex, last);
+            }
+            em.clear();
+        }
+        return System.nanoTime() - start;
+    }
+
+    static List<List<UUID>> generateLayers(Random random) {
+        List<List<UUID>> layers = new ArrayList<>();
+        for (int i = 0; i < LAYERS; i++) {
+            List<UUID> layer = new ArrayList<>();
+            for (int j = 0; j < WIDTH; j++) {
+                layer.add(new UUID(random.nextLong(), random.nextLong()));
+            }
+            layers.add(layer);
+        }
+        return layers;
+    }
+
+    /**
+     * every vertex of a layer has edges to OUT_DEGREE distinct vertices of the next layer, in the order of the layers
+     */
+    static List<Pair<UUID, UUID>> generateDag(List<List<UUID>> layers, Random random) {
+        List<Pair<UUID, UUID>> edges = new ArrayList<>();
+        for (int i = 0; i < LAYERS - 1; i++) {
+            for (UUID start : layers.get(i)) {
+                List<UUID> ends = new ArrayList<>(layers.get(i + 1));
+                Collections.shuffle(ends, random);
+                ends.subList(0, OUT_DEGREE).forEach(end -> edges.add(Pair.of(start, end)));
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * the removal before the one query: the rows of the direct edge, then a growing IN query until no dependent row is found
+     *
+     * @return ids of the rows to delete and the number of queries
+     */
+    private Pair<Set<Long>, Integer> findDependentIdsByLoop(Long edgeId) {
+        Set<Long> ids = new HashSet<>(em.getEntityManager()
+                .createQuery("select id from PartyDagEdge where directEdgeId = :id and dagId = :dagId", Long.class)
+                .setParameter("id", edgeId).setParameter("dagId", PartyDagEdge.DAG_ID).getResultList());
+        ids.add(edgeId);
+        int queries = 1;
+        while (true) {
+            List<Long> found = em.getEntityManager().createQuery("select id from PartyDagEdge where dagId = :dagId and hops > 0 " +
+                    "and (entryEdgeId in :ids or exitEdgeId in :ids) and id not in :ids", Long.class)
+                    .setParameter("dagId", PartyDagEdge.DAG_ID).setParameter("ids", ids).getResultList();
+            queries++;
+            if (found.isEmpty()) {
+                return Pair.of(ids, queries);
+            }
+            ids.addAll(found);
+        }
+    }
+
+    private Long findDirectEdgeId(Pair<UUID, UUID> edge) {
+        return em.getEntityManager().createQuery("select id from PartyDagEdge where startVertexId = :start and endVertexId = :end " +
+                "and hops = 0 and dagId = :dagId", Long.class)
+                .setParameter("start", edge.getLeft()).setParameter("end", edge.getRight())
+                .setParameter("dagId", PartyDagEdge.DAG_ID).getSingleResult();
+    }
+
+    private long countRows() {
+        return em.getEntityManager().createQuery("select count(id) from PartyDagEdge where dagId = :dagId", Long.class)
+                .setParameter("dagId", PartyDagEdge.DAG_ID).getSingleResult();
+    }
+}
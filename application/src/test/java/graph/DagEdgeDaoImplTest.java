@@ -0,0 +1,127 @@
+package graph;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackage;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * the closure rows are written by a batch of JDBC statements, then read back through JPA
+ *
+ * @author csieflyman
+ */
+@ExtendWith(SpringExtension.class)
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class DagEdgeDaoImplTest {
+
+    @Configuration
+    @AutoConfigurationPackage
+    @Import(PartyDagEdgeDaoImpl.class)
+    static class Config {
+    }
+
+    @Autowired
+    private PartyDagEdgeDaoImpl dagEdgeDao;
+
+    @Autowired
+    private TestEntityManager em;
+
+    private final Map<UUID, String> names = new HashMap<>();
+    private final UUID a = vertex("a");
+    private final UUID b = vertex("b");
+    private final UUID c = vertex("c");
+    private final UUID d = vertex("d");
+    private final UUID e = vertex("e");
+
+    @Test
+    void addEdgesInOneBatch() {
+        // later edges of the batch extend the rows of earlier ones
+        dagEdgeDao.addEdges(Arrays.asList(Pair.of(a, b), Pair.of(b, c), Pair.of(c, d), Pair.of(e, c)));
+
+        assertEquals(Arrays.asList("a>b:0", "a>c:1", "a>d:2", "b>c:0", "b>d:1", "c>d:0", "e>c:0", "e>d:1"), findRows());
+        assertEquals(new HashSet<>(Arrays.asList(b, c, e)), dagEdgeDao.findIncomingVertices(d, 2));
+        assertEquals(Integer.valueOf(3), dagEdgeDao.distance(a, d));
+    }
+
+    @Test
+    void addEdgesToExistingRows() {
+        dagEdgeDao.addEdges(a, b);
+        dagEdgeDao.addEdges(c, d);
+
+        // two paths from a to d
+        dagEdgeDao.addEdges(Arrays.asList(Pair.of(b, c), Pair.of(a, e), Pair.of(e, c)));
+
+        assertEquals(Arrays.asList("a>b:0", "a>c:1", "a>c:1", "a>d:2", "a>d:2", "a>e:0", "b>c:0", "b>d:1", "c>d:0", "e>c:0", "e>d:1"),
+                findRows());
+    }
+
+    @Test
+    void removeEdgeAddedInBatch() {
+        dagEdgeDao.addEdges(Arrays.asList(Pair.of(a, b), Pair.of(b, c), Pair.of(c, d), Pair.of(e, c)));
+
+        // the dependent rows are found by the entry, direct and exit edge ids assigned in the batch
+        dagEdgeDao.removeEdges(b, c);
+
+        assertEquals(Arrays.asList("a>b:0", "c>d:0", "e>c:0", "e>d:1"), findRows());
+    }
+
+    @Test
+    void rejectCycleInBatch() {
+        dagEdgeDao.addEdges(a, b);
+
+        assertThrows(IllegalArgumentException.class, () -> dagEdgeDao.addEdges(Arrays.asList(Pair.of(b, c), Pair.of(c, a))));
+        assertThrows(IllegalArgumentException.class, () -> dagEdgeDao.addEdges(Arrays.asList(Pair.of(c, d), Pair.of(c, d))));
+        assertThrows(IllegalArgumentException.class, () -> dagEdgeDao.addEdges(Collections.singletonList(Pair.of(a, b))));
+        assertEquals(Collections.singletonList("a>b:0"), findRows());
+    }
+
+    @Test
+    void rebuildOnlyTheDag() {
+        dagEdgeDao.addEdges(Arrays.asList(Pair.of(a, b), Pair.of(c, d)));
+        em.getEntityManager().createNativeQuery("insert into dag_edge (start_vertex_id, end_vertex_id, hops, dag_id) values (?1, ?2, 0, 'other')")
+                .setParameter(1, e.toString()).setParameter(2, a.toString()).executeUpdate();
+
+        assertEquals(3, dagEdgeDao.rebuild(Arrays.asList(Pair.of(a, b), Pair.of(b, c))));
+
+        assertEquals(Arrays.asList("a>b:0", "a>c:1", "b>c:0"), findRows());
+        assertEquals(Collections.singletonList(a.toString()), em.getEntityManager()
+                .createNativeQuery("select end_vertex_id from dag_edge where dag_id = 'other'").getResultList());
+    }
+
+    private UUID vertex(String name) {
+        UUID id = UUID.randomUUID();
+        names.put(id, name);
+        return id;
+    }
+
+    /**
+     * every row as start>end:hops in order, the implied rows refer to existing rows of the dag
+     */
+    private List<String> findRows() {
+        em.clear();
+        List<PartyDagEdge> rows = em.getEntityManager().createQuery("from PartyDagEdge where dagId = :dagId", PartyDagEdge.class)
+                .setParameter("dagId", PartyDagEdge.DAG_ID).getResultList();
+        Set<Long> ids = rows.stream().map(PartyDagEdge::getId).collect(Collectors.toSet());
+        for (PartyDagEdge row : rows) {
+            assertTrue(ids.containsAll(Arrays.asList(row.getEntryEdgeId(), row.getDirectEdgeId(), row.getExitEdgeId())), row.toString());
+            if (row.getHops() == 0) {
+                assertEquals(row.getId(), row.getDirectEdgeId(), row.toString());
+            }
+        }
+        return rows.stream().map(row -> names.get(row.getStartVertexId()) + ">" + names.get(row.getEndVertexId()) + ":" + row.getHops())
+                .sorted().collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,164 @@
+package graph;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * the labels of the index are checked against a BFS of the same edges
+ *
+ * @author csieflyman
+ */
+class DagIndexImplTest {
+
+    @Test
+    void isAncestor() {
+        // 1 -> 2 -> 4, 1 -> 3 -> 4 -> 5, 6 -> 7
+        DagIndexImpl<Integer> index = newIndex(Arrays.asList(Pair.of(1, 2), Pair.of(1, 3), Pair.of(2, 4), Pair.of(3, 4), Pair.of(4, 5),
+                Pair.of(6, 7)));
+
+        assertTrue(index.isAncestor(1, 5));
+        assertTrue(index.isAncestor(3, 4));
+        assertFalse(index.isAncestor(5, 1));
+        assertFalse(index.isAncestor(2, 3));
+        assertFalse(index.isAncestor(1, 7));
+        assertEquals(Integer.valueOf(3), index.distance(1, 5));
+        assertNull(index.distance(2, 3));
+        // maxHops counts edges like distance
+        assertEquals(new HashSet<>(Arrays.asList(2, 3)), index.findOutgoingVertices(1, 1));
+        assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)), index.findOutgoingVertices(1, 2));
+        assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)), index.findIncomingVertices(5, 2));
+        assertThrows(IllegalArgumentException.class, () -> index.findOutgoingVertices(1, 0));
+
+        Map<Pair<Integer, Integer>, Boolean> result = index.isAncestor(Arrays.asList(Pair.of(1, 4), Pair.of(4, 1), Pair.of(6, 7)));
+        assertEquals(3, result.size());
+        assertTrue(result.get(Pair.of(1, 4)));
+        assertFalse(result.get(Pair.of(4, 1)));
+        assertTrue(result.get(Pair.of(6, 7)));
+    }
+
+    @Test
+    void isAncestorAfterChanges() {
+        DagIndexImpl<Integer> index = newIndex(Arrays.asList(Pair.of(1, 2), Pair.of(2, 3), Pair.of(4, 5)));
+
+        index.addEdge(3, 4);
+        assertTrue(index.isAncestor(1, 5));
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4)), index.findIncomingVertices(5));
+
+        index.removeEdge(2, 3);
+        assertFalse(index.isAncestor(1, 5));
+        assertTrue(index.isAncestor(3, 5));
+        assertEquals(new HashSet<>(Arrays.asList(3, 4)), index.findIncomingVertices(5));
+
+        index.removeVertex(4);
+        assertFalse(index.isAncestor(3, 5));
+        assertTrue(index.findOutgoingVertices(3).isEmpty());
+    }
+
+    @Test
+    void isAncestorOfRandomDag() {
+        Random random = new Random(20261018);
+        int vertexCount = 200;
+        List<Pair<Integer, Integer>> edges = randomDag(random, vertexCount, 900);
+        DagIndexImpl<Integer> index = newIndex(edges);
+        assertSameReachability(index, edges, vertexCount);
+
+        // incremental changes keep the labels sound until they are rebuilt
+        List<Pair<Integer, Integer>> addedEdges = new ArrayList<>(randomDag(random, vertexCount, 200));
+        addedEdges.removeAll(edges);
+        index.addEdges(addedEdges);
+        edges.addAll(addedEdges);
+        List<Pair<Integer, Integer>> removedEdges = new ArrayList<>(edges.subList(0, 150));
+        index.removeEdges(removedEdges);
+        edges.removeAll(removedEdges);
+        assertSameReachability(index, edges, vertexCount);
+    }
+
+    @Test
+    void isAncestorAfterManyCommits() {
+        Random random = new Random(1018);
+        int vertexCount = 200;
+        List<Pair<Integer, Integer>> edges = randomDag(random, vertexCount, 600);
+        DagIndexImpl<Integer> index = newIndex(new ArrayList<>(edges));
+
+        // one change per commit, the changed rows are compacted several times
+        List<Pair<Integer, Integer>> candidates = randomDag(random, vertexCount, 900);
+        for (int i = 0; i < candidates.size(); i++) {
+            Pair<Integer, Integer> edge = candidates.get(i);
+            if (i % 3 == 2) {
+                index.removeEdge(edge.getLeft(), edge.getRight());
+                edges.remove(edge);
+            } else if (!edges.contains(edge)) {
+                index.addEdge(edge.getLeft(), edge.getRight());
+                edges.add(edge);
+            }
+            if (i % 100 == 99) {
+                int vertex = random.nextInt(vertexCount);
+                index.removeVertex(vertex);
+                edges.removeIf(e -> e.getLeft() == vertex || e.getRight() == vertex);
+            }
+        }
+        assertSameReachability(index, edges, vertexCount);
+        Map<Integer, List<Integer>> successors = new HashMap<>();
+        edges.forEach(edge -> successors.computeIfAbsent(edge.getLeft(), vertex -> new ArrayList<>()).add(edge.getRight()));
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            assertEquals(reachable(successors, vertex), index.findOutgoingVertices(vertex), String.valueOf(vertex));
+        }
+    }
+
+    private static void assertSameReachability(DagIndexImpl<Integer> index, List<Pair<Integer, Integer>> edges, int vertexCount) {
+        Map<Integer, List<Integer>> successors = new HashMap<>();
+        edges.forEach(edge -> successors.computeIfAbsent(edge.getLeft(), vertex -> new ArrayList<>()).add(edge.getRight()));
+        List<Pair<Integer, Integer>> pairs = new ArrayList<>();
+        Map<Pair<Integer, Integer>, Boolean> expected = new HashMap<>();
+        for (int start = 0; start < vertexCount; start++) {
+            Set<Integer> reachable = reachable(successors, start);
+            for (int end = 0; end < vertexCount; end++) {
+                if (start != end) {
+                    pairs.add(Pair.of(start, end));
+                    expected.put(Pair.of(start, end), reachable.contains(end));
+                }
+            }
+        }
+        assertEquals(expected, index.isAncestor(pairs));
+    }
+
+    private static Set<Integer> reachable(Map<Integer, List<Integer>> successors, int start) {
+        Set<Integer> visited = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>(successors.getOrDefault(start, Collections.emptyList()));
+        while (!stack.isEmpty()) {
+            int vertex = stack.pop();
+            if (visited.add(vertex)) {
+                stack.addAll(successors.getOrDefault(vertex, Collections.emptyList()));
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * edges go from a lower to a higher vertex, so there is no cycle
+     */
+    private static List<Pair<Integer, Integer>> randomDag(Random random, int vertexCount, int edgeCount) {
+        Set<Pair<Integer, Integer>> edges = new LinkedHashSet<>();
+        while (edges.size() < edgeCount) {
+            int start = random.nextInt(vertexCount - 1);
+            int end = start + 1 + random.nextInt(Math.min(20, vertexCount - start - 1));
+            edges.add(Pair.of(start, end));
+        }
+        return new ArrayList<>(edges);
+    }
+
+    private static DagIndexImpl<Integer> newIndex(List<Pair<Integer, Integer>> edges) {
+        DagIndexImpl<Integer> index = new DagIndexImpl<Integer>() {
+            @Override
+            protected List<Pair<Integer, Integer>> loadEdges() {
+                return edges;
+            }
+        };
+        index.reload();
+        return index;
+    }
+}
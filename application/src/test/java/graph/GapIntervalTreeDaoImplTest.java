@@ -0,0 +1,143 @@
+package graph;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackage;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * the trees are numbered contiguously as in the contiguous mode, then changed in the gap mode
+ *
+ * @author csieflyman
+ */
+@ExtendWith(SpringExtension.class)
+@DataJpaTest(properties = "party.tree.numbering=gap")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class GapIntervalTreeDaoImplTest {
+
+    @Configuration
+    @AutoConfigurationPackage
+    @Import(PartyGapIntervalTreeDaoImpl.class)
+    static class Config {
+    }
+
+    @Autowired
+    private PartyGapIntervalTreeDaoImpl intervalTreeDao;
+
+    @Autowired
+    private TestEntityManager em;
+
+    private final UUID r = UUID.randomUUID();
+    private final UUID a = UUID.randomUUID();
+    private final UUID b = UUID.randomUUID();
+    private final UUID c = UUID.randomUUID();
+
+    @Test
+    void moveIntoLeafWithoutGap() {
+        // R(1,8) with A(2,5) containing C(3,4), and B(6,7), B has no room for A
+        persistNode(r, null, 1, 8);
+        persistNode(a, r, 2, 5);
+        persistNode(c, a, 3, 4);
+        persistNode(b, r, 6, 7);
+
+        intervalTreeDao.move(b, a);
+
+        assertNested(r);
+        assertEquals(Arrays.asList(b, a, c), intervalTreeDao.getSubTree(r));
+        assertEquals(Arrays.asList(a, c), intervalTreeDao.getSubTree(b));
+        assertEquals(Arrays.asList(r, b, a), intervalTreeDao.getAncestors(c));
+        assertTrue(intervalTreeDao.isDescendant(b, c));
+        assertFalse(intervalTreeDao.isDescendant(a, b));
+    }
+
+    @Test
+    void moveRepeatedly() {
+        persistNode(r, null, 1, 8);
+        persistNode(a, r, 2, 5);
+        persistNode(c, a, 3, 4);
+        persistNode(b, r, 6, 7);
+
+        // R -> B -> A -> C, R -> (B -> A, C), R -> C -> B -> A, R -> (C -> B, A)
+        intervalTreeDao.move(b, a);
+        intervalTreeDao.move(r, c);
+        intervalTreeDao.move(c, b);
+        intervalTreeDao.move(r, a);
+
+        assertNested(r);
+        assertEquals(Arrays.asList(r, c), intervalTreeDao.getAncestors(b));
+        assertEquals(Collections.singletonList(b), intervalTreeDao.getSubTree(c));
+        assertEquals(Collections.singletonList(r), intervalTreeDao.getAncestors(a));
+    }
+
+    @Test
+    void addChildTreesUnderLeaf() {
+        persistNode(r, null, 1, 8);
+        persistNode(a, r, 2, 5);
+        persistNode(c, a, 3, 4);
+        persistNode(b, r, 6, 7);
+        UUID x = UUID.randomUUID();
+        UUID y = UUID.randomUUID();
+        UUID z = UUID.randomUUID();
+
+        Map<UUID, List<UUID>> childrenMap = new HashMap<>();
+        childrenMap.put(b, Arrays.asList(x, z));
+        childrenMap.put(x, Collections.singletonList(y));
+        assertEquals(3, intervalTreeDao.addChildTrees(b, childrenMap));
+
+        assertNested(r);
+        assertEquals(Arrays.asList(a, c, b, x, y, z), intervalTreeDao.getSubTree(r));
+        assertEquals(Arrays.asList(r, b, x), intervalTreeDao.getAncestors(y));
+    }
+
+    private void persistNode(UUID nodeId, UUID parentNodeId, long low, long high) {
+        PartyIntervalTreeNode node = new PartyIntervalTreeNode();
+        node.setNodeId(nodeId);
+        node.setParentNodeId(parentNodeId);
+        node.setLow(low);
+        node.setHigh(high);
+        node.setDepth(parentNodeId == null ? 0 : findNode(parentNodeId).getDepth() + 1);
+        node.setTreeId(r.toString());
+        em.persistAndFlush(node);
+    }
+
+    private PartyIntervalTreeNode findNode(UUID nodeId) {
+        em.clear();
+        return em.getEntityManager().createQuery("from PartyIntervalTreeNode where nodeId = :nodeId", PartyIntervalTreeNode.class)
+                .setParameter("nodeId", nodeId).getSingleResult();
+    }
+
+    /**
+     * every node lies strictly within its parent, one level below it, and the siblings do not overlap
+     */
+    private void assertNested(UUID rootNodeId) {
+        em.clear();
+        List<PartyIntervalTreeNode> nodes = em.getEntityManager()
+                .createQuery("from PartyIntervalTreeNode where treeId = :treeId order by low", PartyIntervalTreeNode.class)
+                .setParameter("treeId", rootNodeId.toString()).getResultList();
+        Map<UUID, PartyIntervalTreeNode> nodeMap = new HashMap<>();
+        nodes.forEach(node -> nodeMap.put(node.getNodeId(), node));
+        Map<UUID, Long> lastHighs = new HashMap<>();
+        for (PartyIntervalTreeNode node : nodes) {
+            assertTrue(node.getLow() < node.getHigh(), node.toString());
+            if (node.getParentNodeId() == null) {
+                assertEquals(rootNodeId, node.getNodeId());
+                continue;
+            }
+            PartyIntervalTreeNode parent = nodeMap.get(node.getParentNodeId());
+            assertTrue(parent.getLow() < node.getLow() && node.getHigh() < parent.getHigh(), node + " is not within " + parent);
+            assertEquals(parent.getDepth() + 1, (int) node.getDepth());
+            Long lastHigh = lastHighs.put(parent.getNodeId(), node.getHigh());
+            assertTrue(lastHigh == null || lastHigh < node.getLow(), node + " overlaps its previous sibling");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package graph;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackage;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import party.dto.PartyCreateForm;
+import party.model.PartyType;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * the nodes are read back through the converters of base.util.BeanUtils, a root has no parent
+ *
+ * @author csieflyman
+ */
+@ExtendWith(SpringExtension.class)
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class IntervalTreeDaoImplTest {
+
+    @Configuration
+    @AutoConfigurationPackage
+    @Import(PartyIntervalTreeDaoImpl.class)
+    static class Config {
+    }
+
+    @Autowired
+    private PartyIntervalTreeDaoImpl intervalTreeDao;
+
+    @Autowired
+    private TestEntityManager em;
+
+    private final UUID r = UUID.randomUUID();
+    private final UUID a = UUID.randomUUID();
+    private final UUID b = UUID.randomUUID();
+    private final UUID c = UUID.randomUUID();
+
+    @BeforeAll
+    static void convertForm() {
+        // registers the converters of base.util.BeanUtils as the services do
+        PartyCreateForm form = new PartyCreateForm();
+        form.setType(PartyType.OU);
+        form.setIdentity("root");
+        form.toModel();
+    }
+
+    @Test
+    void addChildUnderRoot() {
+        intervalTreeDao.addChild(r, a);
+        intervalTreeDao.addChild(r, b);
+
+        assertEquals(Arrays.asList(a, b), intervalTreeDao.getSubTree(r));
+        assertEquals(Collections.singletonList(r), intervalTreeDao.getAncestors(b));
+        assertTrue(intervalTreeDao.isDescendant(r, b));
+    }
+
+    @Test
+    void deleteRoot() {
+        intervalTreeDao.addChild(r, a);
+
+        intervalTreeDao.delete(r);
+
+        assertEquals(Collections.emptyList(), intervalTreeDao.getAncestorPath(a));
+        assertEquals(Collections.emptyList(), intervalTreeDao.getSubTree(r));
+    }
+
+    @Test
+    void renumberGapNumberedTree() {
+        // numbered in the gap mode, R(1,100) with A(10,40) containing C(20,30), and B(50,60)
+        persistNode(r, null, 0, 1, 100);
+        persistNode(a, r, 1, 10, 40);
+        persistNode(c, a, 2, 20, 30);
+        persistNode(b, r, 1, 50, 60);
+        // a contiguous tree is left as it is
+        UUID x = UUID.randomUUID();
+        intervalTreeDao.addChild(x, UUID.randomUUID());
+
+        assertEquals(1, intervalTreeDao.renumberTrees());
+
+        em.clear();
+        List<PartyIntervalTreeNode> nodes = em.getEntityManager()
+                .createQuery("from PartyIntervalTreeNode where treeId = :treeId order by low", PartyIntervalTreeNode.class)
+                .setParameter("treeId", r.toString()).getResultList();
+        assertEquals(Arrays.asList(r, a, c, b), nodes.stream().map(PartyIntervalTreeNode::getNodeId).collect(Collectors.toList()));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 6L), nodes.stream().map(PartyIntervalTreeNode::getLow).collect(Collectors.toList()));
+        assertEquals(Arrays.asList(8L, 5L, 4L, 7L), nodes.stream().map(PartyIntervalTreeNode::getHigh).collect(Collectors.toList()));
+        assertEquals(0, intervalTreeDao.renumberTrees());
+
+        // the leaves are removed with their parents as in a tree numbered contiguously
+        intervalTreeDao.removeChild(a, c);
+        intervalTreeDao.removeChild(r, b);
+        assertEquals(Collections.singletonList(a), intervalTreeDao.getSubTree(r));
+        assertEquals(Collections.emptyList(), intervalTreeDao.getAncestorPath(b));
+    }
+
+    private void persistNode(UUID nodeId, UUID parentNodeId, int depth, long low, long high) {
+        PartyIntervalTreeNode node = new PartyIntervalTreeNode();
+        node.setNodeId(nodeId);
+        node.setParentNodeId(parentNodeId);
+        node.setLow(low);
+        node.setHigh(high);
+        node.setDepth(depth);
+        node.setTreeId(r.toString());
+        em.persistAndFlush(node);
+    }
+}
@@ -0,0 +1,90 @@
+package graph;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * each thread runs as one transaction, its locks are released when the transaction completes
+ *
+ * @author csieflyman
+ */
+class StripedLocksTest {
+
+    private final StripedLocks locks = new StripedLocks("test", null, 100);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void lockFewKeysShared() throws Exception {
+        beginTransaction();
+        try {
+            locks.lock(Collections.singleton("a"));
+
+            // other keys are locked by the other transaction, the key itself times out
+            assertNull(inOtherTransaction(() -> locks.lock(Collections.singleton("b"))));
+            assertTrue(inOtherTransaction(() -> locks.lock(Collections.singleton("a"))) instanceof CannotAcquireLockException);
+            assertTrue(inOtherTransaction(locks::lockAll) instanceof CannotAcquireLockException);
+        } finally {
+            completeTransaction();
+        }
+        assertNull(inOtherTransaction(locks::lockAll));
+    }
+
+    @Test
+    void lockManyKeysExclusively() throws Exception {
+        beginTransaction();
+        try {
+            locks.lock(keys(0, 1000));
+
+            // any key outside of the locked ones waits for the coarse lock
+            assertTrue(inOtherTransaction(() -> locks.lock(Collections.singleton("other"))) instanceof CannotAcquireLockException);
+            // keys locked again within the transaction are covered by the coarse lock
+            locks.lock(keys(500, 2000));
+        } finally {
+            completeTransaction();
+        }
+        assertNull(inOtherTransaction(() -> locks.lock(Collections.singleton("other"))));
+    }
+
+    private static Collection<String> keys(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> "key" + i).collect(Collectors.toList());
+    }
+
+    private Exception inOtherTransaction(Runnable runnable) throws ExecutionException, InterruptedException {
+        return executor.submit(() -> {
+            beginTransaction();
+            try {
+                runnable.run();
+                return null;
+            } catch (Exception e) {
+                return e;
+            } finally {
+                completeTransaction();
+            }
+        }).get();
+    }
+
+    private static void beginTransaction() {
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    private static void completeTransaction() {
+        TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+}
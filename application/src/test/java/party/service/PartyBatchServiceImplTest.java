@@ -0,0 +1,172 @@
+package party.service;
+
+import base.dto.response.BatchResponse;
+import graph.DagEdgeDao;
+import graph.IntervalTreeDao;
+import graph.PartyIntervalTreeNode;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackage;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.validation.beanvalidation.LocalValidatorFactoryBean;
+import party.dao.PartyDao;
+import party.dto.PartyImportForm;
+import party.model.Party;
+import party.model.PartyType;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * the import writes the parties, the relations, the closure rows and the organization trees in bulk
+ *
+ * @author csieflyman
+ */
+@ExtendWith(SpringExtension.class)
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class PartyBatchServiceImplTest {
+
+    @Configuration
+    @AutoConfigurationPackage
+    @EntityScan(basePackageClasses = {Party.class, PartyIntervalTreeNode.class})
+    @ComponentScan(basePackageClasses = {PartyDao.class, DagEdgeDao.class})
+    @Import(PartyBatchServiceImpl.class)
+    static class Config {
+
+        @Bean
+        public LocalValidatorFactoryBean validator() {
+            return new LocalValidatorFactoryBean();
+        }
+    }
+
+    @Autowired
+    private PartyBatchService partyBatchService;
+
+    @Autowired
+    @Qualifier("partyDao")
+    private PartyDao<Party> partyDao;
+
+    @Autowired
+    @Qualifier("partyDagEdgeDao")
+    private DagEdgeDao<UUID> dagEdgeDao;
+
+    @Autowired
+    @Qualifier("partyIntervalTreeDao")
+    private IntervalTreeDao<UUID> intervalTreeDao;
+
+    @Autowired
+    private TestEntityManager em;
+
+    @Test
+    void importUnderExistingOrganizations() {
+        assertFalse(partyBatchService.importParties(Arrays.asList(
+                row(PartyType.OU, "root"),
+                row(PartyType.OU, "sales", "ou/root")).iterator()).hasFailure());
+
+        BatchResponse response = partyBatchService.importParties(Arrays.asList(
+                row(PartyType.USER, "alice", "ou/sales"),
+                row(PartyType.OU, "rd", "ou/root"),
+                row(PartyType.USER, "bob", "ou/rd"),
+                row(PartyType.GROUP, "staff"),
+                row(PartyType.USER, "carol", "ou/sales;group/staff")).iterator());
+
+        assertFalse(response.hasFailure());
+        Map<String, UUID> ids = findIds(PartyType.OU, "root", "sales", "rd");
+        ids.putAll(findIds(PartyType.USER, "alice", "bob", "carol"));
+        ids.putAll(findIds(PartyType.GROUP, "staff"));
+        // the new children follow the existing ones in the tree
+        assertEquals(toIds(ids, "sales", "alice", "carol", "rd", "bob"), intervalTreeDao.getSubTree(ids.get("root")));
+        assertEquals(toIds(ids, "root", "rd"), intervalTreeDao.getAncestors(ids.get("bob")));
+        assertContiguous(ids.get("root"), 6);
+        assertEquals(new HashSet<>(toIds(ids, "sales", "alice", "carol", "rd", "bob")), dagEdgeDao.findOutgoingVertices(ids.get("root")));
+        assertEquals(new HashSet<>(toIds(ids, "root", "sales", "staff")), dagEdgeDao.findIncomingVertices(ids.get("carol")));
+    }
+
+    @Test
+    void importInChunks() {
+        List<PartyImportForm> rows = new ArrayList<>();
+        rows.add(row(PartyType.OU, "root"));
+        IntStream.range(1, 1500).forEach(i -> rows.add(row(PartyType.USER, "user" + i, "ou/root")));
+        // duplicated with a row of the first chunk
+        rows.add(row(PartyType.USER, "user1", "ou/root"));
+
+        BatchResponse response = partyBatchService.importParties(rows.iterator());
+
+        assertTrue(response.isFailureObject("1501"));
+        assertFalse(response.isFailureObject("1500"));
+        UUID rootId = findIds(PartyType.OU, "root").get("root");
+        assertEquals(1499, intervalTreeDao.getSubTree(rootId).size());
+        assertEquals(1499, dagEdgeDao.findOutgoingVertices(rootId).size());
+        assertContiguous(rootId, 1500);
+    }
+
+    @Test
+    void failRowsAlone() {
+        BatchResponse response = partyBatchService.importParties(Arrays.asList(
+                row(PartyType.OU, "root"),
+                row(PartyType.OU, "sales", "ou/missing"),
+                row(PartyType.USER, "alice", "ou/sales"),
+                row(PartyType.USER, "bob", "user/alice"),
+                row(PartyType.USER, "carol", "ou/root")).iterator());
+
+        assertFalse(response.isFailureObject("1"));
+        assertTrue(response.isFailureObject("2"));
+        assertTrue(response.isFailureObject("3"));
+        assertTrue(response.isFailureObject("4"));
+        assertFalse(response.isFailureObject("5"));
+        Map<String, UUID> ids = findIds(PartyType.OU, "root", "sales");
+        ids.putAll(findIds(PartyType.USER, "alice", "bob", "carol"));
+        assertEquals(new HashSet<>(Arrays.asList("root", "carol")), ids.keySet());
+        assertEquals(toIds(ids, "carol"), intervalTreeDao.getSubTree(ids.get("root")));
+    }
+
+    private static PartyImportForm row(PartyType type, String identity, String... parents) {
+        PartyImportForm form = new PartyImportForm();
+        form.setType(type);
+        form.setIdentity(identity);
+        form.setName(identity);
+        form.setParents(Arrays.asList(parents));
+        return form;
+    }
+
+    private Map<String, UUID> findIds(PartyType type, String... identities) {
+        return partyDao.findIdsByIdentities(Arrays.stream(identities).map(identity -> Pair.of(type, identity)).collect(Collectors.toList()))
+                .entrySet().stream().collect(Collectors.toMap(entry -> entry.getKey().getRight(), Map.Entry::getValue));
+    }
+
+    private static List<UUID> toIds(Map<String, UUID> ids, String... identities) {
+        return Arrays.stream(identities).map(ids::get).collect(Collectors.toList());
+    }
+
+    /**
+     * the numbers of the tree are 1 to 2 * nodeCount without a hole
+     */
+    private void assertContiguous(UUID rootId, int nodeCount) {
+        em.clear();
+        List<PartyIntervalTreeNode> nodes = em.getEntityManager().createQuery("from PartyIntervalTreeNode where treeId = :treeId", PartyIntervalTreeNode.class)
+                .setParameter("treeId", rootId.toString()).getResultList();
+        assertEquals(nodeCount, nodes.size());
+        Set<Long> numbers = new TreeSet<>();
+        nodes.forEach(node -> {
+            numbers.add(node.getLow());
+            numbers.add(node.getHigh());
+        });
+        assertEquals(LongStream.rangeClosed(1, 2 * nodeCount).boxed().collect(Collectors.toSet()), numbers);
+    }
+}
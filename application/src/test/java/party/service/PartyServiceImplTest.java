@@ -0,0 +1,178 @@
+package party.service;
+
+import base.dao.DeadlockRetryAspect;
+import graph.DagEdgeDao;
+import graph.PartyDagEdge;
+import graph.PartyIntervalTreeNode;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Aspect;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackage;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import party.dao.PartyDao;
+import party.model.Organization;
+import party.model.Party;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * the first attempt fails with a deadlock after the party is written, the retry must see the argument as it was passed.
+ * the attempts run in their own transactions, so the test doesn't start one
+ *
+ * @author csieflyman
+ */
+@ExtendWith(SpringExtension.class)
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class PartyServiceImplTest {
+
+    @Configuration
+    @AutoConfigurationPackage
+    @EnableAspectJAutoProxy(proxyTargetClass = true)
+    @EntityScan(basePackageClasses = {Party.class, PartyIntervalTreeNode.class})
+    @ComponentScan(basePackageClasses = {PartyDao.class, DagEdgeDao.class})
+    @Import({PartyServiceImpl.class, DeadlockRetryAspect.class, DeadlockOnce.class})
+    static class Config {
+    }
+
+    /**
+     * fails the next calls of the dao as a deadlock detected by the database would
+     */
+    @Aspect
+    static class DeadlockOnce {
+
+        private static final AtomicInteger failures = new AtomicInteger();
+
+        @AfterReturning("(execution(* base.dao.GenericDao+.create(..)) || execution(* base.dao.GenericDao+.update(..))) && target(party.dao.PartyDao)")
+        public void fail() {
+            if (failures.getAndUpdate(count -> Math.max(count - 1, 0)) > 0) {
+                throw new CannotAcquireLockException("Deadlock found when trying to get lock");
+            }
+        }
+    }
+
+    @Autowired
+    @Qualifier("partyService")
+    private PartyService<Party> partyService;
+
+    @Autowired
+    @Qualifier("partyDagEdgeDao")
+    private DagEdgeDao<UUID> dagEdgeDao;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final List<Party> parties = new ArrayList<>();
+
+    @AfterEach
+    void deleteParties() {
+        DeadlockOnce.failures.set(0);
+        parties.forEach(party -> partyService.delete(party));
+    }
+
+    @Test
+    void createAgainAfterDeadlock() {
+        Party parent = create("retry-ou1");
+        Party child = newOrganization("retry-ou2");
+        child.setParents(new HashSet<>(Collections.singletonList(parent)));
+
+        DeadlockOnce.failures.set(1);
+        Party newParty = partyService.create(child);
+        parties.add(0, newParty);
+
+        assertEquals(0, DeadlockOnce.failures.get());
+        assertEquals(child.getId(), newParty.getId());
+        assertEquals("retry-ou2", partyService.getById(newParty.getId()).getIdentity());
+        assertTrue(partyService.isAncestor(parent.getId(), newParty.getId()));
+    }
+
+    @Test
+    void updateAgainAfterDeadlock() {
+        Party parent = create("retry-ou3");
+        Party child = newOrganization("retry-ou4");
+        child.setParents(new HashSet<>(Collections.singletonList(parent)));
+        child = partyService.create(child);
+        parties.add(0, child);
+
+        // renamed only, the relations are not changed
+        Party form = newOrganization("retry-ou4");
+        form.setId(child.getId());
+        form.setVersion(partyService.getById(child.getId()).getVersion());
+        form.setName("renamed");
+        form.setParents(null);
+        form.setChildren(null);
+        DeadlockOnce.failures.set(1);
+        partyService.update(form);
+
+        assertEquals(0, DeadlockOnce.failures.get());
+        assertEquals("renamed", partyService.getById(child.getId()).getName());
+        assertTrue(partyService.isAncestor(parent.getId(), child.getId()));
+    }
+
+    @Test
+    void rebuildStaleClosure() {
+        Party a = create("stale-ou1");
+        Party b = newOrganization("stale-ou2");
+        b.setParents(new HashSet<>(Collections.singletonList(a)));
+        b = partyService.create(b);
+        parties.add(0, b);
+        Party c = newOrganization("stale-ou3");
+        c.setParents(new HashSet<>(Collections.singletonList(b)));
+        c = partyService.create(c);
+        parties.add(0, c);
+        partyService.rebuildDagIfStale();
+        assertEquals(0, partyService.rebuildDagIfStale());
+
+        // the path mode was active since this table was filled, a relation of c was removed and added back in dag_path only
+        jdbcTemplate.update("delete from dag_edge where start_vertex_id = ? and end_vertex_id = ? and dag_id = ?", a.getId().toString(),
+                c.getId().toString(), PartyDagEdge.DAG_ID);
+        jdbcTemplate.update("update dag_closure set closure_table = 'dag_path' where dag_id = ?", PartyDagEdge.DAG_ID);
+        assertEquals(Collections.singleton(b.getId()), findOutgoingVertices(a.getId()));
+
+        assertTrue(partyService.rebuildDagIfStale() > 0);
+        assertEquals(new HashSet<>(Arrays.asList(b.getId(), c.getId())), findOutgoingVertices(a.getId()));
+        assertEquals(0, partyService.rebuildDagIfStale());
+    }
+
+    // the rows of the closure table are read as a stream, which needs a transaction
+    private Set<UUID> findOutgoingVertices(UUID id) {
+        return new TransactionTemplate(transactionManager).execute(status -> dagEdgeDao.findOutgoingVertices(id));
+    }
+
+    private Party create(String identity) {
+        Party party = partyService.create(newOrganization(identity));
+        parties.add(0, party);
+        return party;
+    }
+
+    private static Party newOrganization(String identity) {
+        Organization organization = new Organization(identity);
+        organization.setId(UUID.randomUUID());
+        organization.setName(identity);
+        return organization;
+    }
+}
@@ -0,0 +1,66 @@
+CREATE TABLE IF NOT EXISTS party (
+    id VARCHAR(36) NOT NULL,
+    version BIGINT NOT NULL,
+    `identity` VARCHAR(30) NOT NULL,
+    type VARCHAR(20) NOT NULL,
+    name VARCHAR(30) NOT NULL,
+    email VARCHAR(80) NULL,
+    enabled BIT(1) NOT NULL,
+    created_at TIMESTAMP NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (id),
+    UNIQUE (type, `identity`)
+);
+
+CREATE TABLE IF NOT EXISTS party_rel (
+    parent_id VARCHAR(36) NOT NULL,
+    child_id VARCHAR(36) NOT NULL,
+    PRIMARY KEY (parent_id, child_id)
+);
+
+CREATE TABLE IF NOT EXISTS dag_edge (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    entry_edge_id BIGINT,
+    direct_edge_id BIGINT,
+    exit_edge_id BIGINT,
+    start_vertex_id VARCHAR(36) NOT NULL,
+    end_vertex_id VARCHAR(36) NOT NULL,
+    hops INT NOT NULL,
+    dag_id VARCHAR(150) NOT NULL,
+    PRIMARY KEY (id)
+);
+
+CREATE INDEX IF NOT EXISTS dag_edge_start_hops_idx ON dag_edge (dag_id, start_vertex_id, hops);
+CREATE INDEX IF NOT EXISTS dag_edge_end_hops_idx ON dag_edge (dag_id, end_vertex_id, hops);
+
+CREATE TABLE IF NOT EXISTS dag_path (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    start_vertex_id VARCHAR(36) NOT NULL,
+    end_vertex_id VARCHAR(36) NOT NULL,
+    path_count BIGINT NOT NULL,
+    min_hops INT NOT NULL,
+    dag_id VARCHAR(150) NOT NULL,
+    PRIMARY KEY (id),
+    UNIQUE (dag_id, start_vertex_id, end_vertex_id)
+);
+
+CREATE TABLE IF NOT EXISTS dag_closure (
+    dag_id VARCHAR(150) NOT NULL,
+    closure_table VARCHAR(64) NOT NULL,
+    PRIMARY KEY (dag_id)
+);
+
+CREATE TABLE IF NOT EXISTS interval_tree (
+    id BIGINT NOT NULL AUTO_INCREMENT,
+    node_id VARCHAR(36) NOT NULL,
+    parent_node_id VARCHAR(36) NULL,
+    low BIGINT NOT NULL,
+    high BIGINT NOT NULL,
+    depth INT NOT NULL DEFAULT 0,
+    tree_id VARCHAR(50) NOT NULL,
+    tree_type VARCHAR(50) NOT NULL,
+    PRIMARY KEY (id),
+    UNIQUE (node_id, tree_type)
+);
+
+CREATE INDEX IF NOT EXISTS interval_tree_range_idx ON interval_tree (tree_type, tree_id, low, high);
@@ -5,14 +5,19 @@ import base.model.Identifiable;
 import base.util.query.JPAUtils;
 import base.util.query.Junction;
 import base.util.query.Query;
+import com.google.common.collect.ImmutableSet;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.*;
 import javax.persistence.criteria.*;
+import javax.persistence.metamodel.EntityType;
 import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author csieflyman
@@ -25,7 +30,9 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
     protected Class<T> clazz;
 
     public AbstractJPADaoImpl() {
-        clazz = (Class<T>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
+        Type type = ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[0];
+        // a generic dao, e.g. PartyDaoImpl<T extends Party>, is a dao of the bound entity
+        clazz = (Class<T>) (type instanceof TypeVariable ? ((TypeVariable<?>) type).getBounds()[0] : type);
     }
 
     // can't inject EntityManager by constructor https://github.com/spring-projects/spring-framework/issues/15076
@@ -45,6 +52,11 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
         return clazz.getSimpleName();
     }
 
+    protected String getTableName() {
+        Table table = clazz.getAnnotation(Table.class);
+        return table != null && !table.name().isEmpty() ? table.name() : getEntityName();
+    }
+
     @Override
     public T create(T entity) {
         em.persist(entity);
@@ -65,8 +77,10 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
     public int executeUpdate(Map<String, Object> valueMap, Junction junction) {
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaUpdate<T> updateQuery = cb.createCriteriaUpdate(clazz);
+        // the root is null until from() is called
+        Root<T> root = updateQuery.from(clazz);
         valueMap.forEach(updateQuery::set);
-        updateQuery.where(JPAUtils.toJPAPredicate(cb, updateQuery.getRoot(), junction));
+        updateQuery.where(JPAUtils.toJPAPredicate(cb, root, junction));
         return em.createQuery(updateQuery).executeUpdate();
     }
 
@@ -74,7 +88,8 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
     public int executeDelete(Junction junction) {
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaDelete<T> deleteQuery = cb.createCriteriaDelete(clazz);
-        deleteQuery.where(JPAUtils.toJPAPredicate(cb, deleteQuery.getRoot(), junction));
+        Root<T> root = deleteQuery.from(clazz);
+        deleteQuery.where(JPAUtils.toJPAPredicate(cb, root, junction));
         return em.createQuery(deleteQuery).executeUpdate();
     }
 
@@ -89,8 +104,7 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
         CriteriaQuery<Tuple> jpaQuery = JPAUtils.toJpaQuery(query, cb, clazz);
         try {
             Tuple tuple = em.createQuery(jpaQuery).getSingleResult();
-            Map<String, Object> map = tuple.getElements().stream().collect(Collectors.toMap(TupleElement::getAlias, tuple::get));
-            return Optional.of(JPAUtils.toEntity(clazz, Arrays.asList(map)).get(0));
+            return Optional.of(JPAUtils.toEntity(clazz, Arrays.asList(toMap(tuple))).get(0));
         } catch (NoResultException e) {
             return Optional.empty();
         }
@@ -106,8 +120,7 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
             typedQuery.setMaxResults(query.getPageSize());
         }
         List<Tuple> tuples = typedQuery.getResultList();
-        List<Map<String, Object>> results = tuples.stream().map(tuple -> tuple.getElements().stream()
-                .collect(Collectors.toMap(TupleElement::getAlias, te -> tuple.get(te.getAlias())))).collect(Collectors.toList());
+        List<Map<String, Object>> results = tuples.stream().map(AbstractJPADaoImpl::toMap).collect(Collectors.toList());
         List<T> entities = JPAUtils.toEntity(clazz, results);
         log.debug("entities size = {}", entities.size());
         return entities;
@@ -119,7 +132,7 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
         CriteriaQuery<Long> countQuery = cb.createQuery(Long.class);
         Root<T> root = countQuery.from(clazz);
         countQuery.select(cb.count(root));
-        countQuery.where(JPAUtils.toJPAPredicate(cb, root, query.where()));
+        countQuery.where(JPAUtils.toJPAPredicate(cb, root, query.getJunction()));
         Long count = em.createQuery(countQuery).getSingleResult();
         log.debug("entities size = {}", count);
         return count;
@@ -127,7 +140,31 @@ public abstract class AbstractJPADaoImpl<T extends Identifiable<ID>, ID extends
 
     @Override
     public Set<ID> findIds(Query query) {
-        query.fetchProperties(JPAUtils.getIdPropertyName(clazz));
-        return find(query).stream().map(Identifiable::getId).collect(Collectors.toCollection(LinkedHashSet::new));
+        EntityType<T> entityType = em.getMetamodel().entity(clazz);
+        return findPropertyValues(query, entityType.getId(entityType.getIdType().getJavaType()).getName());
+    }
+
+    @Override
+    public <V> Set<V> findPropertyValues(Query query, String property) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        TypedQuery<Object> typedQuery = em.createQuery(JPAUtils.toJpaQuery(query, cb, clazz, property));
+        if(query.isPagingQuery()) {
+            typedQuery.setFirstResult((query.getPageNo() - 1) * query.getPageSize());
+            typedQuery.setMaxResults(query.getPageSize());
+        }
+        // single column without entity materialization
+        Set<V> values;
+        try (Stream<Object> stream = typedQuery.getResultStream()) {
+            values = stream.map(value -> (V) value).collect(ImmutableSet.toImmutableSet());
+        }
+        log.debug("values size = {}", values.size());
+        return values;
+    }
+
+    // null column values are kept, Collectors.toMap doesn't accept them
+    private static Map<String, Object> toMap(Tuple tuple) {
+        Map<String, Object> map = new HashMap<>();
+        tuple.getElements().forEach(te -> map.put(te.getAlias(), tuple.get(te)));
+        return map;
     }
-}
\ No newline at end of file
+}
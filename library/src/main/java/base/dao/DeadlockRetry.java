@@ -0,0 +1,22 @@
+package base.dao;
+
+import java.lang.annotation.*;
+
+/**
+ * retry the method when it fails with ConcurrencyFailureException (deadlock or lock timeout).
+ * the method must start the transaction, a retry within an outer transaction is not possible because it is already rolled back
+ *
+ * @author csieflyman
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface DeadlockRetry {
+
+    int maxAttempts() default 3;
+
+    /**
+     * the n-th retry waits n times backoff plus a random jitter up to backoff
+     */
+    long backoffMillis() default 50;
+}
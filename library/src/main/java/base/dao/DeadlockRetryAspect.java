@@ -0,0 +1,53 @@
+package base.dao;
+
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * runs outside of the transaction interceptor, so each attempt is a new transaction.
+ * the retries are counted as deadlock.retry tagged by the method
+ *
+ * @author csieflyman
+ */
+@Slf4j
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class DeadlockRetryAspect {
+
+    // the annotation isn't bound by the pointcut, a bridge method of a generic service, e.g. create(Object) of PartyServiceImpl<T>, can't bind it
+    @Around("@annotation(base.dao.DeadlockRetry)")
+    public Object retry(ProceedingJoinPoint joinPoint) throws Throwable {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return joinPoint.proceed();
+        }
+
+        DeadlockRetry deadlockRetry = AnnotationUtils.findAnnotation(((MethodSignature) joinPoint.getSignature()).getMethod(), DeadlockRetry.class);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return joinPoint.proceed();
+            } catch (ConcurrencyFailureException e) {
+                if (attempt >= deadlockRetry.maxAttempts()) {
+                    throw e;
+                }
+                long backoffMillis = deadlockRetry.backoffMillis() * attempt + ThreadLocalRandom.current().nextLong(deadlockRetry.backoffMillis() + 1);
+                Metrics.counter("deadlock.retry", "method", joinPoint.getSignature().toShortString()).increment();
+                log.warn("retry {} in {} ms after attempt {}: {}", joinPoint.getSignature().toShortString(), backoffMillis, attempt, e.getMessage());
+                Thread.sleep(backoffMillis);
+            }
+        }
+    }
+}
@@ -33,4 +33,6 @@ public interface GenericDao<T extends Identifiable<ID>, ID> {
     long findSize(Query query);
 
     Set<ID> findIds(Query query);
+
+    <V> Set<V> findPropertyValues(Query query, String property);
 }
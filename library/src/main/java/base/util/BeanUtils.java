@@ -117,7 +117,10 @@ public class BeanUtils {
 
         @Override
         public <T> T convert(Class<T> type, Object value) {
-            if(value instanceof UUID) {
+            if(value == null) {
+                return null;
+            }
+            else if(value instanceof UUID) {
                 return (T) value;
             }
             else if(value instanceof String) {
@@ -0,0 +1,73 @@
+package base.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * @author csieflyman
+ */
+@Slf4j
+public class TransactionUtils {
+
+    private TransactionUtils() {
+
+    }
+
+    /**
+     * 將變更收集到綁定目前 transaction 的 buffer，commit 後只 flush 一次；沒有 transaction 時立即 flush
+     */
+    public static <T> void afterCommit(Object key, Supplier<T> bufferSupplier, Consumer<T> collector, Consumer<T> flusher) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            T buffer = bufferSupplier.get();
+            collector.accept(buffer);
+            flusher.accept(buffer);
+            return;
+        }
+
+        T buffer = (T) TransactionSynchronizationManager.getResource(key);
+        if (buffer == null) {
+            T newBuffer = bufferSupplier.get();
+            TransactionSynchronizationManager.bindResource(key, newBuffer);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    try {
+                        flusher.accept(newBuffer);
+                    } catch (Throwable e) {
+                        log.error("fail to flush buffer of " + key + " after commit", e);
+                    }
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(key);
+                }
+            });
+            buffer = newBuffer;
+        }
+        collector.accept(buffer);
+    }
+
+    /**
+     * 在目前 transaction rollback 後執行，包含 commit 失敗的情況；沒有 transaction 時不執行
+     */
+    public static void afterRollback(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_ROLLED_BACK) {
+                    action.run();
+                }
+            }
+        });
+    }
+}
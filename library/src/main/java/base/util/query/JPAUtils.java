@@ -8,6 +8,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
 
 import javax.persistence.*;
 import javax.persistence.criteria.*;
@@ -30,7 +31,7 @@ public class JPAUtils {
 
     public static String buildNativeSql(String tableAlias, Class rootClass, Query query, String fromStatement) {
         return buildSelectClause(tableAlias, rootClass, query) + " from " + fromStatement +
-                " " + buildWhereClause(tableAlias, query.where()) +
+                " " + buildWhereClause(tableAlias, query.getJunction()) +
                 " " + buildOrderByClause(tableAlias, query.getOrderByList());
     }
 
@@ -117,11 +118,11 @@ public class JPAUtils {
     }
 
     public static Set<String> getPropertyNames(Class clazz) {
-        return Stream.of(clazz.getFields()).filter(JPAUtils::isColumn).map(Field::getName).collect(Collectors.toSet());
+        return Stream.of(FieldUtils.getAllFields(clazz)).filter(JPAUtils::isColumn).map(Field::getName).collect(Collectors.toSet());
     }
 
     public static String getIdPropertyName(Class clazz) {
-        return Stream.of(clazz.getFields()).filter(JPAUtils::isIdColumn).map(Field::getName).findFirst().orElseThrow(() -> new InvalidEntityException("id isn't defined"));
+        return Stream.of(FieldUtils.getAllFields(clazz)).filter(JPAUtils::isIdColumn).map(Field::getName).findFirst().orElseThrow(() -> new InvalidEntityException("id isn't defined"));
     }
 
     public static <T> CriteriaQuery<Tuple> toJpaQuery(Query query, CriteriaBuilder cb, Class<T> clazz) {
@@ -138,7 +139,7 @@ public class JPAUtils {
             jpaQuery.multiselect(query.getFetchRelations().stream().map(r -> (Selection<?>)toJoin(root, r).alias(r)).collect(Collectors.toList()));
         }
 
-        jpaQuery.where(toJPAPredicate(cb, root, query.where()));
+        jpaQuery.where(toJPAPredicate(cb, root, query.getJunction()));
 
         if(!query.isOrderByEmpty()) {
             jpaQuery.orderBy(query.getOrderByList().stream().map(orderBy -> orderBy.isAsc() ?
@@ -147,6 +148,23 @@ public class JPAUtils {
         return jpaQuery;
     }
 
+    public static <T> CriteriaQuery<Object> toJpaQuery(Query query, CriteriaBuilder cb, Class<T> clazz, String property) {
+        CriteriaQuery<Object> jpaQuery = cb.createQuery();
+        Root<T> root = jpaQuery.from(clazz);
+        jpaQuery.select(toPath(root, property));
+        jpaQuery.where(toJPAPredicate(cb, root, query.getJunction()));
+
+        if(!query.isOrderByEmpty()) {
+            jpaQuery.orderBy(query.getOrderByList().stream().map(orderBy -> orderBy.isAsc() ?
+                    cb.asc(toPath(root, orderBy.getProperty())) : cb.desc(toPath(root, orderBy.getProperty()))).collect(Collectors.toList()));
+        }
+        else {
+            // distinct with order by a column not in the select list is rejected by MySQL
+            jpaQuery.distinct(true);
+        }
+        return jpaQuery;
+    }
+
     public static <T> javax.persistence.criteria.Predicate toJPAPredicate(CriteriaBuilder cb, Root<T> root, Junction junction) {
         javax.persistence.criteria.Predicate[] pArray = junction.getPredicates().stream().map(p -> ToJPAPredicate(cb, root, p))
                 .toArray(javax.persistence.criteria.Predicate[]::new);
@@ -290,7 +308,7 @@ public class JPAUtils {
 
     private static Map<String, String> buildColumnNameAliasMap(String relation, Class clazz, java.util.function.Predicate<Field> predicate) {
         Set<String> properties = new HashSet<>();
-        for(Field field: clazz.getFields()) {
+        for(Field field: FieldUtils.getAllFields(clazz)) {
             if(predicate != null && !predicate.test(field)) {
                 continue;
             }
@@ -298,7 +316,7 @@ public class JPAUtils {
                 properties.add(field.getName());
             }
             else if(isEmbeddedIdColumn(field)) {
-                for(Field idField: field.getType().getFields()) {
+                for(Field idField: FieldUtils.getAllFields(field.getType())) {
                     if(isNotEmbeddedIdColumn(idField)) {
                         properties.add(idField.getName());
                     }
@@ -362,12 +380,13 @@ public class JPAUtils {
                 }
                 // 注意: entity 一定要有 default constructor，否則須傳入 newInstance function
                 Object entity = newInstance(clazz);
+                // null column values are kept, Collectors.toMap doesn't accept them
                 populateEntityProperties(entity, row.entrySet().stream().filter(entry -> entry.getKey().split("\\.").length == 2)
-                        .collect(Collectors.toMap(entry -> entry.getKey().split("\\.")[1], Map.Entry::getValue)));
+                        .collect(HashMap::new, (map, entry) -> map.put(entry.getKey().split("\\.")[1], entry.getValue()), HashMap::putAll));
                 entitySet.add((T)entity);
                 if (hasRelation) {
                     Map<String, Object> relationMap = row.entrySet().stream().filter(entry -> entry.getKey().split("\\.").length >= 3)
-                            .collect(Collectors.toMap(entry -> entry.getKey().substring(entry.getKey().indexOf(".") + 1), Map.Entry::getValue));
+                            .collect(HashMap::new, (map, entry) -> map.put(entry.getKey().substring(entry.getKey().indexOf(".") + 1), entry.getValue()), HashMap::putAll);
                     populateRelationEntities(entity, relationMap);
                 }
             }
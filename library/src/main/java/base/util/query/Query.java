@@ -231,6 +231,14 @@ public class Query {
         return junction;
     }
 
+    /**
+     * the junction built by where() or or(), an empty conjunction if neither is called.
+     * where() starts a new junction, so it can't be used to read the predicates
+     */
+    public Junction getJunction() {
+        return junction != null ? junction : where();
+    }
+
     public Query addParam(String property, Object value) {
         paramMap.put(property, value);
         return this;